@@ -135,7 +135,7 @@ public final class ExpressionCompiler {
       EfType.SimpleType lookOn = target != null
         ? (EfType.SimpleType) target.resultType()
         : null;
-      return getMethodInvokeOnSimpleTarget(ctx, usedAsExpression, target, lookOn);
+      return getMethodInvokeOnSimpleTarget(ctx, usedAsExpression, target, lookOn, null);
     } else if (target.resultType() instanceof EfType.DisjunctiveType) {
       return vars.inScope(() -> {
         EfVar matchAgainstVar = tryGetEfVar(target);
@@ -152,6 +152,9 @@ public final class ExpressionCompiler {
         }
 
         EfType.DisjunctiveType targetDisjunction = (EfType.DisjunctiveType) target.resultType();
+        // The args are the same for every alternative, so compile them once and share them. Otherwise, a call whose
+        // args are themselves calls on disjunctions would grow multiplicatively.
+        List<Expression> args = ctx.methodInvokeArgs().expr().stream().map(this::apply).collect(Collectors.toList());
 
         List<CaseConstruct.Alternative<Expression>> alternatives = targetDisjunction
           .getAlternatives()
@@ -165,7 +168,8 @@ public final class ExpressionCompiler {
             EfType.SimpleType matchAgainstType = (EfType.SimpleType) efType;
             PAlternative typeMatcher = matchAllArgsFor(matchAgainstType);
             Expression downcast = new Expression.CastExpression(inMatcher, matchAgainstType);
-            Expression downcastMethodInvoke = methodInvoke(ctx, usedAsExpression, downcast);
+            Expression downcastMethodInvoke = getMethodInvokeOnSimpleTarget(
+              ctx, usedAsExpression, downcast, matchAgainstType, args);
             return new CaseConstruct.Alternative<>(typeMatcher, downcastMethodInvoke, Collections.emptyMap());
           })
           .filter(Objects::nonNull).collect(Collectors.toList());
@@ -181,7 +185,8 @@ public final class ExpressionCompiler {
     EffesParser.MethodInvokeContext ctx,
     boolean usedAsExpression,
     Expression target,
-    EfType.SimpleType lookOn)
+    EfType.SimpleType lookOn,
+    @Nullable List<Expression> compiledArgs)
   {
     String methodName = ctx.methodName().getText();
     List<EffesParser.TypeContext> explicitGenericsCtx = ctx.singleTypeParameters().type();
@@ -207,7 +212,9 @@ public final class ExpressionCompiler {
       }
     }
 
-    List<Expression> invokeArgs = ctx.methodInvokeArgs().expr().stream().map(this::apply).collect(Collectors.toList());
+    List<Expression> invokeArgs = compiledArgs != null
+      ? new ArrayList<>(compiledArgs)
+      : ctx.methodInvokeArgs().expr().stream().map(this::apply).collect(Collectors.toList());
     if (target != null) {
       List<Expression> invokeArgsWithTarget = new ArrayList<>(invokeArgs.size() + 1);
       invokeArgsWithTarget.add(target);
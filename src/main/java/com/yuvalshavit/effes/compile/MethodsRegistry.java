@@ -13,6 +13,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -23,6 +24,13 @@ public final class MethodsRegistry<B> {
     this(new HashMap<>());
   }
 
+  /**
+   * Returns an empty registry that can be read while another thread replaces its methods.
+   */
+  public static <B> MethodsRegistry<B> concurrent() {
+    return new MethodsRegistry<>(new ConcurrentHashMap<>());
+  }
+
   private MethodsRegistry(Map<MethodId, EfMethod<? extends B>> methods) {
     this.methods = methods;
   }
@@ -34,6 +42,13 @@ public final class MethodsRegistry<B> {
     methods.put(methodId, method);
   }
 
+  public void replaceMethod(MethodId methodId, EfMethod<? extends B> method) {
+    if (!methods.containsKey(methodId)) {
+      throw new IllegalArgumentException("unknown method: " + methodId);
+    }
+    methods.put(methodId, method);
+  }
+
   public Collection<? extends EfMethod<? extends B>> getMethods() {
     return Collections.unmodifiableCollection(methods.values());
   }
@@ -0,0 +1,55 @@
+package com.yuvalshavit.effes.compile;
+
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.BuiltInMethodsFactory;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the methods that are pure: those that can never reach a built-in method with side effects (that is, print).
+ * Effes has no other way to do I/O or to mutate state, so a pure method's result depends only on its args.
+ */
+public final class PurityAnalysis {
+  private PurityAnalysis() {}
+
+  public static Set<MethodId> pureMethods(MethodsRegistry<Block> methods) {
+    Set<String> impureBuiltIns = BuiltInMethodsFactory.impureMethodNames();
+    Map<MethodId, Set<MethodId>> callers = new HashMap<>();
+    Deque<MethodId> impure = new ArrayDeque<>();
+    for (Map.Entry<? extends MethodId, ? extends EfMethod<? extends Block>> entry : methods.getMethodsByName().entrySet()) {
+      MethodId caller = entry.getKey();
+      boolean[] callsImpureBuiltIn = { false };
+      NodeStateListener.accept(entry.getValue().getBody(), child -> {
+        if (child instanceof Expression.MethodInvoke) {
+          Expression.MethodInvoke invoke = (Expression.MethodInvoke) child;
+          if (invoke.isBuiltIn()) {
+            callsImpureBuiltIn[0] |= impureBuiltIns.contains(invoke.getMethodId().getName());
+          } else {
+            callers.computeIfAbsent(invoke.getMethodId(), k -> new HashSet<>()).add(caller);
+          }
+        }
+      });
+      if (callsImpureBuiltIn[0]) {
+        impure.add(caller);
+      }
+    }
+    // anything that can call an impure method is itself impure
+    Set<MethodId> pure = new HashSet<>(methods.getMethodsByName().keySet());
+    while (!impure.isEmpty()) {
+      MethodId method = impure.pop();
+      if (pure.remove(method)) {
+        impure.addAll(callers.getOrDefault(method, Collections.emptySet()));
+      }
+    }
+    return pure;
+  }
+}
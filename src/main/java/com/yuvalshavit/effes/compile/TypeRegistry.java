@@ -18,6 +18,7 @@ public final class TypeRegistry {
   private final Map<String, EfType.SimpleType> simpleTypes = new HashMap<>();
   private final Map<String, EfType> typeAliases = new HashMap<>();
   private final CompileErrors errs;
+  private int nextTag = BuiltinType.values().length; // built-ins are tagged by their ordinals
 
   public TypeRegistry(CompileErrors errs) {
     this.errs = errs;
@@ -42,6 +43,7 @@ public final class TypeRegistry {
   public void registerType(Token token, String name, List<String> params) {
     if (nameIsAvailable(token, name)) {
       EfType.SimpleType r = new EfType.SimpleType(name, params);
+      r.setTag(nextTag++);
       simpleTypes.put(name, r);
     }
   }
@@ -29,7 +29,25 @@ public final class Block extends Node {
     return statements;
   }
 
+  /**
+   * Returns how many vars are assigned in this block. Vars that are only bound by case patterns aren't counted; see
+   * {@link #frameSize()}.
+   */
   public int nVars() {
+    return maxVarPosition(false) + 1;
+  }
+
+  /**
+   * Returns how many local slots a frame for this block needs: enough for every var that's assigned in it, including
+   * those bound by case patterns. Frames are this big from the start, so a case writes its bindings straight into their
+   * slots instead of pushing them as it matches, and passes that drop or add cases don't need to keep track of which
+   * bindings came first.
+   */
+  public int frameSize() {
+    return maxVarPosition(true) + 1;
+  }
+
+  private int maxVarPosition(boolean includeBindings) {
     class MaxArgFinder implements NodeStateListener {
       int pos = -1;
 
@@ -39,11 +57,23 @@ public final class Block extends Node {
         if (var != null) {
           pos = Math.max(pos, var.getArgPosition());
         }
+        if (!includeBindings) {
+          return;
+        }
+        if (child instanceof Expression.CaseExpression) {
+          bindings(((Expression.CaseExpression) child).construct());
+        } else if (child instanceof Statement.CaseStatement) {
+          bindings(((Statement.CaseStatement) child).construct());
+        }
+      }
+
+      private void bindings(CaseConstruct<?> construct) {
+        construct.getPatterns().forEach(p -> p.bindings().values().forEach(v -> pos = Math.max(pos, v.getArgPosition())));
       }
     }
     MaxArgFinder argFinder = new MaxArgFinder();
     NodeStateListener.accept(this, argFinder);
-    return argFinder.pos + 1;
+    return argFinder.pos;
   }
 
   @Override
@@ -13,4 +13,6 @@ import java.lang.annotation.Target;
   String[] args();
   String[] generics() default {};
   String targets() default "";
+  /** Whether the method is free of side effects (other than its result), and thus safe to memoize. */
+  boolean pure() default true;
 }
@@ -20,7 +20,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public interface BuiltInMethodsFactory<T> {
-  @BuiltInMethod(name = "debugPrint", resultType = "Void", args = "T", generics = {"T"})
+  @BuiltInMethod(name = "debugPrint", resultType = "Void", args = "T", generics = {"T"}, pure = false)
   T print();
   
   @BuiltInMethod(name = "+", resultType = "Int", args = "Int", targets = "IntValue | IntZero")
@@ -38,6 +38,17 @@ public interface BuiltInMethodsFactory<T> {
   @BuiltInMethod(name = "sprintf", resultType = "String", args = "List[String]", targets = "String")
   T sprintf();
 
+  /**
+   * Returns the names of the built-in methods that have side effects.
+   */
+  static Set<String> impureMethodNames() {
+    return Stream.of(BuiltInMethodsFactory.class.getDeclaredMethods())
+      .map(m -> m.getAnnotation(BuiltInMethod.class))
+      .filter(meta -> meta != null && !meta.pure())
+      .map(BuiltInMethod::name)
+      .collect(Collectors.toSet());
+  }
+
   default void addTo(TypeRegistry typeRegistry, MethodsRegistry<? super T> outRegistry, CompileErrors errs) {
     for (Method m : BuiltInMethodsFactory.class.getDeclaredMethods()) {
       BuiltInMethod meta = m.getAnnotation(BuiltInMethod.class);
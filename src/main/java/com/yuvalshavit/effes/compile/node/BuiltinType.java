@@ -19,6 +19,7 @@ public enum BuiltinType {
   BuiltinType(String efTypeName, boolean hasLargeDomain) {
     this.hasLargeDomain = hasLargeDomain;
     this.efType = new EfType.SimpleType(efTypeName, Collections.<String>emptyList());
+    this.efType.setTag(ordinal()); // TypeRegistry numbers the other types after these
   }
 
   public static EfType.SimpleType efTypeFor(long value) {
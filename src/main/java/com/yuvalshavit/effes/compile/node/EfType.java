@@ -11,6 +11,7 @@ import com.yuvalshavit.util.Dispatcher;
 import com.yuvalshavit.util.EfCollections;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -51,7 +52,7 @@ public abstract class EfType {
   public static boolean sameRawType(EfType first, EfType second) {
     return (first instanceof SimpleType)
       && (second instanceof SimpleType)
-      && ((SimpleType) first).getGeneric().equals(((SimpleType) second).getGeneric());
+      && ((SimpleType) first).sameGeneric((SimpleType) second);
   }
   
   private EfType() {}
@@ -64,6 +65,15 @@ public abstract class EfType {
    */
   public abstract boolean contains(EfType other);
 
+  /**
+   * Returns whether a value whose runtime type is the given one belongs to this type. This is equivalent to
+   * {@link #contains(EfType)}, but for types made up of tagged, non-parameterized simple types, it's just an int
+   * compare or a bit test.
+   */
+  public boolean isInstance(SimpleType valueType) {
+    return contains(valueType);
+  }
+
   @Override
   public abstract String toString();
 
@@ -137,10 +147,13 @@ public abstract class EfType {
   }
 
   public static final class SimpleType extends EfType {
+    public static final int UNTAGGED = -1;
+
     private final String name;
     private final List<EfType> params;
     private final SimpleType genericForm;
     private List<CtorArg> ctorArgs; // TODO find a way to make this be final
+    private int tag = UNTAGGED; // only set on the generic form
 
     public SimpleType(String name, List<String> params) {
       this.name = name;
@@ -188,6 +201,33 @@ public abstract class EfType {
       return genericForm;
     }
 
+    /**
+     * Returns this type's tag, which it shares with its generic form and all of that form's reifications; or
+     * {@link #UNTAGGED} if the type was never registered. Tags are small and dense within a program, so they can be
+     * used as array indexes and bitset positions.
+     */
+    public int getTag() {
+      return genericForm.tag;
+    }
+
+    public void setTag(int tag) {
+      checkArgument(tag >= 0, "invalid tag: %s", tag);
+      checkState(genericForm == this, "can only tag a generic form: %s", this);
+      checkState(this.tag == UNTAGGED || this.tag == tag, "%s already has tag %s", this, this.tag);
+      this.tag = tag;
+    }
+
+    /**
+     * Returns whether the two types have the same generic form; that is, whether they're the same type modulo
+     * reification.
+     */
+    public boolean sameGeneric(SimpleType other) {
+      int myTag = getTag();
+      return myTag == UNTAGGED
+        ? genericForm.equals(other.genericForm)
+        : myTag == other.getTag();
+    }
+
     public List<GenericType> getGenericsDeclr() {
       List raw = params;
       @SuppressWarnings("unchecked")
@@ -236,6 +276,15 @@ public abstract class EfType {
       return true;
     }
 
+    @Override
+    public boolean isInstance(SimpleType valueType) {
+      int myTag = getTag();
+      if (myTag != UNTAGGED && myTag != valueType.getTag()) {
+        return false;
+      }
+      return (myTag != UNTAGGED && params.isEmpty()) || contains(valueType);
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o)
@@ -321,6 +370,7 @@ public abstract class EfType {
 
   public static final class DisjunctiveType extends EfType {
     private final SortedSet<EfType> options;
+    private volatile TagSet tagSet; // lazily computed, since types may be tagged after the disjunction is built
 
     private DisjunctiveType(Collection<? extends EfType> options) {
       // flatten them out
@@ -391,6 +441,22 @@ public abstract class EfType {
       }.accept(other);
     }
 
+    @Override
+    public boolean isInstance(SimpleType valueType) {
+      TagSet tags = tagSet;
+      if (tags == null) {
+        tagSet = tags = new TagSet(options);
+      }
+      int valueTag = valueType.getTag();
+      if (tags.members == null || valueTag == SimpleType.UNTAGGED) {
+        return contains(valueType);
+      }
+      if (!tags.members.get(valueTag)) {
+        return false;
+      }
+      return tags.exact || contains(valueType);
+    }
+
     @Override
     public Collection<SimpleType> simpleTypes() {
       return options.stream().flatMap(t -> t.simpleTypes().stream()).collect(Collectors.toList());
@@ -422,6 +488,35 @@ public abstract class EfType {
     }
   }
   
+  /**
+   * The tags of a disjunction's simple types. A disjunction's generic and unknown options never contain a runtime
+   * value's type, so only the simple ones matter.
+   */
+  private static final class TagSet {
+    @Nullable
+    private final BitSet members; // null if any option is untagged
+    private final boolean exact; // whether a set bit is enough, without checking params
+
+    TagSet(Collection<EfType> options) {
+      BitSet bits = new BitSet();
+      boolean allUnparameterized = true;
+      for (EfType option : options) {
+        if (option instanceof SimpleType) {
+          SimpleType simple = (SimpleType) option;
+          int tag = simple.getTag();
+          if (tag == SimpleType.UNTAGGED) {
+            bits = null;
+            break;
+          }
+          bits.set(tag);
+          allUnparameterized &= simple.params.isEmpty();
+        }
+      }
+      this.members = bits;
+      this.exact = allUnparameterized;
+    }
+  }
+
   public static class GenericType extends EfType {
     private final String name;
     private final Object owner;
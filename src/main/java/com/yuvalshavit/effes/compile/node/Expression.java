@@ -173,6 +173,13 @@ public abstract class Expression extends Node {
       return args;
     }
 
+    /**
+     * Returns an invocation of the same constructor, but with different args.
+     */
+    public CtorInvoke withArgs(List<Expression> args) {
+      return new CtorInvoke(token(), simpleType, ctorArgs, args);
+    }
+
     @Override
     public void validate(CompileErrors errs) {
       if (simpleType != null) {
@@ -279,6 +286,39 @@ public abstract class Expression extends Node {
     }
   }
 
+  /**
+   * A value that was worked out at compile time, such as a constructor invocation whose args are all literals. Values
+   * are immutable, so every evaluation can share the one instance. The parser never creates these; only optimization
+   * passes do.
+   */
+  public static class ConstantExpression extends Expression {
+    private final EfValue value;
+
+    public ConstantExpression(Expression source, EfValue value) {
+      super(source.token(), source.resultType());
+      this.value = checkNotNull(value, "value");
+    }
+
+    @Override
+    public String toString() {
+      return value.toString();
+    }
+
+    @Override
+    public void validate(CompileErrors errs) {
+      // always valid
+    }
+
+    @Override
+    public void state(NodeStateVisitor out) {
+      out.visitScalar(null, value);
+    }
+
+    public EfValue getValue() {
+      return value;
+    }
+  }
+
   public static class IntLiteral extends Expression {
     
     private final long value;
@@ -343,6 +383,13 @@ public abstract class Expression extends Node {
       return args;
     }
 
+    /**
+     * Returns an invocation of the same method, but with different args.
+     */
+    public MethodInvoke withArgs(List<Expression> args) {
+      return new MethodInvoke(token(), methodId, method, args, isBuiltIn, usedAsExpression);
+    }
+
     @Override
     public void validate(CompileErrors errs) {
       if (usedAsExpression && EfType.VOID.equals(resultType())) {
@@ -172,14 +172,14 @@ public abstract class PAlternative {
     @Override
     public boolean matches(EfValue efValue) {
       return value.transform(
-        large -> large.type().equals(efValue.getType()),
+        large -> large.type().sameGeneric(efValue.getType()),
         std -> {
-          if (!std.type().getGeneric().equals(efValue.getType().getGeneric())) {
+          if (!std.type().sameGeneric(efValue.getType())) {
             return false;
           }
           for (int i = 0, len = std.args().size(); i < len; ++i) {
             PAlternative argAlt = std.args().get(i);
-            EfValue actualArg = efValue.getState().get(i);
+            EfValue actualArg = efValue.getArg(i);
             if (!argAlt.matches(actualArg)) {
               return false;
             }
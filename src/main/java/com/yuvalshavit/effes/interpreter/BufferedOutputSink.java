@@ -0,0 +1,138 @@
+package com.yuvalshavit.effes.interpreter;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes lines into a reusable buffer, and only writes them out to the channel (such as a
+ * {@link java.nio.channels.FileChannel}) when the buffer fills up, when its oldest line has been waiting longer than
+ * the maximum delay, or when it's flushed. A program that prints a lot of lines thus makes a few big writes, rather
+ * than a (synchronized, and possibly flushing) write per line.
+ *
+ * The delay is only checked as lines are written: there's no timer thread, so a program that prints something and then
+ * goes quiet won't see it written until it prints again or the run ends. The buffer size and the delay default to
+ * {@code effes.out.bufferSize} (64k) and {@code effes.out.maxDelayMillis} (100).
+ */
+public final class BufferedOutputSink implements OutputSink, Closeable {
+  public static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("effes.out.bufferSize", 64 * 1024);
+  public static final long DEFAULT_MAX_DELAY_MILLIS = Long.getLong("effes.out.maxDelayMillis", 100);
+
+  private final WritableByteChannel channel;
+  @Nullable
+  private final Flushable target;
+  private final CharsetEncoder encoder;
+  private final byte[] newline;
+  private final ByteBuffer buffer;
+  private final long maxDelayNanos;
+  private long oldestLineNanos; // when the first line since the last write went in
+
+  public BufferedOutputSink(WritableByteChannel channel) {
+    this(channel, StandardCharsets.UTF_8, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+  }
+
+  public BufferedOutputSink(WritableByteChannel channel, Charset charset, int bufferSize, long maxDelayMillis) {
+    this(channel, null, charset, bufferSize, maxDelayMillis);
+  }
+
+  private BufferedOutputSink(WritableByteChannel channel, @Nullable Flushable target, Charset charset, int bufferSize,
+                             long maxDelayMillis)
+  {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("buffer size must be positive: " + bufferSize);
+    }
+    if (maxDelayMillis < 0) {
+      throw new IllegalArgumentException("max delay may not be negative: " + maxDelayMillis);
+    }
+    this.channel = channel;
+    this.target = target;
+    this.encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.newline = System.lineSeparator().getBytes(charset);
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+  }
+
+  /**
+   * Returns a sink that writes to the given stream, in the platform's default charset (which is what a PrintStream
+   * uses). Flushing the sink flushes the stream, too.
+   */
+  public static BufferedOutputSink to(OutputStream out) {
+    return new BufferedOutputSink(
+      Channels.newChannel(out), out, Charset.defaultCharset(), DEFAULT_BUFFER_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+  }
+
+  @Override
+  public void println(String line) {
+    if (buffer.position() == 0) {
+      oldestLineNanos = System.nanoTime();
+    }
+    encode(CharBuffer.wrap(line));
+    for (byte b : newline) {
+      if (!buffer.hasRemaining()) {
+        write();
+      }
+      buffer.put(b);
+    }
+    if (System.nanoTime() - oldestLineNanos >= maxDelayNanos) {
+      write();
+    }
+  }
+
+  @Override
+  public void flush() {
+    write();
+    if (target != null) {
+      try {
+        target.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+    channel.close();
+  }
+
+  private void encode(CharBuffer chars) {
+    encoder.reset();
+    CoderResult result;
+    while ((result = encoder.encode(chars, buffer, true)).isOverflow()) {
+      write();
+    }
+    assert result.isUnderflow() : result;
+    while (encoder.flush(buffer).isOverflow()) {
+      write();
+    }
+  }
+
+  private void write() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      buffer.clear();
+    }
+  }
+}
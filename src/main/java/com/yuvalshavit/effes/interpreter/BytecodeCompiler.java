@@ -0,0 +1,745 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.node.Node;
+import com.yuvalshavit.effes.compile.node.Statement;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+import com.yuvalshavit.util.Dispatcher;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Compiles the Block IR into real JVM bytecode, as an alternative to the tree-walking {@link ExecutableBlockCompiler}.
+ *
+ * Each program becomes one generated class, and each Effes method becomes a static method on it that takes the run's
+ * CallStack followed by its args as EfValues, and returns an EfValue (null for methods with no result). The generated
+ * code doesn't keep its values on the CallStack, but it calls built-ins on it, and burns its fuel (see
+ * {@link CallStack#checkpoint}) on entry and on every self tail call. Effes locals live in JVM locals, and calls
+ * between Effes methods are plain invokestatics, so HotSpot gets to JIT and inline them like any other Java code.
+ * Anything that's not worth generating inline (ctors, casts, built-ins) goes through {@link BytecodeRuntime}. As in
+ * the other backends, the args to a call or ctor are evaluated last arg first.
+ *
+ * The resulting ExecutableMethods are thin adapters that read their args off the CallStack and invoke the generated
+ * code. Note that since the generated methods recurse on the JVM stack rather than the CallStack, deep recursion is
+ * bounded by the thread's stack size. The exception is a method's tail calls to itself, which become jumps; tail calls
+ * to other methods are regular JVM calls. Each call still counts toward the CallStack's max depth (see
+ * {@link CallStack#enterGenerated}), and since a generated call takes far less JVM stack than a tree-walked one, its
+ * {@link #DEFAULT_MAX_DEPTH} is that much higher.
+ */
+public final class BytecodeCompiler {
+  /**
+   * The max depth for generated code, unless the effes.maxDepth system property says otherwise. Roughly as many
+   * generated calls as fit in a thread of the JVM's default stack size.
+   */
+  public static final int DEFAULT_MAX_DEPTH = CallStack.maxDepthForJvmStack(192);
+
+  private static final String GENERATED_PACKAGE = "com/yuvalshavit/effes/generated/";
+  private static final String CONSTANTS_FIELD = "CONSTANTS";
+  private static final int STATIC_FINAL = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL;
+  private static final int STACK_SLOT = 0; // every generated method's first arg is the CallStack
+  private static final AtomicInteger classIds = new AtomicInteger();
+
+  private static final String EF_VALUE = Type.getInternalName(EfValue.class);
+  private static final String LONG_VALUE = Type.getInternalName(EfValue.LongValue.class);
+  private static final String RUNTIME = Type.getInternalName(BytecodeRuntime.class);
+  private static final String OBJECT_ARRAY_DESC = Type.getDescriptor(Object[].class);
+  private static final String METHOD_HANDLE = Type.getInternalName(MethodHandle.class);
+  private static final String METHOD_HANDLE_DESC = Type.getDescriptor(MethodHandle.class);
+  private static final MethodHandle INVOKE_HANDLE;
+  static {
+    try {
+      INVOKE_HANDLE = MethodHandles.lookup().findStatic(
+        BytecodeRuntime.class,
+        "invoke",
+        MethodType.methodType(EfValue.class, CallStack.class, ExecutableMethod.class, boolean.class, EfValue[].class));
+    } catch (ReflectiveOperationException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private final Function<MethodId, ExecutableMethod> builtInMethods;
+
+  public BytecodeCompiler(Function<MethodId, ExecutableMethod> builtInMethods) {
+    this.builtInMethods = builtInMethods;
+  }
+
+  public MethodsRegistry<ExecutableMethod> compile(MethodsRegistry<Block> methods) {
+    String className = GENERATED_PACKAGE + "EfProgram" + classIds.getAndIncrement();
+    Map<MethodId, String> methodNames = new HashMap<>();
+    for (MethodId id : methods.getMethodsByName().keySet()) {
+      methodNames.put(id, "m" + methodNames.size() + "_" + sanitize(id.toString()));
+    }
+    ClassCompiler classCompiler = new ClassCompiler(className, methodNames, id -> {
+      throw new AssertionError("method not in program: " + id);
+    });
+    methods.getMethodsByName().forEach((id, method) -> classCompiler.method(id, method));
+    Class<?> generated = classCompiler.define();
+
+    return methods.transform((id, method) -> generatedMethod(generated, methodNames.get(id), id, method));
+  }
+
+  /**
+   * Compiles a single method into a class of its own. Calls to itself are direct invokestatics, but calls to any other
+   * (non-built-in) method go through the MethodHandle that the given function provides for it. That handle is looked
+   * up once, at compile time, so if the callee can change it should be a {@link java.lang.invoke.MutableCallSite}'s
+   * dynamic invoker. Its type must be that of {@link #handleFor}.
+   */
+  public ExecutableMethod compile(MethodId id, EfMethod<? extends Block> method,
+                                  Function<MethodId, MethodHandle> otherMethods)
+  {
+    String className = GENERATED_PACKAGE + "EfMethod" + classIds.getAndIncrement();
+    String methodName = "m_" + sanitize(id.toString());
+    ClassCompiler classCompiler = new ClassCompiler(className, Collections.singletonMap(id, methodName), otherMethods);
+    classCompiler.method(id, method);
+    return generatedMethod(classCompiler.define(), methodName, id, method);
+  }
+
+  /**
+   * Returns a handle that takes a CallStack and then the method's args as EfValues, and returns its result (or null if
+   * it has none).
+   */
+  public static MethodHandle handleFor(ExecutableMethod method, boolean hasRv, int nArgs) {
+    if (method instanceof GeneratedMethod) {
+      return ((GeneratedMethod) method).handle;
+    }
+    return MethodHandles.insertArguments(INVOKE_HANDLE, 1, method, hasRv).asCollector(EfValue[].class, nArgs);
+  }
+
+  @VisibleForTesting
+  static boolean isGenerated(ExecutableMethod method) {
+    return method instanceof GeneratedMethod;
+  }
+
+  private static GeneratedMethod generatedMethod(Class<?> generated, String name, MethodId id, EfMethod<?> method) {
+    int nArgs = method.getArgs().length();
+    boolean hasRv = !EfType.VOID.equals(method.getResultType());
+    MethodHandle handle;
+    try {
+      handle = MethodHandles.publicLookup().findStatic(generated, name, methodType(nArgs));
+    } catch (ReflectiveOperationException e) {
+      throw new AssertionError(e);
+    }
+    return new GeneratedMethod(id, handle, nArgs, hasRv);
+  }
+
+  private static String sanitize(String name) {
+    StringBuilder sb = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); ++i) {
+      char c = name.charAt(i);
+      sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+    }
+    return sb.toString();
+  }
+
+  private static int longOpcode(IntOp op) {
+    switch (op) {
+    case ADD:
+      return Opcodes.LADD;
+    case SUB:
+      return Opcodes.LSUB;
+    case MULT:
+      return Opcodes.LMUL;
+    case DIV:
+      return Opcodes.LDIV;
+    default:
+      throw new AssertionError(op);
+    }
+  }
+
+  private static MethodType methodType(int nArgs) {
+    return MethodType.methodType(EfValue.class, Collections.nCopies(nArgs, EfValue.class)).insertParameterTypes(0, CallStack.class);
+  }
+
+  private static String methodDescriptor(int nArgs) {
+    return methodType(nArgs).toMethodDescriptorString();
+  }
+
+  private class ClassCompiler {
+    private final String className;
+    private final Map<MethodId, String> methodNames;
+    private final Function<MethodId, MethodHandle> otherMethods;
+    private final Map<MethodId, String> handleFields = new HashMap<>();
+    private final Map<String, Integer> handleConstants = new HashMap<>();
+    private final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+    ClassCompiler(String className, Map<MethodId, String> methodNames,
+                  Function<MethodId, MethodHandle> otherMethods)
+    {
+      this.className = className;
+      this.methodNames = methodNames;
+      this.otherMethods = otherMethods;
+      cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+      cw.visitField(STATIC_FINAL, CONSTANTS_FIELD, OBJECT_ARRAY_DESC, null, null).visitEnd();
+    }
+
+    void method(MethodId id, EfMethod<? extends Block> method) {
+      int nArgs = method.getArgs().length();
+      Block body = method.getBody();
+      MethodVisitor mv = cw.visitMethod(
+        Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC,
+        methodNames.get(id),
+        methodDescriptor(nArgs),
+        null,
+        null);
+      mv.visitCode();
+      new MethodCompiler(this, mv, id, nArgs, body.frameSize()).compile(body);
+      mv.visitMaxs(0, 0); // computed by the ClassWriter
+      mv.visitEnd();
+    }
+
+    int constant(Object value) {
+      return constantIndexes.computeIfAbsent(value, v -> {
+        constants.add(v);
+        return constants.size() - 1;
+      });
+    }
+
+    /**
+     * Returns the name of a static final field that holds the handle for invoking the given method. Since the field is
+     * final, HotSpot treats the handle as a constant and can inline through it.
+     */
+    String handleField(MethodId id) {
+      return handleFields.computeIfAbsent(id, k -> {
+        String field = "h" + handleFields.size();
+        cw.visitField(STATIC_FINAL, field, METHOD_HANDLE_DESC, null, null).visitEnd();
+        handleConstants.put(field, constant(otherMethods.apply(k)));
+        return field;
+      });
+    }
+
+    Class<?> define() {
+      // the static initializer pulls its constants from BytecodeRuntime, since it can't take them as args
+      MethodVisitor clinit = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+      clinit.visitCode();
+      clinit.visitLdcInsn(className);
+      clinit.visitMethodInsn(
+        Opcodes.INVOKESTATIC,
+        RUNTIME,
+        "takeConstants",
+        MethodType.methodType(Object[].class, String.class).toMethodDescriptorString(),
+        false);
+      clinit.visitFieldInsn(Opcodes.PUTSTATIC, className, CONSTANTS_FIELD, OBJECT_ARRAY_DESC);
+      handleConstants.forEach((field, index) -> {
+        clinit.visitFieldInsn(Opcodes.GETSTATIC, className, CONSTANTS_FIELD, OBJECT_ARRAY_DESC);
+        clinit.visitLdcInsn(index);
+        clinit.visitInsn(Opcodes.AALOAD);
+        clinit.visitTypeInsn(Opcodes.CHECKCAST, METHOD_HANDLE);
+        clinit.visitFieldInsn(Opcodes.PUTSTATIC, className, field, METHOD_HANDLE_DESC);
+      });
+      clinit.visitInsn(Opcodes.RETURN);
+      clinit.visitMaxs(0, 0);
+      clinit.visitEnd();
+
+      cw.visitEnd();
+      byte[] bytes = cw.toByteArray();
+      Class<?> generated = new GeneratedClassLoader(BytecodeCompiler.class.getClassLoader())
+        .define(className.replace('/', '.'), bytes);
+      BytecodeRuntime.putConstants(className, constants.toArray());
+      try {
+        Class.forName(generated.getName(), true, generated.getClassLoader());
+      } catch (ClassNotFoundException e) {
+        throw new AssertionError(e);
+      }
+      return generated;
+    }
+  }
+
+  private class MethodCompiler {
+    private final ClassCompiler owner;
+    private final MethodVisitor mv;
+    private final MethodId id;
+    private final int nArgs;
+    private final Label start = new Label();
+    private int nextTemp;
+
+    MethodCompiler(ClassCompiler owner, MethodVisitor mv, MethodId id, int nArgs, int nVars) {
+      this.owner = owner;
+      this.mv = mv;
+      this.id = id;
+      this.nArgs = nArgs;
+      this.nextTemp = STACK_SLOT + 1 + nArgs + nVars;
+    }
+
+    void compile(Block body) {
+      // null out the locals up front, so that every slot has a known type at every branch merge
+      for (int slot = slot(false, 0); slot < nextTemp; ++slot) {
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitVarInsn(Opcodes.ASTORE, slot);
+      }
+      mv.visitVarInsn(Opcodes.ALOAD, STACK_SLOT);
+      invokeRuntime("enter", void.class, CallStack.class);
+      mv.visitLabel(start);
+      mv.visitVarInsn(Opcodes.ALOAD, STACK_SLOT);
+      loadConstant(id, MethodId.class);
+      invokeRuntime("checkpoint", void.class, CallStack.class, MethodId.class);
+      block(body);
+      mv.visitInsn(Opcodes.ACONST_NULL);
+      returnTop();
+    }
+
+    /**
+     * Returns the value on top of the operand stack, letting the CallStack know that this call is done.
+     */
+    private void returnTop() {
+      mv.visitVarInsn(Opcodes.ALOAD, STACK_SLOT);
+      invokeRuntime("exit", void.class, CallStack.class);
+      mv.visitInsn(Opcodes.ARETURN);
+    }
+
+    private void block(Block block) {
+      block.statements().forEach(this::statement);
+    }
+
+    private void statement(Statement statement) {
+      statementDispatcher.apply(this, statement);
+    }
+
+    private void expression(Expression expression) {
+      expressionDispatcher.apply(this, expression);
+    }
+
+    /**
+     * Like {@link #expression}, but for an expression whose value is about to be returned. A call to this same method
+     * becomes a jump back to the start of the method, so that self tail recursion runs in constant stack space.
+     */
+    private void tailExpression(Expression expression) {
+      if (expression instanceof Expression.MethodInvoke) {
+        Expression.MethodInvoke invoke = (Expression.MethodInvoke) expression;
+        if (!invoke.isBuiltIn() && id.equals(invoke.getMethodId())) {
+          List<Expression> args = invoke.getArgs();
+          argsInCallOrder(args);
+          for (int i = args.size() - 1; i >= 0; --i) {
+            mv.visitVarInsn(Opcodes.ASTORE, slot(true, i));
+          }
+          mv.visitJumpInsn(Opcodes.GOTO, start);
+          return;
+        }
+      } else if (expression instanceof Expression.CaseExpression && IntOp.recognize(expression) == null) {
+        Expression.CaseExpression caseExpression = (Expression.CaseExpression) expression;
+        caseConstruct(caseExpression.construct(), caseExpression.toString(), this::tailExpression);
+        return;
+      }
+      expression(expression);
+    }
+
+    private int slot(boolean isArg, int pos) {
+      return STACK_SLOT + 1 + (isArg ? pos : nArgs + pos);
+    }
+
+    private int slot(EfVar var) {
+      return slot(var.isArg(), var.getArgPosition());
+    }
+
+    private void loadConstant(Object value, Class<?> type) {
+      mv.visitFieldInsn(Opcodes.GETSTATIC, owner.className, CONSTANTS_FIELD, OBJECT_ARRAY_DESC);
+      pushInt(owner.constant(value));
+      mv.visitInsn(Opcodes.AALOAD);
+      mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(type));
+    }
+
+    private void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        mv.visitInsn(Opcodes.ICONST_0 + value);
+      } else {
+        mv.visitLdcInsn(value);
+      }
+    }
+
+    private void invokeRuntime(String name, Class<?> returnType, Class<?>... argTypes) {
+      String desc = MethodType.methodType(returnType, argTypes).toMethodDescriptorString();
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, RUNTIME, name, desc, false);
+    }
+
+    private void invokeGetArg() {
+      String desc = MethodType.methodType(EfValue.class, int.class).toMethodDescriptorString();
+      mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, EF_VALUE, "getArg", desc, false);
+    }
+
+    /**
+     * Pushes the args' values, first arg first, but evaluates them last arg first, as CallStack#openFrame does. Args
+     * that are free to read can't observe the order, so if that's all there is, they're just pushed as they are.
+     */
+    private void argsInCallOrder(List<Expression> args) {
+      if (args.size() <= 1 || args.stream().allMatch(IrRewriter::isFreeToRead)) {
+        args.forEach(this::expression);
+        return;
+      }
+      int first = nextTemp;
+      nextTemp += args.size();
+      for (int i = args.size() - 1; i >= 0; --i) {
+        expression(args.get(i));
+        mv.visitVarInsn(Opcodes.ASTORE, first + i);
+      }
+      for (int i = 0; i < args.size(); ++i) {
+        mv.visitVarInsn(Opcodes.ALOAD, first + i);
+      }
+      nextTemp -= args.size();
+    }
+
+    /**
+     * Pushes a new EfValue[] of the args, filled in last arg first (see {@link #argsInCallOrder}).
+     */
+    private void newArgsArray(List<Expression> args) {
+      pushInt(args.size());
+      mv.visitTypeInsn(Opcodes.ANEWARRAY, EF_VALUE);
+      for (int i = args.size() - 1; i >= 0; --i) {
+        mv.visitInsn(Opcodes.DUP);
+        pushInt(i);
+        expression(args.get(i));
+        mv.visitInsn(Opcodes.AASTORE);
+      }
+    }
+
+    private <N extends Node> void caseConstruct(CaseConstruct<N> construct, String description, Consumer<N> arm) {
+      expression(construct.getMatchAgainst());
+      int matchAgainst = nextTemp++;
+      mv.visitVarInsn(Opcodes.ASTORE, matchAgainst);
+      List<CaseConstruct.Alternative<N>> alternatives = construct.getPatterns();
+      CaseDecisionTree decisionTree = new CaseDecisionTree(Lists.transform(alternatives, CaseConstruct.Alternative::getPAlternative));
+      loadConstant(decisionTree, CaseDecisionTree.class);
+      mv.visitVarInsn(Opcodes.ALOAD, matchAgainst);
+      mv.visitMethodInsn(
+        Opcodes.INVOKEVIRTUAL,
+        Type.getInternalName(CaseDecisionTree.class),
+        "match",
+        MethodType.methodType(int.class, EfValue.class).toMethodDescriptorString(),
+        false);
+      Label end = new Label();
+      Label noMatch = new Label();
+      Label[] arms = new Label[alternatives.size()];
+      for (int i = 0; i < arms.length; ++i) {
+        arms[i] = new Label();
+      }
+      if (arms.length == 0) {
+        mv.visitInsn(Opcodes.POP);
+        mv.visitJumpInsn(Opcodes.GOTO, noMatch);
+      } else {
+        mv.visitTableSwitchInsn(0, arms.length - 1, noMatch, arms);
+      }
+      for (int i = 0; i < arms.length; ++i) {
+        CaseConstruct.Alternative<N> alternative = alternatives.get(i);
+        mv.visitLabel(arms[i]);
+        bind(alternative.getPAlternative(), alternative.bindings(), () -> mv.visitVarInsn(Opcodes.ALOAD, matchAgainst));
+        arm.accept(alternative.getIfMatched());
+        mv.visitJumpInsn(Opcodes.GOTO, end);
+      }
+      mv.visitLabel(noMatch);
+      mv.visitVarInsn(Opcodes.ALOAD, matchAgainst);
+      mv.visitLdcInsn(description);
+      invokeRuntime("noMatch", RuntimeException.class, EfValue.class, String.class);
+      mv.visitInsn(Opcodes.ATHROW);
+      mv.visitLabel(end);
+      --nextTemp;
+    }
+
+    /**
+     * Writes each of the alternative's bound names to its local. The loader emits code that pushes the value being
+     * bound against.
+     */
+    private void bind(PAlternative alternative, Map<String, EfVar> bindings, Runnable loader) {
+      alternative.map(
+        (type, args) -> {
+          for (int i = 0; i < args.size(); ++i) {
+            int pos = i;
+            bind(args.get(i), bindings, () -> {
+              loader.run();
+              pushInt(pos);
+              invokeGetArg();
+            });
+          }
+          return null;
+        },
+        name -> {
+          if (name != null) {
+            loader.run();
+            mv.visitVarInsn(Opcodes.ASTORE, slot(bindings.get(name)));
+          }
+          return null;
+        });
+    }
+
+    // expressions
+
+    private Void assignExpr(Expression.AssignExpression expr) {
+      expression(expr.getDelegate());
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitVarInsn(Opcodes.ASTORE, slot(expr.getVar()));
+      return null;
+    }
+
+    private Void caseExpr(Expression.CaseExpression expr) {
+      if (!intOp(expr)) {
+        caseConstruct(expr.construct(), expr.toString(), this::expression);
+      }
+      return null;
+    }
+
+    /**
+     * If the expression is a built-in Int operation, emits it as long arithmetic (whose operands are also unboxed
+     * where possible), boxes the result, and returns true. Otherwise, emits nothing and returns false.
+     */
+    private boolean intOp(Expression expr) {
+      IntOp.Invocation invocation = IntOp.recognize(expr);
+      if (invocation == null) {
+        return false;
+      }
+      longExpression(invocation);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, EF_VALUE, "of", "(J)L" + EF_VALUE + ";", false);
+      return true;
+    }
+
+    private void longExpression(IntOp.Invocation invocation) {
+      if (invocation.rhsFirst()) {
+        int rhs = nextTemp;
+        nextTemp += 2; // a long takes two slots
+        longOperand(invocation.rhs());
+        mv.visitVarInsn(Opcodes.LSTORE, rhs);
+        longOperand(invocation.lhs());
+        mv.visitVarInsn(Opcodes.LLOAD, rhs);
+        nextTemp -= 2;
+      } else {
+        longOperand(invocation.lhs());
+        longOperand(invocation.rhs());
+      }
+      mv.visitInsn(longOpcode(invocation.op()));
+    }
+
+    private void longOperand(Expression expr) {
+      IntOp.Invocation invocation = IntOp.recognize(expr);
+      if (invocation != null) {
+        longExpression(invocation);
+      } else if (expr instanceof Expression.IntLiteral) {
+        mv.visitLdcInsn(((Expression.IntLiteral) expr).getValue());
+      } else {
+        expression(expr);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, LONG_VALUE);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, LONG_VALUE, "getValue", "()J", false);
+      }
+    }
+
+    private Void castExpr(Expression.CastExpression expr) {
+      expression(expr.getDelegate());
+      loadConstant(expr.resultType(), EfType.class);
+      invokeRuntime("cast", EfValue.class, EfValue.class, EfType.class);
+      return null;
+    }
+
+    private Void ctorInvoke(Expression.CtorInvoke expr) {
+      if (expr.getArgs().isEmpty()) {
+        loadConstant(EfValue.of(expr.simpleType()), EfValue.class);
+        return null;
+      }
+      loadConstant(expr.simpleType(), EfType.SimpleType.class);
+      List<Expression> args = expr.getArgs();
+      if (args.size() <= EfValue.MAX_FIXED_ARITY) {
+        // straight to the fixed-arity factory, without an intermediate array
+        Class<?>[] argTypes = new Class<?>[args.size() + 1];
+        argTypes[0] = EfType.SimpleType.class;
+        argsInCallOrder(args);
+        for (int i = 0; i < args.size(); ++i) {
+          argTypes[i + 1] = EfValue.class;
+        }
+        String desc = MethodType.methodType(EfValue.class, argTypes).toMethodDescriptorString();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, EF_VALUE, "of", desc, false);
+      } else {
+        newArgsArray(args);
+        invokeRuntime("ctor", EfValue.class, EfType.SimpleType.class, EfValue[].class);
+      }
+      return null;
+    }
+
+    private Void instanceArg(Expression.InstanceArg expr) {
+      expression(expr.getTarget());
+      pushInt(expr.getArg().getArgPosition());
+      invokeGetArg();
+      return null;
+    }
+
+    private Void constantExpr(Expression.ConstantExpression expr) {
+      loadConstant(expr.getValue(), EfValue.class);
+      return null;
+    }
+
+    private Void intLiteral(Expression.IntLiteral expr) {
+      mv.visitLdcInsn(expr.getValue());
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, EF_VALUE, "of", "(J)L" + EF_VALUE + ";", false);
+      return null;
+    }
+
+    private Void stringLiteral(Expression.StringLiteral expr) {
+      loadConstant(EfValue.of(expr.getValue()), EfValue.class);
+      return null;
+    }
+
+    private Void methodInvoke(Expression.MethodInvoke expr) {
+      if (intOp(expr)) {
+        return null;
+      }
+      MethodId id = expr.getMethodId();
+      String name = owner.methodNames.get(id);
+      if (expr.isBuiltIn()) {
+        mv.visitVarInsn(Opcodes.ALOAD, STACK_SLOT);
+        loadConstant(builtInMethods.apply(id), ExecutableMethod.class);
+        pushInt(EfType.VOID.equals(expr.resultType()) ? 0 : 1);
+        newArgsArray(expr.getArgs());
+        invokeRuntime("invoke", EfValue.class, CallStack.class, ExecutableMethod.class, boolean.class, EfValue[].class);
+      } else if (name == null) {
+        mv.visitFieldInsn(Opcodes.GETSTATIC, owner.className, owner.handleField(id), METHOD_HANDLE_DESC);
+        mv.visitVarInsn(Opcodes.ALOAD, STACK_SLOT);
+        argsInCallOrder(expr.getArgs());
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact", methodDescriptor(expr.getArgs().size()), false);
+      } else {
+        mv.visitVarInsn(Opcodes.ALOAD, STACK_SLOT);
+        argsInCallOrder(expr.getArgs());
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner.className, name, methodDescriptor(expr.getArgs().size()), false);
+      }
+      return null;
+    }
+
+    private Void varExpr(Expression.VarExpression expr) {
+      mv.visitVarInsn(Opcodes.ALOAD, slot(expr.isArg(), expr.pos()));
+      return null;
+    }
+
+    private Void unrecognizedExpr(Expression.UnrecognizedExpression expr) {
+      throw new IllegalArgumentException(expr.toString());
+    }
+
+    // statements
+
+    private Void assignStat(Statement.AssignStatement stat) {
+      expression(stat.value());
+      mv.visitVarInsn(Opcodes.ASTORE, slot(stat.var()));
+      return null;
+    }
+
+    private Void caseStat(Statement.CaseStatement stat) {
+      caseConstruct(stat.construct(), stat.toString(), this::block);
+      return null;
+    }
+
+    private Void returnStat(Statement.ReturnStatement stat) {
+      tailExpression(stat.getExpression());
+      returnTop();
+      return null;
+    }
+
+    private Void methodInvokeStat(Statement.MethodInvoke stat) {
+      expression(stat.methodExpr());
+      mv.visitInsn(Opcodes.POP); // void methods return null, so there's always something to pop
+      return null;
+    }
+  }
+
+  private static final Dispatcher<MethodCompiler, Expression, Void> expressionDispatcher =
+    Dispatcher.builder(MethodCompiler.class, Expression.class, Void.class)
+      .put(Expression.AssignExpression.class, MethodCompiler::assignExpr)
+      .put(Expression.CaseExpression.class, MethodCompiler::caseExpr)
+      .put(Expression.ConstantExpression.class, MethodCompiler::constantExpr)
+      .put(Expression.InstanceArg.class, MethodCompiler::instanceArg)
+      .put(Expression.IntLiteral.class, MethodCompiler::intLiteral)
+      .put(Expression.StringLiteral.class, MethodCompiler::stringLiteral)
+      .put(Expression.MethodInvoke.class, MethodCompiler::methodInvoke)
+      .put(Expression.CastExpression.class, MethodCompiler::castExpr)
+      .put(Expression.CtorInvoke.class, MethodCompiler::ctorInvoke)
+      .put(Expression.VarExpression.class, MethodCompiler::varExpr)
+      .put(Expression.UnrecognizedExpression.class, MethodCompiler::unrecognizedExpr)
+      .build((me, e) -> {
+        throw new AssertionError(e);
+      });
+
+  private static final Dispatcher<MethodCompiler, Statement, Void> statementDispatcher =
+    Dispatcher.builder(MethodCompiler.class, Statement.class, Void.class)
+      .put(Statement.AssignStatement.class, MethodCompiler::assignStat)
+      .put(Statement.MethodInvoke.class, MethodCompiler::methodInvokeStat)
+      .put(Statement.ReturnStatement.class, MethodCompiler::returnStat)
+      .put(Statement.CaseStatement.class, MethodCompiler::caseStat)
+      .put(Statement.UnrecognizedStatement.class, (me, s) -> {
+        throw new AssertionError(s);
+      })
+      .build((me, s) -> {
+        throw new AssertionError(s);
+      });
+
+  private static final class GeneratedMethod implements ExecutableMethod {
+    private final MethodId id;
+    private final MethodHandle handle;
+    private final MethodHandle spreader; // (CallStack, EfValue[]) -> EfValue
+    private final int nArgs;
+    private final boolean hasRv;
+
+    private GeneratedMethod(MethodId id, MethodHandle handle, int nArgs, boolean hasRv) {
+      this.id = id;
+      this.handle = handle;
+      this.spreader = handle.asSpreader(EfValue[].class, nArgs);
+      this.nArgs = nArgs;
+      this.hasRv = hasRv;
+    }
+
+    @Override
+    public int nVars() {
+      return 0; // the generated code keeps its locals in JVM locals
+    }
+
+    @Override
+    public void execute(CallStack stack) {
+      EfValue[] args = new EfValue[nArgs];
+      for (int i = 0; i < nArgs; ++i) {
+        args[i] = stack.peekArg(i);
+      }
+      EfValue rv;
+      try {
+        rv = (EfValue) spreader.invokeExact(stack, args);
+      } catch (Throwable t) {
+        throw Throwables.propagate(t);
+      }
+      if (hasRv) {
+        stack.push(rv);
+        stack.popToRv();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "generated " + id;
+    }
+  }
+
+  private static final class GeneratedClassLoader extends ClassLoader {
+    GeneratedClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
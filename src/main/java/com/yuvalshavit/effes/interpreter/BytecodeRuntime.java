@@ -0,0 +1,81 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Helpers that the classes generated by {@link BytecodeCompiler} call into. These have to be public, since the
+ * generated classes live in their own class loader (and thus their own runtime package).
+ */
+public final class BytecodeRuntime {
+  private static final Map<String, Object[]> pendingConstants = new ConcurrentHashMap<>();
+
+  private BytecodeRuntime() {}
+
+  static void putConstants(String className, Object[] constants) {
+    pendingConstants.put(className, constants);
+  }
+
+  /**
+   * Called on entry to every generated method, before its first {@link #checkpoint}. Every return from the method calls
+   * {@link #exit}.
+   */
+  public static void enter(CallStack stack) {
+    stack.enterGenerated();
+  }
+
+  public static void exit(CallStack stack) {
+    stack.exitGenerated();
+  }
+
+  /**
+   * Called at the start of every generated method, and every time a self tail call jumps back to it.
+   */
+  public static void checkpoint(CallStack stack, MethodId method) {
+    stack.checkpoint(method);
+  }
+
+  public static Object[] takeConstants(String className) {
+    Object[] constants = pendingConstants.remove(className);
+    if (constants == null) {
+      throw new IllegalStateException("no constants for " + className);
+    }
+    return constants;
+  }
+
+  public static EfValue ctor(EfType.SimpleType type, EfValue[] args) {
+    return EfValue.of(type, args);
+  }
+
+  public static EfValue cast(EfValue value, EfType castTo) {
+    if (!castTo.isInstance(value.getType())) {
+      throw new ClassCastException("expected type " + castTo + " but found " + value);
+    }
+    return value;
+  }
+
+  public static RuntimeException noMatch(EfValue value, String caseDescription) {
+    return new IllegalStateException(String.format("no patterns matched (%s): %s", value, caseDescription));
+  }
+
+  /**
+   * Invokes a method that's written against the CallStack: either a built-in, or (for methods compiled on their own)
+   * some other Effes method that hasn't been compiled yet. It runs in a frame of its own on top of the run's stack.
+   */
+  public static EfValue invoke(CallStack stack, ExecutableMethod method, boolean hasRv, EfValue[] args) {
+    stack.openFrame(args, hasRv, null);
+    do {
+      for (int nVars = method.nVars(); nVars > 0; --nVars) {
+        stack.push(null);
+      }
+      method.execute(stack);
+    } while ((method = stack.takeTailCall()) != null);
+    stack.closeFrame();
+    return hasRv
+      ? stack.pop()
+      : null;
+  }
+}
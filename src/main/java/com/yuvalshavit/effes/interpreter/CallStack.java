@@ -2,16 +2,20 @@ package com.yuvalshavit.effes.interpreter;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.sun.management.HotSpotDiagnosticMXBean;
 import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.MethodId;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
 
 /**
  * High-level representation of the call stack.
@@ -19,57 +23,358 @@ import java.util.stream.Collectors;
  * To make things easier on myself, I'm going to have this class -- and *not* individual expressions -- responsible for
  * defining the call stack's format and all that. Expressions just need to use the high-level abstractions provided.
  *
- * That format is:
+ * The value stack's format is:
  *  [ return value       ]
  *  [ argN...arg0        ]
- *  [ FrameInfo          ] <-- "fip"
- *  [ local vars         ]
+ *  [ local vars         ] <-- "fp" points at the first local
+ *
+ * Each frame's bookkeeping (nArgs, prevFp, prevSp, hasRv) lives in a parallel int[] rather than in the value stack
+ * itself. That means opening a frame doesn't allocate anything (other than the occasional array growth), and popping a
+ * value doesn't need to check whether it's about to pop a frame marker; it just compares against fp. Closing a frame
+ * truncates the value stack in one go, nulling out the released slots for the GC.
+ *
+ * A method can also end with a tail call, which replaces its frame's args with the callee's and drops its locals; the
+ * frame's owner then picks up the pending tail call and runs it in the same frame (see
+ * {@link ExecutableExpression.MethodInvokeExpression#invoke}). That keeps tail-recursive loops in constant space.
+ *
+ * Each frame also remembers which method it's running, if the caller said so. Nothing in the interpreter needs that,
+ * but it lets a {@link SamplingProfiler} see the Effes-level call chain.
+ *
+ * Every call and tail call also burns one unit of the stack's fuel (unlimited by default); once it's gone, the call
+ * throws an {@link ExecutionLimitExceededException}. Since every loop in Effes is a recursion, that bounds how long a
+ * run can go, and it's the one place that a run reliably comes back to, whatever it's doing.
+ *
+ * The stack also carries its run's output, which is where the print built-in writes. That keeps all of a run's mutable
+ * state here (see {@link Execution}), so that the compiled methods can be shared by runs on any number of threads.
+ *
+ * The number of calls that may be open at once is capped (see {@link #setMaxDepth}); going past it throws an
+ * {@link EfStackOverflowException} rather than letting the JVM's own stack blow up somewhere in the middle of an
+ * expression. That counts both the frames here and the calls that generated code makes on the JVM stack (see
+ * {@link #enterGenerated}). How deep a run can really go depends on how much JVM stack each of its calls takes, so
+ * each backend has a default of its own (see {@link CompiledProgram#getDefaultMaxDepth}). A tree-walked call costs a
+ * dozen or so JVM frames, about 1.4KB in all, so on a default-sized (1MB) thread stack a plain recursion runs out of
+ * JVM stack at a depth of about 750; {@link #DEFAULT_MAX_DEPTH} is worked out from the JVM's thread stack size so as to
+ * trip just before that. Deeper nesting within each call uses more JVM stack per call, and a thread can have a stack
+ * smaller than the default, so the cap isn't a guarantee; {@link Execution} turns a JVM stack overflow into an
+ * EfStackOverflowException, too.
  *
  * We don't use an esx register or such because I don't think it'd help much as we go through the JVM; a "register"
  * isn't going to be much faster than just working on the stack directly. Maybe it will... something to try out later.
- * Also, storing the ESB directly in the stack doesn't help much, because we anyways need to pop each element so that
- * the stack's slots can be nulled out for the GC; we can't insta-pop.
  */
 public final class CallStack {
 
+  /**
+   * The max depth for tree-walked code, unless the effes.maxDepth system property says otherwise. Roughly as many
+   * tree-walked calls as fit in a thread of the JVM's default stack size.
+   */
+  public static final int DEFAULT_MAX_DEPTH = maxDepthForJvmStack(1400);
+  public static final long UNLIMITED_FUEL = Long.MAX_VALUE;
+
+  private static final long DEFAULT_THREAD_STACK_BYTES = 1024 * 1024; // HotSpot's default on 64-bit platforms
+  private static final long JVM_STACK_HEADROOM_BYTES = 64 * 1024; // for the frames below the run's first call
   private static final Object RV_PLACEHOLDER = "<rv>";
-  private int fip = -1;
-  private final List<Object> states = new ArrayList<>(); // TODO change to Object[] or guard against stack overflows.
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int MAX_SCRATCH_CAPACITY = 8192;
+
+  // offsets within each frame's record in the frames array
+  private static final int FRAME_N_ARGS = 0;
+  private static final int FRAME_PREV_FP = 1;
+  private static final int FRAME_PREV_SP = 2;
+  private static final int FRAME_HAS_RV = 3;
+  private static final int FRAME_STRIDE = 4;
+
+  private int maxDepth;
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  private int sp = 0; // index of the next free slot in values
+  private int fp = 0; // index of the current frame's first local
+  private int[] frames = new int[INITIAL_CAPACITY * FRAME_STRIDE];
+  private int depth = 0; // number of open frames
+  private int generatedDepth = 0; // number of calls that generated code has open on the JVM stack
+  private MethodId[] frameMethods = new MethodId[INITIAL_CAPACITY]; // parallel to frames; null if unknown
+  private ExecutableMethod pendingTailCall;
+  @Nullable
+  private SamplingProfiler sampler;
+  private OutputSink out = OutputSink.of(System.out);
+  private StringBuilder scratchBuilder = new StringBuilder();
+  private long fuelLimit = UNLIMITED_FUEL;
+  private long fuel = UNLIMITED_FUEL;
+
+  public CallStack() {
+    this(DEFAULT_MAX_DEPTH);
+  }
+
+  public CallStack(int maxDepth) {
+    setMaxDepth(maxDepth);
+  }
+
+  /**
+   * Returns the default max depth for code whose calls each take about the given number of bytes of JVM stack: as many
+   * calls as fit in a thread of the JVM's default stack size (-Xss), less some headroom for whatever's below the run.
+   * The effes.maxDepth system property, if it's set, overrides this.
+   */
+  static int maxDepthForJvmStack(int bytesPerCall) {
+    return configuredMaxDepth((defaultThreadStackBytes() - JVM_STACK_HEADROOM_BYTES) / bytesPerCall);
+  }
+
+  /**
+   * Returns the default max depth for code whose calls don't recurse on the JVM stack, and take about the given number
+   * of bytes of heap each: as many calls as fit in the max heap size. The effes.maxDepth system property, if it's set,
+   * overrides this.
+   */
+  static int maxDepthForHeap(int bytesPerCall) {
+    return configuredMaxDepth(Runtime.getRuntime().maxMemory() / bytesPerCall);
+  }
+
+  private static int configuredMaxDepth(long estimate) {
+    return Integer.getInteger("effes.maxDepth", Ints.saturatedCast(Math.max(1, estimate)));
+  }
+
+  private static long defaultThreadStackBytes() {
+    HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+    if (hotSpot != null) {
+      try {
+        long kb = Long.parseLong(hotSpot.getVMOption("ThreadStackSize").getValue());
+        if (kb > 0) { // 0 means the OS default, which we can't see from here
+          return kb * 1024;
+        }
+      } catch (IllegalArgumentException e) {
+        // no such option (or not a number), so fall through to the default
+      }
+    }
+    return DEFAULT_THREAD_STACK_BYTES;
+  }
+
+  /**
+   * Sets how many calls may be open at once. This only affects calls from here on; it doesn't close any frames.
+   */
+  public void setMaxDepth(int maxDepth) {
+    if (maxDepth < 1) {
+      throw new IllegalArgumentException("max depth must be positive: " + maxDepth);
+    }
+    this.maxDepth = maxDepth;
+  }
 
   public void openFrame(List<? extends ExecutableElement> args, boolean hasRv) {
+    openFrame(args, hasRv, null);
+  }
+
+  public void openFrame(List<? extends ExecutableElement> args, boolean hasRv, @Nullable MethodId method) {
+    checkDepth();
     if (hasRv) {
       pushUnsafe(RV_PLACEHOLDER);
     }
-    FrameInfo frameInfo = new FrameInfo(args.size(), fip, states.size(), hasRv);
+    int prevSp = sp; // includes the rv
     int nArgs = args.size();
-    int expectedDepth = states.size();
+    int expectedDepth = sp;
     for (int i = nArgs - 1; i >= 0; --i) {
       args.get(i).execute(this);
-      if (++expectedDepth != states.size()) {
+      if (++expectedDepth != sp) {
         throw new IllegalArgumentException("expression " + i + " didn't push exactly one state: " + args.get(i));
       }
     }
-    fip = states.size();
-    pushUnsafe(frameInfo);
+    pushFrame(nArgs, prevSp, hasRv, method);
+  }
+
+  /**
+   * Opens a frame whose args have already been evaluated. The args are in declaration order (arg0 first).
+   */
+  void openFrame(EfValue[] args, boolean hasRv, @Nullable MethodId method) {
+    checkDepth();
+    if (hasRv) {
+      pushUnsafe(RV_PLACEHOLDER);
+    }
+    int prevSp = sp; // includes the rv
+    for (int i = args.length - 1; i >= 0; --i) {
+      pushUnsafe(args[i]);
+    }
+    pushFrame(args.length, prevSp, hasRv, method);
+  }
+
+  /**
+   * Pushes the slot that a call's return value goes into. The call's args then go on top of it, after which
+   * {@link #openFrameOverArgs} opens the frame.
+   */
+  void pushRvSlot() {
+    pushUnsafe(RV_PLACEHOLDER);
+  }
+
+  /**
+   * Opens a frame whose args are already on top of the stack, pushed in the same order that {@link #openFrame} pushes
+   * them. If the frame has an rv, its slot must be right below the args (see {@link #pushRvSlot}).
+   */
+  void openFrameOverArgs(int nArgs, boolean hasRv, @Nullable MethodId method) {
+    checkDepth();
+    if (sp - nArgs < fp) {
+      throw new IllegalStateException("not enough args on the stack");
+    }
+    pushFrame(nArgs, sp - nArgs, hasRv, method);
+  }
+
+  /**
+   * Called when generated code enters a method. The call runs on the JVM stack rather than in a frame here, but it
+   * still counts toward the max depth until the matching {@link #exitGenerated}. A call that throws never gets there,
+   * but then neither does the run.
+   */
+  void enterGenerated() {
+    checkDepth();
+    ++generatedDepth;
+  }
+
+  void exitGenerated() {
+    --generatedDepth;
+  }
+
+  private void checkDepth() {
+    if (depth + generatedDepth >= maxDepth) {
+      throw new EfStackOverflowException(maxDepth);
+    }
+  }
+
+  private void pushFrame(int nArgs, int prevSp, boolean hasRv, @Nullable MethodId method) {
+    int frame = depth * FRAME_STRIDE;
+    if (frame + FRAME_STRIDE > frames.length) {
+      frames = Arrays.copyOf(frames, frames.length * 2);
+      frameMethods = Arrays.copyOf(frameMethods, frameMethods.length * 2);
+    }
+    frameMethods[depth] = method;
+    frames[frame + FRAME_N_ARGS] = nArgs;
+    frames[frame + FRAME_PREV_FP] = fp;
+    frames[frame + FRAME_PREV_SP] = prevSp;
+    frames[frame + FRAME_HAS_RV] = hasRv ? 1 : 0;
+    ++depth;
+    fp = sp;
+    checkpoint(method);
   }
 
   public void closeFrame() {
-    if (states.size() < 1) { // should have the FrameInfo at least
+    if (depth == 0) {
       throw new IllegalStateException("no frame to close");
     }
-    assert fip == -1 || (states.get(fip) instanceof FrameInfo) : states.get(fip);
+    int frame = frame();
+    int targetSize = frames[frame + FRAME_PREV_SP]; // includes the rv
+    Arrays.fill(values, targetSize, sp, null);
+    sp = targetSize;
+    fp = frames[frame + FRAME_PREV_FP];
+    --depth;
+  }
+
+  /**
+   * Replaces the current frame's args with the top nArgs values on the stack (which should have been pushed in the
+   * same order that {@link #openFrame} pushes them), drops the frame's locals, and records the given body as a pending
+   * tail call. Until the frame's owner takes that tail call, {@link #hasPendingTailCall()} returns true; that's the
+   * signal for everything between here and the owner to return without touching the stack.
+   */
+  public void tailCall(ExecutableMethod body, int nArgs) {
+    tailCall(body, nArgs, null);
+  }
+
+  public void tailCall(ExecutableMethod body, int nArgs, @Nullable MethodId method) {
+    if (pendingTailCall != null) {
+      throw new IllegalStateException("tail call already pending");
+    }
+    int argsStart = rvIndex() + 1; // also checks that there's a frame, and that it has an rv
+    if (sp - nArgs < fp) {
+      throw new IllegalStateException("not enough args on the stack");
+    }
+    int newFp = argsStart + nArgs;
+    System.arraycopy(values, sp - nArgs, values, argsStart, nArgs);
+    Arrays.fill(values, newFp, Math.max(newFp, sp), null);
+    sp = newFp;
+    fp = newFp;
+    frames[frame() + FRAME_N_ARGS] = nArgs;
+    frameMethods[depth - 1] = method;
+    pendingTailCall = body;
+    checkpoint(method);
+  }
 
-    FrameInfo frameInfo = frameInfo();
-    int targetSize = frameInfo.prevSp; // includes the rv
-    while (states.size() > targetSize) {
-      uncheckedPop();
+  /**
+   * Called on every call and tail call, including those that generated code makes without opening a frame.
+   */
+  void checkpoint(@Nullable MethodId method) {
+    if (--fuel < 0) {
+      fuel = 0;
+      throw new ExecutionLimitExceededException(fuelLimit, method, depth);
+    }
+    if (sampler != null) {
+      sampler.poll(this);
     }
-    this.fip = frameInfo.prevFip;
-    assert fip == -1 || (states.get(fip) instanceof FrameInfo) : states.get(fip);
+  }
+
+  /**
+   * Returns an empty builder that a built-in can build its result in, so that it needn't allocate one on every call.
+   * It's only good until the next call to this method.
+   */
+  StringBuilder scratchBuilder() {
+    if (scratchBuilder.capacity() > MAX_SCRATCH_CAPACITY) {
+      scratchBuilder = new StringBuilder(); // don't hold on to one huge string's worth of chars forever
+    }
+    scratchBuilder.setLength(0);
+    return scratchBuilder;
+  }
+
+  /**
+   * Sets how many more calls this stack may make, or {@link #UNLIMITED_FUEL}.
+   */
+  public void setFuel(long fuel) {
+    if (fuel < 0) {
+      throw new IllegalArgumentException("fuel may not be negative: " + fuel);
+    }
+    this.fuelLimit = fuel;
+    this.fuel = fuel;
+  }
+
+  /**
+   * How much of the fuel has been used since it was last set.
+   */
+  public long fuelUsed() {
+    return fuelLimit - fuel;
+  }
+
+  public boolean hasPendingTailCall() {
+    return pendingTailCall != null;
+  }
+
+  /**
+   * Returns the pending tail call (or null if there isn't one), and clears it.
+   */
+  public ExecutableMethod takeTailCall() {
+    ExecutableMethod r = pendingTailCall;
+    pendingTailCall = null;
+    return r;
   }
 
   public int depth() {
-    return states.size();
+    return sp;
+  }
+
+  public int frameDepth() {
+    return depth;
+  }
+
+  /**
+   * Returns the method that the given frame (0 being the outermost) is running, or null if it's not known.
+   */
+  @Nullable
+  MethodId frameMethod(int frame) {
+    if (frame < 0 || frame >= depth) {
+      throw new IndexOutOfBoundsException(Integer.toString(frame));
+    }
+    return frameMethods[frame];
+  }
+
+  void setSampler(@Nullable SamplingProfiler sampler) {
+    this.sampler = sampler;
+  }
+
+  /**
+   * Returns where this stack's run prints to. Defaults to {@code System.out}.
+   */
+  public OutputSink out() {
+    return out;
+  }
+
+  public void setOut(OutputSink out) {
+    this.out = Preconditions.checkNotNull(out);
   }
 
   public void pushArgToStack(int pos) {
@@ -77,182 +382,197 @@ public final class CallStack {
   }
 
   public EfValue peekArg(int pos) {
-    int n = frameInfo().nArgs;
+    int n = depth == 0 ? 0 : frames[frame() + FRAME_N_ARGS];
     if (pos < 0 || pos >= n) {
-      throw new IndexOutOfBoundsException(String.format("invalid arg %d for frame at fip %d (nArgs=%d)", pos, fip, n));
+      throw new IndexOutOfBoundsException(String.format("invalid arg %d for frame at fp %d (nArgs=%d)", pos, fp, n));
     }
-    return (EfValue) states.get(fip - pos - 1);
+    return (EfValue) values[fp - pos - 1];
   }
 
   /**
    * Pushes a local variable (ie, one on the stack) to the top of the stack.
    * @param pos 0-indexed, where 0 is the first variable you pushed; the variable to read from
-   * @throws IllegalArgumentException if pos is negative or extends beyond the current stack size
+   * @throws IndexOutOfBoundsException if pos is negative or extends beyond the current stack size
    */
   public void pushLocalToStack(int pos) {
-    if (pos < 0) {
-      throw new IndexOutOfBoundsException(Integer.toString(pos));
-    }
-    pushUnsafe(states.get(fip + pos + 1));
+    pushUnsafe(values[localIndex(pos)]);
+  }
+
+  /**
+   * Returns a local variable, without pushing it.
+   * @param pos 0-indexed, where 0 is the first variable you pushed; the variable to read from
+   * @throws IndexOutOfBoundsException if pos is negative or extends beyond the current stack size
+   */
+  public EfValue peekLocal(int pos) {
+    return (EfValue) values[localIndex(pos)];
   }
 
   /**
    * Pops the top of the stack, and writes it to a local var slot. Note that the pop happens before the write, so
-   * if you pass the pos of the stack head, you'll get an {@code IllegalArgumentException} because that slot has
+   * if you pass the pos of the stack head, you'll get an {@code IndexOutOfBoundsException} because that slot has
    * been popped by the time the write is attempted
    * @param pos 0-indexed, where 0 is the first variable you pushed; the variable to write to
-   * @throws IllegalArgumentException if pos is negative or extends beyond the current stack size
+   * @throws IndexOutOfBoundsException if pos is negative or extends beyond the current stack size
    */
   public void popToLocal(int pos) {
     if (pos < 0) {
       throw new IndexOutOfBoundsException(Integer.toString(pos));
     }
-    states.set(fip + pos + 1, pop());
+    EfValue value = pop();
+    values[localIndex(pos)] = value;
+  }
+
+  /**
+   * Writes a value to a local var slot, without going via the top of the stack.
+   * @param pos 0-indexed, where 0 is the first variable you pushed; the variable to write to
+   * @throws IndexOutOfBoundsException if pos is negative or extends beyond the current stack size
+   */
+  public void setLocal(int pos, EfValue value) {
+    if (pos < 0) {
+      throw new IndexOutOfBoundsException(Integer.toString(pos));
+    }
+    values[localIndex(pos)] = value;
+  }
+
+  private int localIndex(int pos) {
+    int index = fp + pos;
+    if (pos < 0 || index >= sp) {
+      throw new IndexOutOfBoundsException(Integer.toString(pos));
+    }
+    return index;
   }
 
   public void push(EfType.SimpleType type, int nCtorArgs) {
-    List<EfValue> argValues = new ArrayList<>(nCtorArgs);
-    for (int i = 0; i < nCtorArgs; i++) {
-      argValues.add(pop());
+    EfValue value;
+    switch (nCtorArgs) {
+      case 0:
+        value = EfValue.of(type);
+        break;
+      case 1:
+        value = EfValue.of(type, pop());
+        break;
+      case 2: {
+        EfValue arg0 = pop();
+        value = EfValue.of(type, arg0, pop());
+        break;
+      }
+      case 3: {
+        EfValue arg0 = pop();
+        EfValue arg1 = pop();
+        value = EfValue.of(type, arg0, arg1, pop());
+        break;
+      }
+      case 4: {
+        EfValue arg0 = pop();
+        EfValue arg1 = pop();
+        EfValue arg2 = pop();
+        value = EfValue.of(type, arg0, arg1, arg2, pop());
+        break;
+      }
+      default:
+        EfValue[] args = new EfValue[nCtorArgs];
+        for (int i = 0; i < nCtorArgs; i++) {
+          args[i] = pop();
+        }
+        value = EfValue.of(type, args);
     }
-    push(EfValue.of(type, argValues));
+    push(value);
   }
-  
+
   public void push(EfValue value) {
     pushUnsafe(value);
   }
 
   // internally, we can push whatever we want; externally, only E's
   private void pushUnsafe(Object state) {
-    states.add(state);
+    if (sp == values.length) {
+      values = Arrays.copyOf(values, values.length * 2);
+    }
+    values[sp++] = state;
   }
 
   public EfValue pop() {
-    Object r = uncheckedPop();
-    if (r instanceof FrameInfo) {
-      pushUnsafe(r);
+    if (sp <= fp) {
       throw new IllegalStateException("can't pop past frame");
     }
-    return (EfValue) r;
+    EfValue r = (EfValue) values[--sp];
+    values[sp] = null;
+    return r;
   }
 
   public EfValue peek() {
-    Object r = states.get(states.size() - 1);
-    if (r instanceof FrameInfo) {
+    if (sp <= fp) {
       throw new NoSuchElementException();
     }
-    return (EfValue) r;
+    return (EfValue) values[sp - 1];
   }
 
   public void popToRv() {
-    states.set(rvIndex(frameInfo()), pop());
+    int rvIndex = rvIndex();
+    values[rvIndex] = pop();
+  }
+
+  /**
+   * Sets the return value, without going via the top of the stack.
+   */
+  public void setRv(EfValue value) {
+    values[rvIndex()] = value;
   }
 
   public boolean rvIsSet() {
-    FrameInfo frameInfo = frameInfo();
-    return frameInfo.hasRv && !RV_PLACEHOLDER.equals(states.get(rvIndex(frameInfo)));
+    return depth != 0
+      && frames[frame() + FRAME_HAS_RV] != 0
+      && values[rvIndex()] != RV_PLACEHOLDER;
   }
 
-  private int rvIndex(FrameInfo frameInfo) {
-    if (!frameInfo.hasRv) {
+  private int rvIndex() {
+    if (depth == 0 || frames[frame() + FRAME_HAS_RV] == 0) {
       throw new IllegalStateException("no rv slot allocated");
     }
-    return fip - frameInfo.nArgs - 1;
+    return fp - frames[frame() + FRAME_N_ARGS] - 1;
   }
 
-  private FrameInfo frameInfo() {
-    return (FrameInfo) states.get(fip);
+  private int frame() {
+    return (depth - 1) * FRAME_STRIDE;
   }
 
   @Override
   public String toString() {
-    if (states.size() == 0) {
+    if (sp == 0 && depth == 0) {
       return "[]";
     }
-    try {
-      List<Object> frameElems = new ArrayList<>();
-      List<List<Object>> frames = new ArrayList<>();
-      BiFunction<Integer, Object, String> formatter =
-        (i, o) -> String.format("[%s%d. %s]", (i == fip ? "*" : ""), i, o);
-      for (int i = states.size() - 1; i >= 0; --i) {
-        Object o = states.get(i);
-        if (o instanceof FrameInfo) {
-          FrameInfo info = (FrameInfo) o;
-          o = formatter.apply(i, o);
-          frameElems.add(o);
-          for (; i >= info.prevSp && i > 0; --i) {
-            o = states.get(i - 1);
-            frameElems.add(formatter.apply(i - 1, o));
-          }
-          frames.add(ImmutableList.copyOf(frameElems));
-          frameElems.clear();
-        } else {
-          frameElems.add(formatter.apply(i, o));
-        }
-      }
-      if (!frameElems.isEmpty()) {
-        frames.add(ImmutableList.copyOf(frameElems));
-      }
-      assert frames.stream().mapToInt(List::size).sum() == states.size();
-      List<String> frameDescs = frames
-        .stream()
-        .map(f -> Joiner.on(' ').join(f))
-        .collect(Collectors.toList());
-      return Joiner.on(" \\\\ ").join(frameDescs);
-    } catch (Exception | AssertionError e) {
-      // just in case!
-      return String.format("fip:%d %s", fip, Lists.reverse(states));
+    List<String> frameDescs = new ArrayList<>(depth + 1);
+    int top = sp;
+    int frameFp = fp;
+    for (int d = depth - 1; d >= 0; --d) {
+      int frame = d * FRAME_STRIDE;
+      int bottom = frames[frame + FRAME_PREV_SP];
+      List<String> elems = new ArrayList<>();
+      appendValues(elems, frameFp, top);
+      String noRv = frames[frame + FRAME_HAS_RV] != 0 ? "" : " (no rv)";
+      elems.add(String.format("{sp:%d, fp:%d, args:%d%s}", bottom, frames[frame + FRAME_PREV_FP], frames[frame + FRAME_N_ARGS], noRv));
+      appendValues(elems, bottom, frameFp);
+      frameDescs.add(Joiner.on(' ').join(elems));
+      top = bottom;
+      frameFp = frames[frame + FRAME_PREV_FP];
     }
+    List<String> elems = new ArrayList<>();
+    appendValues(elems, 0, top);
+    frameDescs.add(Joiner.on(' ').join(elems));
+    return Joiner.on(" \\\\ ").join(frameDescs);
   }
 
-  private Object uncheckedPop() {
-    try {
-      return states.remove(states.size() - 1);
-    } catch (Exception e) {
-      throw new IllegalStateException();
+  private void appendValues(List<String> out, int from, int to) {
+    for (int i = to - 1; i >= from; --i) {
+      out.add(String.format("[%s%d. %s]", (i == fp ? "*" : ""), i, values[i]));
     }
   }
 
   @VisibleForTesting
   Object snapshot() {
-    return ImmutableMap.of("fip", fip, "stack", ImmutableList.copyOf(states));
-  }
-
-  private static class FrameInfo {
-
-    private final int nArgs;
-    private final int prevFip;
-    private final int prevSp;
-    private final boolean hasRv;
-
-    private FrameInfo(int nArgs, int prevFip, int prevSp, boolean hasRv) {
-      this.nArgs = nArgs;
-      this.prevFip = prevFip;
-      this.prevSp = prevSp;
-      this.hasRv = hasRv;
-    }
-
-    @Override
-    public String toString() {
-      String noRv = hasRv ? "" : " (no rv)";
-      return String.format("{sp:%d, fip:%d, args:%d%s}", prevSp, prevFip, nArgs, noRv);
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) return true;
-      if (o == null || getClass() != o.getClass()) return false;
-
-      FrameInfo frameInfo = (FrameInfo) o;
-      return nArgs == frameInfo.nArgs && prevFip == frameInfo.prevFip && prevSp == frameInfo.prevSp;
-    }
-
-    @Override
-    public int hashCode() {
-      int result = nArgs;
-      result = 31 * result + prevFip;
-      result = 31 * result + prevSp;
-      return result;
-    }
+    return ImmutableMap.of(
+      "fp", fp,
+      "stack", Arrays.asList(Arrays.copyOf(values, sp)),
+      "frames", Ints.asList(Arrays.copyOf(frames, depth * FRAME_STRIDE)));
   }
 }
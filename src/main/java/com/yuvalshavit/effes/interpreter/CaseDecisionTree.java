@@ -0,0 +1,236 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.collect.ImmutableList;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A case's alternatives, compiled into a decision tree.
+ *
+ * Trying each alternative in turn means re-checking the same types over and over: a case with k alternatives and
+ * nested patterns costs O(k * depth). Instead, each node of the tree looks at one subterm of the value (identified by
+ * its path of ctor arg positions from the root), switches on its type, and moves on to the subtree for that type; a
+ * leaf says which alternative matched. Each subterm's type is checked at most once along the way, and when all of a
+ * switch's types are tagged, that check is an array lookup by the value's type tag.
+ *
+ * The tree is built using the usual pattern matrix approach: each row is an alternative's patterns for the subterms
+ * still to be looked at, and a switch specializes the rows for each type (and its args) that appears in that column,
+ * plus a default for the rows that had a wildcard there. Rows keep their order, so the first alternative that matches
+ * is still the one that wins.
+ */
+public final class CaseDecisionTree {
+  public static final int NO_MATCH = -1;
+  private static final Node noMatch = new Leaf(NO_MATCH);
+
+  private final Node root;
+
+  public CaseDecisionTree(List<PAlternative> alternatives) {
+    List<Row> rows = new ArrayList<>(alternatives.size());
+    for (int i = 0; i < alternatives.size(); ++i) {
+      rows.add(new Row(Collections.singletonList(alternatives.get(i)), i));
+    }
+    root = compile(Collections.singletonList(new int[0]), rows);
+  }
+
+  /**
+   * Returns the index of the first alternative that matches the value, or {@link #NO_MATCH}.
+   */
+  public int match(EfValue value) {
+    return root.match(value);
+  }
+
+  @Override
+  public String toString() {
+    return root.toString();
+  }
+
+  private static Node compile(List<int[]> paths, List<Row> rows) {
+    if (rows.isEmpty()) {
+      return noMatch;
+    }
+    Row first = rows.get(0);
+    int column = -1;
+    for (int i = 0; i < first.patterns.size(); ++i) {
+      if (!isWildcard(first.patterns.get(i))) {
+        column = i;
+        break;
+      }
+    }
+    if (column < 0) {
+      return new Leaf(first.alternative);
+    }
+
+    // every type that appears in this column, in order, with its args' patterns' count
+    Map<EfType.SimpleType, Integer> types = new LinkedHashMap<>();
+    for (Row row : rows) {
+      PAlternative pattern = row.patterns.get(column);
+      if (!isWildcard(pattern)) {
+        pattern.map(
+          (type, args) -> types.putIfAbsent(type.getGeneric(), args.size()),
+          name -> null);
+      }
+    }
+
+    int[] path = paths.get(column);
+    EfType.SimpleType[] switchTypes = new EfType.SimpleType[types.size()];
+    Node[] branches = new Node[types.size()];
+    int branch = 0;
+    for (Map.Entry<EfType.SimpleType, Integer> entry : types.entrySet()) {
+      EfType.SimpleType type = entry.getKey();
+      int nArgs = entry.getValue();
+      List<int[]> specializedPaths = new ArrayList<>(paths.size() - 1 + nArgs);
+      specializedPaths.addAll(paths.subList(0, column));
+      for (int i = 0; i < nArgs; ++i) {
+        int[] argPath = Arrays.copyOf(path, path.length + 1);
+        argPath[path.length] = i;
+        specializedPaths.add(argPath);
+      }
+      specializedPaths.addAll(paths.subList(column + 1, paths.size()));
+
+      List<Row> specializedRows = new ArrayList<>(rows.size());
+      for (Row row : rows) {
+        PAlternative pattern = row.patterns.get(column);
+        List<PAlternative> replacement = isWildcard(pattern)
+          ? Collections.nCopies(nArgs, PAlternative.any())
+          : pattern.map(
+              (patternType, args) -> patternType.getGeneric().equals(type) ? args : null,
+              name -> null);
+        if (replacement != null) {
+          specializedRows.add(row.replace(column, replacement));
+        }
+      }
+      switchTypes[branch] = type;
+      branches[branch] = compile(specializedPaths, specializedRows);
+      ++branch;
+    }
+
+    List<int[]> defaultPaths = new ArrayList<>(paths);
+    defaultPaths.remove(column);
+    List<Row> defaultRows = new ArrayList<>(rows.size());
+    for (Row row : rows) {
+      if (isWildcard(row.patterns.get(column))) {
+        defaultRows.add(row.replace(column, Collections.emptyList()));
+      }
+    }
+    return new Switch(path, switchTypes, branches, compile(defaultPaths, defaultRows));
+  }
+
+  private static boolean isWildcard(PAlternative pattern) {
+    return pattern.map((type, args) -> false, name -> true);
+  }
+
+  private static final class Row {
+    private final List<PAlternative> patterns;
+    private final int alternative;
+
+    private Row(List<PAlternative> patterns, int alternative) {
+      this.patterns = patterns;
+      this.alternative = alternative;
+    }
+
+    Row replace(int column, List<PAlternative> with) {
+      List<PAlternative> replaced = new ArrayList<>(patterns.size() - 1 + with.size());
+      replaced.addAll(patterns.subList(0, column));
+      replaced.addAll(with);
+      replaced.addAll(patterns.subList(column + 1, patterns.size()));
+      return new Row(ImmutableList.copyOf(replaced), alternative);
+    }
+  }
+
+  private static abstract class Node {
+    abstract int match(EfValue root);
+  }
+
+  private static final class Leaf extends Node {
+    private final int alternative;
+
+    private Leaf(int alternative) {
+      this.alternative = alternative;
+    }
+
+    @Override
+    int match(EfValue root) {
+      return alternative;
+    }
+
+    @Override
+    public String toString() {
+      return alternative == NO_MATCH
+        ? "<no match>"
+        : "#" + alternative;
+    }
+  }
+
+  private static final class Switch extends Node {
+    private final int[] path;
+    private final EfType.SimpleType[] types;
+    private final Node[] branches;
+    private final Node fallback;
+    @Nullable
+    private final Node[] branchesByTag; // indexed by tag - minTag; null if any of the types is untagged
+    private final int minTag;
+
+    private Switch(int[] path, EfType.SimpleType[] types, Node[] branches, Node fallback) {
+      this.path = path;
+      this.types = types;
+      this.branches = branches;
+      this.fallback = fallback;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (EfType.SimpleType type : types) {
+        min = Math.min(min, type.getTag());
+        max = Math.max(max, type.getTag());
+      }
+      if (types.length == 0 || min == EfType.SimpleType.UNTAGGED) {
+        branchesByTag = null;
+        minTag = 0;
+      } else {
+        branchesByTag = new Node[max - min + 1];
+        for (int i = 0; i < types.length; ++i) {
+          branchesByTag[types[i].getTag() - min] = branches[i];
+        }
+        minTag = min;
+      }
+    }
+
+    @Override
+    int match(EfValue root) {
+      EfValue value = root;
+      for (int pos : path) {
+        value = value.getArg(pos);
+      }
+      EfType.SimpleType type = value.getType();
+      if (branchesByTag != null) {
+        int idx = type.getTag() - minTag;
+        Node branch = (idx >= 0 && idx < branchesByTag.length)
+          ? branchesByTag[idx]
+          : null;
+        return (branch != null ? branch : fallback).match(root);
+      }
+      for (int i = 0; i < types.length; ++i) {
+        if (types[i].sameGeneric(type)) {
+          return branches[i].match(root);
+        }
+      }
+      return fallback.match(root);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("switch ").append(Arrays.toString(path)).append(" {");
+      for (int i = 0; i < types.length; ++i) {
+        sb.append(types[i].getName()).append(": ").append(branches[i]).append("; ");
+      }
+      return sb.append("_: ").append(fallback).append('}').toString();
+    }
+  }
+}
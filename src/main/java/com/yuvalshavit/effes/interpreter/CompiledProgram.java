@@ -0,0 +1,200 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.IrCompiler;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.Sources;
+import com.yuvalshavit.effes.compile.TypeRegistry;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CompileErrors;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import javax.annotation.Nullable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A program that's been parsed and compiled for one of the {@link Interpreter.Backend backends}, ready to be run as
+ * many times as you like.
+ *
+ * A compiled program is thread-safe: any number of threads can run it at once, each through its own
+ * {@link Execution}. Everything that a run changes (its stack and where it prints to) belongs to the execution; the
+ * compiled methods are never changed after construction, except that the TIERED backend swaps in generated bodies as
+ * methods get hot, which it does safely. The MEMOIZING backend's cache and the PROFILING backend's stats are shared
+ * by all runs.
+ */
+public final class CompiledProgram {
+  private final MethodsRegistry<ExecutableMethod> methodsRegistry;
+  private final CompileErrors errs;
+  @Nullable
+  private final Memoizer memoizer;
+  @Nullable
+  private final Profiler profiler;
+  private final int defaultMaxDepth;
+
+  public CompiledProgram(Sources sources, Interpreter.Backend backend) {
+    CompileErrors errs = new CompileErrors();
+
+    IrCompiler<ExecutableMethod> compiler = new IrCompiler<>(sources, CompiledProgram::getBuiltins, errs);
+    if (errs.hasErrors()) {
+      this.errs = errs;
+      this.methodsRegistry = null;
+      this.memoizer = null;
+      this.profiler = null;
+      this.defaultMaxDepth = CallStack.DEFAULT_MAX_DEPTH;
+      return;
+    }
+
+    MethodsRegistry<Block> compiledMethods = compiler.getCompiledMethods();
+    if (backend != Interpreter.Backend.PROFILING) {
+      // the profiler's stats are per method, so it wants to see every call
+      compiledMethods = Inliner.inline(compiledMethods, Inliner.DEFAULT_MAX_SIZE);
+    }
+    if (KnownCtorEliminator.ENABLED) {
+      compiledMethods = KnownCtorEliminator.eliminate(compiledMethods);
+    }
+    if (ConstantFolder.ENABLED) {
+      compiledMethods = ConstantFolder.fold(compiledMethods);
+    }
+
+    Function<MethodId, ExecutableMethod> builtInMethodsLookup = name -> {
+      EfMethod<? extends ExecutableMethod> method = compiler.getBuiltInMethods().getMethod(name);
+      assert method != null;
+      return method.getBody();
+    };
+
+    this.errs = null;
+    this.memoizer = backend == Interpreter.Backend.MEMOIZING
+      ? new Memoizer(compiledMethods, Memoizer.DEFAULT_MAX_SIZE)
+      : null;
+    this.profiler = backend == Interpreter.Backend.PROFILING
+      ? new Profiler()
+      : null;
+    switch (backend) {
+    case TREE_WALKER:
+    case MEMOIZING:
+    case PROFILING:
+      this.methodsRegistry = treeWalker(compiledMethods, builtInMethodsLookup, memoizer, profiler);
+      this.defaultMaxDepth = profiler != null
+        ? Profiler.DEFAULT_MAX_DEPTH
+        : CallStack.DEFAULT_MAX_DEPTH;
+      break;
+    case BYTECODE:
+      this.methodsRegistry = new BytecodeCompiler(builtInMethodsLookup).compile(compiledMethods);
+      this.defaultMaxDepth = BytecodeCompiler.DEFAULT_MAX_DEPTH;
+      break;
+    case FLAT:
+      this.methodsRegistry = new FlatCompiler(builtInMethodsLookup).compile(compiledMethods);
+      this.defaultMaxDepth = FlatCompiler.DEFAULT_MAX_DEPTH;
+      break;
+    case TIERED:
+      this.methodsRegistry = new TieredCompiler(builtInMethodsLookup, TieredCompiler.DEFAULT_THRESHOLD)
+        .compile(compiledMethods);
+      this.defaultMaxDepth = CallStack.DEFAULT_MAX_DEPTH; // any method might still be tree-walked
+      break;
+    default:
+      throw new AssertionError(backend);
+    }
+  }
+
+  private static MethodsRegistry<ExecutableMethod> treeWalker(
+    MethodsRegistry<Block> compiledMethods,
+    Function<MethodId, ExecutableMethod> builtInMethodsLookup,
+    @Nullable Memoizer memoizer,
+    @Nullable Profiler profiler)
+  {
+    if (profiler != null) {
+      Function<MethodId, ExecutableMethod> unprofiledBuiltIns = builtInMethodsLookup;
+      builtInMethodsLookup = id -> profiler.wrap(id, unprofiledBuiltIns.apply(id));
+    }
+    MethodsRegistry<ExecutableMethod> executableMethods = new MethodsRegistry<>();
+    Function<MethodId, ExecutableMethod> methodLookup = m -> {
+      EfMethod<? extends ExecutableMethod> method = executableMethods.getMethod(m);
+      assert method != null : m;
+      return method.getBody();
+    };
+    ExecutableExpressionCompiler executableExpressionCompiler = new ExecutableExpressionCompiler(
+      methodLookup,
+      builtInMethodsLookup,
+      m -> InvocationCounter.NONE,
+      memoizer);
+    ExecutableStatementCompiler executableStatementCompiler = new ExecutableStatementCompiler(
+      executableExpressionCompiler);
+    ExecutableBlockCompiler executableBlockCompiler = new ExecutableBlockCompiler(executableStatementCompiler);
+    executableMethods.addAll(compiledMethods, m -> executableBlockCompiler.apply(m.getBody()));
+    if (profiler != null) {
+      for (Map.Entry<? extends MethodId, ? extends EfMethod<? extends ExecutableMethod>> entry
+        : new ArrayList<>(executableMethods.getMethodsByName().entrySet())) {
+        MethodId id = entry.getKey();
+        executableMethods.replaceMethod(id, entry.getValue().tranform(m -> profiler.wrap(id, m.getBody())));
+      }
+    }
+    return executableMethods;
+  }
+
+  private static MethodsRegistry<ExecutableMethod> getBuiltins(TypeRegistry typeRegistry, CompileErrors errs) {
+    MethodsRegistry<ExecutableMethod> builtInMethods = new MethodsRegistry<>();
+    ExecutableBuiltInMethods builtIns = new ExecutableBuiltInMethods(typeRegistry);
+    builtIns.addTo(typeRegistry, builtInMethods, errs);
+    return builtInMethods;
+  }
+
+  public boolean hasErrors() {
+    return errs != null;
+  }
+
+  public CompileErrors getErrors() {
+    return errs != null
+      ? errs
+      : new CompileErrors();
+  }
+
+  /**
+   * Returns a new run of this program, which prints to the given stream. The output is buffered, and flushed at the end
+   * of each run. Each thread needs an execution of its own.
+   */
+  public Execution newExecution(PrintStream out) {
+    return newExecution(BufferedOutputSink.to(out));
+  }
+
+  /**
+   * Returns a new run of this program, which prints to the given sink. Each thread needs an execution of its own.
+   */
+  public Execution newExecution(OutputSink out) {
+    if (hasErrors()) {
+      throw new IllegalStateException("compilation had errors");
+    }
+    return new Execution(this, out);
+  }
+
+  /**
+   * Returns the memoizer, whose stats say how many calls it saved; or null if this isn't the MEMOIZING backend.
+   */
+  @Nullable
+  public Memoizer getMemoizer() {
+    return memoizer;
+  }
+
+  /**
+   * Returns the profiler, which has each method's stats; or null if this isn't the PROFILING backend.
+   */
+  @Nullable
+  public Profiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * How deep each run's calls may nest, unless its execution says otherwise. That depends on the backend, since some
+   * take far more JVM stack per call than others, and one doesn't take any.
+   */
+  public int getDefaultMaxDepth() {
+    return defaultMaxDepth;
+  }
+
+  @Nullable
+  EfMethod<? extends ExecutableMethod> getMethod(MethodId id) {
+    return methodsRegistry.getMethod(id);
+  }
+}
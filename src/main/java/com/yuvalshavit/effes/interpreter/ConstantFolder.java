@@ -0,0 +1,448 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.NodeStateListener;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.Node;
+import com.yuvalshavit.effes.compile.node.Statement;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+import com.yuvalshavit.util.Dispatcher;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Works out at compile time whatever doesn't depend on a method's args, so that the backends never see it:
+ * <ul>
+ *   <li>built-in Int operations on literals become literals (except division by zero, which is left to fail at run
+ *   time)</li>
+ *   <li>constructor invocations whose args are all constants become {@link Expression.ConstantExpression constants},
+ *   which every evaluation shares</li>
+ *   <li>a local that's assigned a constant is replaced by that constant wherever it's read; if nothing else ever
+ *   assigns to that local's slot, the assignment itself goes away</li>
+ *   <li>a case whose target is a constant is replaced by the alternative that it would match, with that
+ *   alternative's bindings replaced by the corresponding parts of the constant</li>
+ * </ul>
+ *
+ * The pass runs on the IR, between the {@link com.yuvalshavit.effes.compile.IrCompiler IrCompiler} and the backends,
+ * so all of them benefit. Effes has no loops, so within a block, statements run in the order they're written; a case
+ * alternative's effect on the locals is forgotten once we're out of the alternative, since we can't know at compile
+ * time whether it ran.
+ */
+public final class ConstantFolder {
+  /**
+   * Whether {@link CompiledProgram} runs this pass. It's on unless {@code effes.foldConstants} is {@code false}, which
+   * is handy for comparing a program's performance, or its IR, with and without it.
+   */
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("effes.foldConstants", "true"));
+
+  private final Multiset<Integer> assignmentsBySlot;
+  private Map<Integer, EfValue> constantLocals = new HashMap<>();
+
+  private ConstantFolder(Block body) {
+    this.assignmentsBySlot = assignmentsBySlot(body);
+  }
+
+  public static MethodsRegistry<Block> fold(MethodsRegistry<Block> methods) {
+    return methods.transform((id, method) -> fold(method.getBody()));
+  }
+
+  public static Block fold(Block body) {
+    return new ConstantFolder(body).block(body);
+  }
+
+  private Block block(Block block) {
+    List<Statement> folded = new ArrayList<>(block.statements().size());
+    boolean changed = false;
+    for (Statement statement : block.statements()) {
+      List<Statement> foldedStatement = statement(statement);
+      changed |= foldedStatement.size() != 1 || foldedStatement.get(0) != statement;
+      for (Statement s : foldedStatement) {
+        folded.add(s);
+        if (!EfType.VOID.equals(s.resultType())) {
+          // a case that we resolved at compile time may return where it used to only possibly return; anything
+          // after it can't be reached anymore
+          return new Block(block.token(), folded);
+        }
+      }
+    }
+    return changed
+      ? new Block(block.token(), folded)
+      : block;
+  }
+
+  // statements
+
+  private List<Statement> statement(Statement statement) {
+    return statementDispatcher.apply(this, statement);
+  }
+
+  private List<Statement> assignStat(Statement.AssignStatement stat) {
+    Expression value = expression(stat.value());
+    EfVar var = stat.var();
+    EfValue constant = constantValue(value);
+    if (constant != null) {
+      constantLocals.put(var.getArgPosition(), constant);
+      if (assignmentsBySlot.count(var.getArgPosition()) == 1) {
+        return Collections.emptyList(); // every read of this slot is of this var, and we've replaced them all
+      }
+    } else {
+      constantLocals.remove(var.getArgPosition());
+    }
+    return Collections.singletonList(value != stat.value()
+      ? new Statement.AssignStatement(stat.token(), var, value)
+      : stat);
+  }
+
+  private List<Statement> caseStat(Statement.CaseStatement stat) {
+    CaseConstruct<Block> construct = stat.construct();
+    Expression matchAgainst = expression(construct.getMatchAgainst());
+    Map<Integer, EfValue> bindings = new HashMap<>();
+    CaseConstruct.Alternative<Block> resolved = resolve(construct, matchAgainst, bindings);
+    if (resolved != null) {
+      return inAlternative(resolved, bindings, this::block).statements();
+    }
+    CaseConstruct<Block> folded = caseConstruct(construct, matchAgainst, this::block);
+    return Collections.singletonList(folded != construct
+      ? new Statement.CaseStatement(stat.token(), folded)
+      : stat);
+  }
+
+  private List<Statement> returnStat(Statement.ReturnStatement stat) {
+    Expression expression = expression(stat.getExpression());
+    return Collections.singletonList(expression != stat.getExpression()
+      ? new Statement.ReturnStatement(stat.token(), expression)
+      : stat);
+  }
+
+  private List<Statement> methodInvokeStat(Statement.MethodInvoke stat) {
+    Expression expression = expression(stat.methodExpr());
+    return Collections.singletonList(expression != stat.methodExpr()
+      ? new Statement.MethodInvoke(expression)
+      : stat);
+  }
+
+  // expressions
+
+  private Expression expression(Expression expression) {
+    return expressionDispatcher.apply(this, expression);
+  }
+
+  private Expression assignExpr(Expression.AssignExpression expr) {
+    Expression delegate = expression(expr.getDelegate());
+    constantLocals.remove(expr.getVar().getArgPosition());
+    return delegate != expr.getDelegate()
+      ? new Expression.AssignExpression(delegate, expr.getVar())
+      : expr;
+  }
+
+  private Expression caseExpr(Expression.CaseExpression expr) {
+    Expression intOp = intOp(IntOp.recognize(expr), expr);
+    if (intOp != null) {
+      return intOp;
+    }
+    CaseConstruct<Expression> construct = expr.construct();
+    Expression matchAgainst = expression(construct.getMatchAgainst());
+    Map<Integer, EfValue> bindings = new HashMap<>();
+    CaseConstruct.Alternative<Expression> resolved = resolve(construct, matchAgainst, bindings);
+    if (resolved != null) {
+      return inAlternative(resolved, bindings, this::expression);
+    }
+    CaseConstruct<Expression> folded = caseConstruct(construct, matchAgainst, this::expression);
+    return folded != construct
+      ? new Expression.CaseExpression(expr.token(), folded)
+      : expr;
+  }
+
+  private Expression castExpr(Expression.CastExpression expr) {
+    Expression delegate = expression(expr.getDelegate());
+    EfValue constant = constantValue(delegate);
+    if (constant != null && expr.resultType().isInstance(constant.getType())) {
+      return constant(expr, constant);
+    }
+    return delegate != expr.getDelegate()
+      ? new Expression.CastExpression(delegate, expr.resultType())
+      : expr;
+  }
+
+  private Expression ctorInvoke(Expression.CtorInvoke expr) {
+    List<Expression> args = expressions(expr.getArgs());
+    EfType.SimpleType type = expr.simpleType();
+    if (type != null) {
+      List<EfValue> constantArgs = new ArrayList<>(args.size());
+      for (Expression arg : args) {
+        EfValue constantArg = constantValue(arg);
+        if (constantArg == null) {
+          break;
+        }
+        constantArgs.add(constantArg);
+      }
+      if (constantArgs.size() == args.size()) {
+        return new Expression.ConstantExpression(expr, EfValue.of(type, constantArgs));
+      }
+    }
+    return args != expr.getArgs()
+      ? expr.withArgs(args)
+      : expr;
+  }
+
+  private Expression instanceArg(Expression.InstanceArg expr) {
+    Expression target = expression(expr.getTarget());
+    EfValue constant = constantValue(target);
+    int pos = expr.getArg().getArgPosition();
+    if (constant != null && pos < constant.arity()) {
+      return constant(expr, constant.getArg(pos));
+    }
+    return target != expr.getTarget()
+      ? new Expression.InstanceArg(expr.token(), target, expr.getArg())
+      : expr;
+  }
+
+  private Expression methodInvoke(Expression.MethodInvoke expr) {
+    List<Expression> args = expressions(expr.getArgs());
+    Expression.MethodInvoke folded = args != expr.getArgs()
+      ? expr.withArgs(args)
+      : expr;
+    Expression intOp = intOp(IntOp.recognize(folded), folded);
+    return intOp != null
+      ? intOp
+      : folded;
+  }
+
+  private Expression varExpr(Expression.VarExpression expr) {
+    EfValue constant = expr.isArg()
+      ? null
+      : constantLocals.get(expr.pos());
+    return constant != null
+      ? constant(expr, constant)
+      : expr;
+  }
+
+  private Expression unchanged(Expression expr) {
+    return expr;
+  }
+
+  /**
+   * Returns the args, folded; or the same list, if none of them changed.
+   */
+  private List<Expression> expressions(List<Expression> expressions) {
+    List<Expression> folded = new ArrayList<>(expressions.size());
+    boolean changed = false;
+    for (Expression expression : expressions) {
+      Expression f = expression(expression);
+      changed |= f != expression;
+      folded.add(f);
+    }
+    return changed
+      ? folded
+      : expressions;
+  }
+
+  /**
+   * If the invocation is a built-in Int operation whose operands both fold to literals, returns its result as a
+   * literal. Otherwise, returns null.
+   */
+  @Nullable
+  private Expression intOp(@Nullable IntOp.Invocation invocation, Expression source) {
+    if (invocation == null) {
+      return null;
+    }
+    Expression lhs = expression(invocation.lhs());
+    Expression rhs = expression(invocation.rhs());
+    if (!(lhs instanceof Expression.IntLiteral && rhs instanceof Expression.IntLiteral)) {
+      return null;
+    }
+    long rhsValue = ((Expression.IntLiteral) rhs).getValue();
+    if (invocation.op() == IntOp.DIV && rhsValue == 0) {
+      return null;
+    }
+    long value = invocation.op().apply(((Expression.IntLiteral) lhs).getValue(), rhsValue);
+    return new Expression.IntLiteral(source.token(), value);
+  }
+
+  // cases
+
+  private <N extends Node> CaseConstruct<N> caseConstruct(CaseConstruct<N> construct,
+                                                          Expression matchAgainst,
+                                                          Function<N, N> folder) {
+    List<CaseConstruct.Alternative<N>> alternatives = new ArrayList<>(construct.getPatterns().size());
+    boolean changed = matchAgainst != construct.getMatchAgainst();
+    for (CaseConstruct.Alternative<N> alternative : construct.getPatterns()) {
+      N ifMatched = inAlternative(alternative, Collections.emptyMap(), folder);
+      changed |= ifMatched != alternative.getIfMatched();
+      alternatives.add(ifMatched != alternative.getIfMatched()
+        ? new CaseConstruct.Alternative<>(alternative.getPAlternative(), ifMatched, alternative.bindings())
+        : alternative);
+    }
+    return changed
+      ? new CaseConstruct<>(matchAgainst, alternatives)
+      : construct;
+  }
+
+  /**
+   * Folds an alternative's result, and then forgets whatever we learned about the locals within it (as well as
+   * anything that was assigned in it, since we don't know whether it ran). Its bindings hide whatever we knew about
+   * their slots, unless we've resolved the case at compile time, in which case they have the given values.
+   */
+  private <N extends Node> N inAlternative(CaseConstruct.Alternative<N> alternative,
+                                           Map<Integer, EfValue> resolvedBindings,
+                                           Function<N, N> folder) {
+    Map<Integer, EfValue> outer = new HashMap<>(constantLocals);
+    alternative.bindings().values().forEach(v -> constantLocals.remove(v.getArgPosition()));
+    constantLocals.putAll(resolvedBindings);
+    N folded = folder.apply(alternative.getIfMatched());
+    alternative.bindings().values().forEach(v -> outer.remove(v.getArgPosition()));
+    forEachAssignedSlot(alternative.getIfMatched(), outer::remove);
+    constantLocals = outer;
+    return folded;
+  }
+
+  /**
+   * If the case's target is a constant, returns the alternative that it matches, and puts the values of that
+   * alternative's bindings into the given map. Otherwise, returns null.
+   */
+  @Nullable
+  private <N extends Node> CaseConstruct.Alternative<N> resolve(CaseConstruct<N> construct,
+                                                                Expression matchAgainst,
+                                                                Map<Integer, EfValue> bindingsOut) {
+    EfVar matchAgainstVar = null;
+    if (matchAgainst instanceof Expression.AssignExpression) {
+      // the compiler's dispatch on a method's target; its var is synthetic, and only the alternatives read it
+      matchAgainstVar = ((Expression.AssignExpression) matchAgainst).getVar();
+      if (!matchAgainstVar.getName().startsWith("$")) {
+        return null;
+      }
+      matchAgainst = ((Expression.AssignExpression) matchAgainst).getDelegate();
+    }
+    EfValue value = constantValue(matchAgainst);
+    if (value == null) {
+      return null;
+    }
+    for (CaseConstruct.Alternative<N> alternative : construct.getPatterns()) {
+      if (alternative.getPAlternative().matches(value)) {
+        if (matchAgainstVar != null) {
+          bindingsOut.put(matchAgainstVar.getArgPosition(), value);
+        }
+        bind(alternative.getPAlternative(), alternative.bindings(), value, bindingsOut);
+        return alternative;
+      }
+    }
+    return null; // let it fail at run time, same as it always has
+  }
+
+  private static void bind(PAlternative alternative, Map<String, EfVar> bindings, EfValue value,
+                           Map<Integer, EfValue> out) {
+    alternative.map(
+      (type, args) -> {
+        for (int i = 0; i < args.size(); ++i) {
+          bind(args.get(i), bindings, value.getArg(i), out);
+        }
+        return null;
+      },
+      name -> {
+        EfVar var = name != null
+          ? bindings.get(name)
+          : null;
+        if (var != null) {
+          out.put(var.getArgPosition(), value);
+        }
+        return null;
+      });
+  }
+
+  // constants
+
+  @Nullable
+  private static EfValue constantValue(Expression expression) {
+    if (expression instanceof Expression.IntLiteral) {
+      return EfValue.of(((Expression.IntLiteral) expression).getValue());
+    } else if (expression instanceof Expression.StringLiteral) {
+      return EfValue.of(((Expression.StringLiteral) expression).getValue());
+    } else if (expression instanceof Expression.ConstantExpression) {
+      return ((Expression.ConstantExpression) expression).getValue();
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the constant as an expression. Ints become literals, since the backends know how to do arithmetic on
+   * those without boxing them.
+   */
+  private static Expression constant(Expression source, EfValue value) {
+    return value instanceof EfValue.LongValue
+      ? new Expression.IntLiteral(source.token(), ((EfValue.LongValue) value).getValue())
+      : new Expression.ConstantExpression(source, value);
+  }
+
+  /**
+   * Counts the assignments to each local slot. Slots are reused once a var goes out of scope, so a slot with exactly
+   * one assignment is the only kind whose every read we know to be of that one var.
+   */
+  private static Multiset<Integer> assignmentsBySlot(Block body) {
+    Multiset<Integer> assignments = HashMultiset.create();
+    forEachAssignedSlot(body, assignments::add);
+    return assignments;
+  }
+
+  /**
+   * Calls the consumer with the slot of every local that's assigned within the node, including by case bindings.
+   */
+  private static void forEachAssignedSlot(Node root, IntConsumer consumer) {
+    Consumer<CaseConstruct<?>> caseBindings = construct -> construct.getPatterns().forEach(
+      p -> p.bindings().values().forEach(v -> consumer.accept(v.getArgPosition())));
+    NodeStateListener.accept(root, child -> {
+      EfVar var = child.var();
+      if (var != null && !var.isArg()) {
+        consumer.accept(var.getArgPosition());
+      }
+      if (child instanceof Expression.CaseExpression) {
+        caseBindings.accept(((Expression.CaseExpression) child).construct());
+      } else if (child instanceof Statement.CaseStatement) {
+        caseBindings.accept(((Statement.CaseStatement) child).construct());
+      }
+    });
+  }
+
+  private static final Dispatcher<ConstantFolder, Expression, Expression> expressionDispatcher =
+    Dispatcher.builder(ConstantFolder.class, Expression.class, Expression.class)
+      .put(Expression.AssignExpression.class, ConstantFolder::assignExpr)
+      .put(Expression.CaseExpression.class, ConstantFolder::caseExpr)
+      .put(Expression.CastExpression.class, ConstantFolder::castExpr)
+      .put(Expression.ConstantExpression.class, ConstantFolder::unchanged)
+      .put(Expression.CtorInvoke.class, ConstantFolder::ctorInvoke)
+      .put(Expression.InstanceArg.class, ConstantFolder::instanceArg)
+      .put(Expression.IntLiteral.class, ConstantFolder::unchanged)
+      .put(Expression.MethodInvoke.class, ConstantFolder::methodInvoke)
+      .put(Expression.StringLiteral.class, ConstantFolder::unchanged)
+      .put(Expression.UnrecognizedExpression.class, ConstantFolder::unchanged)
+      .put(Expression.VarExpression.class, ConstantFolder::varExpr)
+      .build((me, e) -> {
+        throw new AssertionError(e);
+      });
+
+  @SuppressWarnings("unchecked")
+  private static final Dispatcher<ConstantFolder, Statement, List<Statement>> statementDispatcher =
+    Dispatcher.builder(ConstantFolder.class, Statement.class, (Class<List<Statement>>) (Class<?>) List.class)
+      .put(Statement.AssignStatement.class, ConstantFolder::assignStat)
+      .put(Statement.CaseStatement.class, ConstantFolder::caseStat)
+      .put(Statement.MethodInvoke.class, ConstantFolder::methodInvokeStat)
+      .put(Statement.ReturnStatement.class, ConstantFolder::returnStat)
+      .put(Statement.UnrecognizedStatement.class, (me, s) -> Collections.singletonList(s))
+      .build((me, s) -> {
+        throw new AssertionError(s);
+      });
+}
@@ -0,0 +1,270 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The methods with a given name, indexed by the tag of the type that each is defined on. A call on a disjunctive
+ * target looks up its method here by the target's runtime type, which is a single array lookup, rather than matching
+ * the target against each of the disjunction's alternatives.
+ *
+ * There's one table per method name, shared by every call site that invokes a method of that name. A call site only
+ * ever looks up types from its own target's disjunction, so it doesn't matter that the table may also have entries
+ * that were put there by other call sites. A type has just one method of a given name, though, so every call site
+ * that puts an entry for it must agree on which method that is.
+ *
+ * The tree-walker (and so the TIERED and MEMOIZING backends, and PROFILING) and FLAT both dispatch through these
+ * tables; see {@link #recognize}. BYTECODE compiles the case as it is.
+ */
+public final class DispatchTable {
+  private final String methodName;
+  private Entry[] byTag = new Entry[0];
+
+  public DispatchTable(String methodName) {
+    this.methodName = methodName;
+  }
+
+  /**
+   * Adds the entry for a type, unless the table already has one for the same method.
+   *
+   * @throws IllegalStateException if the table already has an entry for the type, but for a different method
+   */
+  public void put(EfType.SimpleType type, Entry entry) {
+    int tag = type.getTag();
+    if (tag == EfType.SimpleType.UNTAGGED) {
+      throw new IllegalArgumentException("can't dispatch on an untagged type: " + type);
+    }
+    if (tag >= byTag.length) {
+      byTag = Arrays.copyOf(byTag, tag + 1);
+    }
+    checkState(
+      byTag[tag] == null || byTag[tag].methodId().equals(entry.methodId()),
+      "%s already has %s for %s, so it can't also have %s",
+      this,
+      byTag[tag] == null ? null : byTag[tag].methodId(),
+      type,
+      entry.methodId());
+    if (byTag[tag] == null) {
+      byTag[tag] = entry;
+    }
+  }
+
+  @Nullable
+  public Entry get(EfType.SimpleType type) {
+    int tag = type.getTag();
+    return tag >= 0 && tag < byTag.length
+      ? byTag[tag]
+      : null;
+  }
+
+  @Override
+  public String toString() {
+    return "dispatch table for " + methodName;
+  }
+
+  /**
+   * If the case is how the compiler translates a call on a disjunctive target (one alternative per type, each of which
+   * calls that type's method of the same name with the same args), returns that call. Otherwise, returns null.
+   */
+  @Nullable
+  public static Site recognize(Expression.CaseExpression expr) {
+    Expression matchAgainst = expr.construct().getMatchAgainst();
+    EfVar receiver;
+    if (matchAgainst instanceof Expression.VarExpression) {
+      receiver = ((Expression.VarExpression) matchAgainst).getVar();
+    } else if (matchAgainst instanceof Expression.AssignExpression) {
+      receiver = ((Expression.AssignExpression) matchAgainst).getVar();
+    } else {
+      return null;
+    }
+    List<CaseConstruct.Alternative<Expression>> alternatives = expr.construct().getPatterns();
+    List<EfType.SimpleType> types = new ArrayList<>(alternatives.size());
+    List<Expression.MethodInvoke> invokes = new ArrayList<>(alternatives.size());
+    for (CaseConstruct.Alternative<Expression> alternative : alternatives) {
+      EfType.SimpleType type = typeOnly(alternative.getPAlternative());
+      if (type == null
+        || type.getTag() == EfType.SimpleType.UNTAGGED
+        || !alternative.bindings().isEmpty()
+        || !(alternative.getIfMatched() instanceof Expression.MethodInvoke)) {
+        return null;
+      }
+      Expression.MethodInvoke invoke = (Expression.MethodInvoke) alternative.getIfMatched();
+      MethodId id = invoke.getMethodId();
+      if (invoke.isBuiltIn()
+        || id.getDefinedOn() == null
+        || !type.sameGeneric(id.getDefinedOn())
+        || invoke.getArgs().isEmpty()
+        || !isReceiver(invoke.getArgs().get(0), receiver)) {
+        return null;
+      }
+      if (!invokes.isEmpty()) {
+        Expression.MethodInvoke first = invokes.get(0);
+        if (!id.getName().equals(first.getMethodId().getName())
+          || EfType.VOID.equals(invoke.resultType()) != EfType.VOID.equals(first.resultType())
+          || !sameArgs(first.getArgs(), invoke.getArgs())) {
+          return null;
+        }
+      }
+      types.add(type);
+      invokes.add(invoke);
+    }
+    return invokes.isEmpty()
+      ? null
+      : new Site(matchAgainst, types, invokes);
+  }
+
+  /**
+   * If the alternative matches a simple type without looking at (or binding) its args, returns that type.
+   */
+  @Nullable
+  private static EfType.SimpleType typeOnly(PAlternative alternative) {
+    return alternative.map(
+      (type, args) -> args.stream().allMatch(arg -> arg.map((t, a) -> false, name -> name == null))
+        ? type
+        : null,
+      name -> null);
+  }
+
+  private static boolean isReceiver(Expression arg, EfVar receiver) {
+    if (!(arg instanceof Expression.CastExpression)) {
+      return false;
+    }
+    Expression delegate = ((Expression.CastExpression) arg).getDelegate();
+    return delegate instanceof Expression.VarExpression
+      && ((Expression.VarExpression) delegate).isArg() == receiver.isArg()
+      && ((Expression.VarExpression) delegate).pos() == receiver.getArgPosition();
+  }
+
+  /**
+   * Whether the two calls' args (other than their receivers) are the same. The compiler shares them between the
+   * alternatives, but the IR passes may have rebuilt each alternative's copy; vars and constants are still easy to
+   * compare.
+   */
+  private static boolean sameArgs(List<Expression> first, List<Expression> second) {
+    if (first.size() != second.size()) {
+      return false;
+    }
+    for (int i = 1; i < first.size(); ++i) {
+      if (!sameArg(first.get(i), second.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean sameArg(Expression first, Expression second) {
+    if (first == second) {
+      return true;
+    } else if (first instanceof Expression.VarExpression && second instanceof Expression.VarExpression) {
+      Expression.VarExpression firstVar = (Expression.VarExpression) first;
+      Expression.VarExpression secondVar = (Expression.VarExpression) second;
+      return firstVar.isArg() == secondVar.isArg() && firstVar.pos() == secondVar.pos();
+    } else if (first instanceof Expression.IntLiteral && second instanceof Expression.IntLiteral) {
+      return ((Expression.IntLiteral) first).getValue() == ((Expression.IntLiteral) second).getValue();
+    } else if (first instanceof Expression.StringLiteral && second instanceof Expression.StringLiteral) {
+      return ((Expression.StringLiteral) first).getValue().equals(((Expression.StringLiteral) second).getValue());
+    } else if (first instanceof Expression.ConstantExpression && second instanceof Expression.ConstantExpression) {
+      return Objects.equals(
+        ((Expression.ConstantExpression) first).getValue(),
+        ((Expression.ConstantExpression) second).getValue());
+    }
+    return false;
+  }
+
+  /**
+   * A call on a disjunctive target, as {@link #recognize} found it.
+   */
+  public static final class Site {
+    private final Expression target;
+    private final List<EfType.SimpleType> types;
+    private final List<Expression.MethodInvoke> invokes;
+
+    private Site(Expression target, List<EfType.SimpleType> types, List<Expression.MethodInvoke> invokes) {
+      this.target = target;
+      this.types = types;
+      this.invokes = invokes;
+    }
+
+    /**
+     * The expression whose runtime type picks the method. It either is, or is assigned to, the var that the receiver
+     * is read back from.
+     */
+    public Expression target() {
+      return target;
+    }
+
+    /**
+     * The invocation in each of the case's alternatives.
+     */
+    public List<Expression.MethodInvoke> invokes() {
+      return invokes;
+    }
+
+    /**
+     * The args that every alternative passes, starting with the receiver. The table has already picked the method by
+     * the receiver's type, so the receiver is read back without the downcast that the alternatives check.
+     */
+    public List<Expression> args() {
+      List<Expression> firstArgs = invokes.get(0).getArgs();
+      List<Expression> args = new ArrayList<>(firstArgs.size());
+      args.add(((Expression.CastExpression) firstArgs.get(0)).getDelegate());
+      args.addAll(firstArgs.subList(1, firstArgs.size()));
+      return args;
+    }
+
+    public boolean hasRv() {
+      return !EfType.VOID.equals(invokes.get(0).resultType());
+    }
+
+    /**
+     * Adds an entry to the table (from the given map, keyed by method name) for each of the site's types, and returns
+     * that table.
+     */
+    public DispatchTable addTo(Map<String, DispatchTable> tables, Function<MethodId, Entry> entries) {
+      DispatchTable table = tables.computeIfAbsent(invokes.get(0).getMethodId().getName(), DispatchTable::new);
+      for (int i = 0; i < invokes.size(); ++i) {
+        table.put(types.get(i), entries.apply(invokes.get(i).getMethodId()));
+      }
+      return table;
+    }
+  }
+
+  public static final class Entry {
+    private final MethodId methodId;
+    private final Supplier<ExecutableMethod> body;
+    private final InvocationCounter counter;
+
+    public Entry(MethodId methodId, Supplier<ExecutableMethod> body, InvocationCounter counter) {
+      this.methodId = methodId;
+      this.body = body;
+      this.counter = counter;
+    }
+
+    public MethodId methodId() {
+      return methodId;
+    }
+
+    public ExecutableMethod body() {
+      return body.get();
+    }
+
+    public InvocationCounter counter() {
+      return counter;
+    }
+  }
+}
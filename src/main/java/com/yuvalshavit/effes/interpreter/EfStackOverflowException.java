@@ -0,0 +1,13 @@
+package com.yuvalshavit.effes.interpreter;
+
+public class EfStackOverflowException extends RuntimeException {
+  private static final long serialVersionUID = 4391285517405713920L;
+
+  EfStackOverflowException(int maxDepth) {
+    super("stack overflow: exceeded maximum call depth of " + maxDepth);
+  }
+
+  EfStackOverflowException(StackOverflowError cause) {
+    super("stack overflow: ran out of JVM stack", cause);
+  }
+}
@@ -1,21 +1,122 @@
 package com.yuvalshavit.effes.interpreter;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.primitives.Longs;
 import com.yuvalshavit.effes.compile.node.BuiltinType;
 import com.yuvalshavit.effes.compile.node.EfType;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * A runtime value.
+ *
+ * Values are immutable, so we can share them freely. Every value of a type whose ctor has no args is the same
+ * (canonical) instance, and Ints within a configurable range come from a cache; both of those go a long way towards
+ * cutting down on allocations, since booleans, list terminators and small counters are everywhere. The cache's range
+ * is set by the {@code effes.intCache.low} and {@code effes.intCache.high} system properties (both inclusive).
+ *
+ * Values of user-defined types keep their ctor args in fields, with a class per arity up to
+ * {@link #MAX_FIXED_ARITY}; only larger ctors get an array. A cons cell is then a single object. Use
+ * {@link #arity()} and {@link #getArg(int)} to get at the args; {@link #getState()} is a convenience view.
+ *
+ * If the {@code effes.hashCons} system property is set, values of user-defined types are also hash-consed: building
+ * a value that's equal to one that's still live returns that existing instance. Since a value's args were themselves
+ * interned when they were built, comparing a new value to an existing one only takes an identity check per arg.
+ * This trades a lookup per ctor call for a smaller heap when a program builds lots of identical structures.
+ */
 public abstract class EfValue {
+  public static final long INT_CACHE_LOW = Long.getLong("effes.intCache.low", -128);
+  public static final long INT_CACHE_HIGH = Long.getLong("effes.intCache.high", 1024);
+  public static final int MAX_FIXED_ARITY = 4;
+  public static final boolean HASH_CONS = Boolean.getBoolean("effes.hashCons");
+
+  private static final LongValue[] intCache = createIntCache();
+
+  // weak values, so that we don't hold on to every type of every program that's ever run
+  private static final LoadingCache<EfType.SimpleType, StandardValue> nullaryValues = CacheBuilder.newBuilder()
+    .weakValues()
+    .build(CacheLoader.from(Arity0::new));
+
+  // weak, so that values can still be collected once the program's done with them
+  private static final Interner<StandardValue> hashConsTable = Interners.newWeakInterner();
+
+  // see Profiler. The flag is only on while a profiled program runs, so the counter costs nothing otherwise.
+  private static volatile boolean countAllocations;
+  private static int allocationCounters; // guarded by EfValue.class
+  private static final LongAdder allocations = new LongAdder();
+
   private final EfType.SimpleType type;
-  private final List<EfValue> state;
 
   public static EfValue of(EfType.SimpleType type, List<EfValue> state) {
-    return new StandardValue(type, state);
+    switch (state.size()) {
+      case 0:
+        return of(type);
+      case 1:
+        return of(type, state.get(0));
+      case 2:
+        return of(type, state.get(0), state.get(1));
+      case 3:
+        return of(type, state.get(0), state.get(1), state.get(2));
+      case 4:
+        return of(type, state.get(0), state.get(1), state.get(2), state.get(3));
+      default:
+        return intern(new ArityN(type, state.toArray(new EfValue[state.size()])));
+    }
+  }
+
+  /**
+   * Returns a value with the given ctor args. The array is copied only if the value doesn't take ownership of it,
+   * so callers mustn't modify it afterwards.
+   */
+  public static EfValue of(EfType.SimpleType type, EfValue[] args) {
+    return args.length > MAX_FIXED_ARITY
+      ? intern(new ArityN(type, args))
+      : of(type, Arrays.asList(args));
+  }
+
+  /**
+   * Returns the canonical value of a type whose ctor takes no args.
+   */
+  public static EfValue of(EfType.SimpleType type) {
+    return nullaryValues.getUnchecked(type);
+  }
+
+  public static EfValue of(EfType.SimpleType type, EfValue arg0) {
+    return intern(new Arity1(type, arg0));
+  }
+
+  public static EfValue of(EfType.SimpleType type, EfValue arg0, EfValue arg1) {
+    return intern(new Arity2(type, arg0, arg1));
+  }
+
+  public static EfValue of(EfType.SimpleType type, EfValue arg0, EfValue arg1, EfValue arg2) {
+    return intern(new Arity3(type, arg0, arg1, arg2));
+  }
+
+  public static EfValue of(EfType.SimpleType type, EfValue arg0, EfValue arg1, EfValue arg2, EfValue arg3) {
+    return intern(new Arity4(type, arg0, arg1, arg2, arg3));
+  }
+  
+  private static EfValue intern(StandardValue value) {
+    return HASH_CONS
+      ? hashCons(value)
+      : value;
+  }
+
+  @VisibleForTesting
+  static StandardValue hashCons(StandardValue value) {
+    return hashConsTable.intern(value);
   }
   
   public static EfValue of(String value) {
@@ -23,31 +124,106 @@ public abstract class EfValue {
   }
   
   public static EfValue of(long value) {
-    return new LongValue(value);
+    return (value >= INT_CACHE_LOW && value <= INT_CACHE_HIGH)
+      ? intCache[(int) (value - INT_CACHE_LOW)]
+      : new LongValue(value);
   }
 
-  private EfValue(EfType.SimpleType type, List<EfValue> state) {
+  private static LongValue[] createIntCache() {
+    if (INT_CACHE_HIGH < INT_CACHE_LOW - 1 || INT_CACHE_HIGH - INT_CACHE_LOW >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(String.format("invalid int cache range: [%d, %d]", INT_CACHE_LOW, INT_CACHE_HIGH));
+    }
+    LongValue[] cache = new LongValue[(int) (INT_CACHE_HIGH - INT_CACHE_LOW + 1)];
+    for (int i = 0; i < cache.length; ++i) {
+      cache[i] = new LongValue(INT_CACHE_LOW + i);
+    }
+    return cache;
+  }
+
+  private EfValue(EfType.SimpleType type) {
     this.type = Preconditions.checkNotNull(type);
-    this.state = ImmutableList.copyOf(state);
+    if (countAllocations) {
+      allocations.increment();
+    }
+  }
+
+  /**
+   * Turns allocation counting on or off for one caller. Counting stays on until every caller that turned it on has
+   * turned it off again, so that profiled runs on several threads don't switch it off under each other.
+   */
+  static synchronized void countAllocations(boolean enabled) {
+    allocationCounters += enabled ? 1 : -1;
+    assert allocationCounters >= 0 : allocationCounters;
+    countAllocations = allocationCounters > 0;
+  }
+
+  /**
+   * The number of values built while allocation counting was on.
+   */
+  static long allocations() {
+    return allocations.sum();
   }
 
   public EfType.SimpleType getType() {
     return type;
   }
-  
+
+  /**
+   * The number of ctor args this value has.
+   */
+  public int arity() {
+    return 0;
+  }
+
+  public EfValue getArg(int pos) {
+    throw new IndexOutOfBoundsException(Integer.toString(pos));
+  }
+
+  /**
+   * Returns a view of this value's ctor args. This allocates, so prefer {@link #arity()} and {@link #getArg(int)}.
+   */
   public List<EfValue> getState() {
-    return state;
+    if (arity() == 0) {
+      return Collections.emptyList();
+    }
+    return new AbstractList<EfValue>() {
+      @Override
+      public EfValue get(int index) {
+        return getArg(index);
+      }
+
+      @Override
+      public int size() {
+        return arity();
+      }
+    };
   }
 
   public abstract String getUserVisibleString();
 
-  public static final class StandardValue extends EfValue {
+  /**
+   * A value of a user-defined type.
+   *
+   * Each value's hash is computed when it's built, from its args' (already computed) hashes; so hashing is O(1), and
+   * {@link #equals(Object)} can rule out most unequal values without walking their structure.
+   */
+  public static abstract class StandardValue extends EfValue {
+    private final int hash;
     
-    private StandardValue(EfType.SimpleType type, List<EfValue> state) {
-      super(type, state);
+    private StandardValue(EfType.SimpleType type, int hash) {
+      super(type);
+      this.hash = hash;
       // TODO also check types against expected
     }
 
+    static int hash(EfType.SimpleType type) {
+      return type.hashCode();
+    }
+
+    static int hash(int partial, EfValue arg) {
+      return 31 * partial + arg.hashCode();
+    }
+
     @Override
     public String getUserVisibleString() {
       return toString();
@@ -55,7 +231,7 @@ public abstract class EfValue {
 
     @Override
     public String toString() {
-      if (getState().isEmpty()) {
+      if (arity() == 0) {
         return getType().getName();
       }
       StringBuilder sb = new StringBuilder(getType().getName()).append('(');
@@ -66,21 +242,190 @@ public abstract class EfValue {
 
     @Override
     public boolean equals(Object o) {
-      if (this == o)
-        return true;
-      if (o == null || o.getClass() != StandardValue.class)
-        return false;
-
-      StandardValue efValue = (StandardValue) o;
-      return getState().equals(efValue.getState()) && getType().equals(efValue.getType());
+      // The last arg is compared by looping rather than recursing, so that long lists don't overflow the stack.
+      Object other = o;
+      for (StandardValue me = this; ; ) {
+        if (me == other)
+          return true;
+        if (!(other instanceof StandardValue))
+          return false;
 
+        StandardValue efValue = (StandardValue) other;
+        int arity = me.arity();
+        if (me.hash != efValue.hash || arity == 0 || arity != efValue.arity()) {
+          return false; // nullary values are canonical, so if they were equal they'd have been identical
+        }
+        if (!me.getType().equals(efValue.getType())) {
+          return false;
+        }
+        for (int i = 0; i < arity - 1; ++i) {
+          if (!me.getArg(i).equals(efValue.getArg(i))) {
+            return false;
+          }
+        }
+        EfValue myLast = me.getArg(arity - 1);
+        other = efValue.getArg(arity - 1);
+        if (!(myLast instanceof StandardValue)) {
+          return myLast.equals(other);
+        }
+        me = (StandardValue) myLast;
+      }
     }
 
     @Override
     public int hashCode() {
-      int result = getType().hashCode();
-      result = 31 * result + getState().hashCode();
-      return result;
+      return hash;
+    }
+  }
+
+  private static final class Arity0 extends StandardValue {
+    private Arity0(EfType.SimpleType type) {
+      super(type, hash(type));
+    }
+  }
+
+  private static final class Arity1 extends StandardValue {
+    private final EfValue arg0;
+
+    private Arity1(EfType.SimpleType type, EfValue arg0) {
+      super(type, hash(hash(type), arg0));
+      this.arg0 = arg0;
+    }
+
+    @Override
+    public int arity() {
+      return 1;
+    }
+
+    @Override
+    public EfValue getArg(int pos) {
+      if (pos == 0) {
+        return arg0;
+      }
+      throw new IndexOutOfBoundsException(Integer.toString(pos));
+    }
+  }
+
+  private static final class Arity2 extends StandardValue {
+    private final EfValue arg0;
+    private final EfValue arg1;
+
+    private Arity2(EfType.SimpleType type, EfValue arg0, EfValue arg1) {
+      super(type, hash(hash(hash(type), arg0), arg1));
+      this.arg0 = arg0;
+      this.arg1 = arg1;
+    }
+
+    @Override
+    public int arity() {
+      return 2;
+    }
+
+    @Override
+    public EfValue getArg(int pos) {
+      switch (pos) {
+        case 0:
+          return arg0;
+        case 1:
+          return arg1;
+        default:
+          throw new IndexOutOfBoundsException(Integer.toString(pos));
+      }
+    }
+  }
+
+  private static final class Arity3 extends StandardValue {
+    private final EfValue arg0;
+    private final EfValue arg1;
+    private final EfValue arg2;
+
+    private Arity3(EfType.SimpleType type, EfValue arg0, EfValue arg1, EfValue arg2) {
+      super(type, hash(hash(hash(hash(type), arg0), arg1), arg2));
+      this.arg0 = arg0;
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+    }
+
+    @Override
+    public int arity() {
+      return 3;
+    }
+
+    @Override
+    public EfValue getArg(int pos) {
+      switch (pos) {
+        case 0:
+          return arg0;
+        case 1:
+          return arg1;
+        case 2:
+          return arg2;
+        default:
+          throw new IndexOutOfBoundsException(Integer.toString(pos));
+      }
+    }
+  }
+
+  private static final class Arity4 extends StandardValue {
+    private final EfValue arg0;
+    private final EfValue arg1;
+    private final EfValue arg2;
+    private final EfValue arg3;
+
+    private Arity4(EfType.SimpleType type, EfValue arg0, EfValue arg1, EfValue arg2, EfValue arg3) {
+      super(type, hash(hash(hash(hash(hash(type), arg0), arg1), arg2), arg3));
+      this.arg0 = arg0;
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+      this.arg3 = arg3;
+    }
+
+    @Override
+    public int arity() {
+      return 4;
+    }
+
+    @Override
+    public EfValue getArg(int pos) {
+      switch (pos) {
+        case 0:
+          return arg0;
+        case 1:
+          return arg1;
+        case 2:
+          return arg2;
+        case 3:
+          return arg3;
+        default:
+          throw new IndexOutOfBoundsException(Integer.toString(pos));
+      }
+    }
+  }
+
+  private static final class ArityN extends StandardValue {
+    private final EfValue[] args;
+
+    private ArityN(EfType.SimpleType type, EfValue[] args) {
+      super(type, hashOf(type, args));
+      this.args = args;
+    }
+
+    private static int hashOf(EfType.SimpleType type, EfValue[] args) {
+      int hash = hash(type);
+      for (EfValue arg : args) {
+        hash = hash(hash, arg);
+      }
+      return hash;
+    }
+
+    @Override
+    public int arity() {
+      return args.length;
+    }
+
+    @Override
+    public EfValue getArg(int pos) {
+      return args[pos];
     }
   }
   
@@ -90,7 +435,7 @@ public abstract class EfValue {
     public abstract int hashCode();
     
     protected BuiltinValue(EfType.SimpleType type) {
-      super(type, Collections.emptyList());
+      super(type);
     }
 
     @Override
@@ -142,6 +487,7 @@ public abstract class EfValue {
   
   public static final class StringValue extends BuiltinValue<StringValue> {
     private final String value;
+    private SprintfFormat format; // parsed on first use. Racy, but SprintfFormat is immutable, so that's benign.
 
     private StringValue(String value) {
       super(BuiltinType.String.getEfType());
@@ -152,6 +498,18 @@ public abstract class EfValue {
       return value;
     }
 
+    /**
+     * Returns this string as a sprintf format. String literals are constants, so each literal format gets parsed once.
+     */
+    SprintfFormat asFormat() {
+      SprintfFormat f = format;
+      if (f == null) {
+        f = SprintfFormat.parse(value);
+        format = f;
+      }
+      return f;
+    }
+
     @Override
     public int hashCode() {
       return value.hashCode();
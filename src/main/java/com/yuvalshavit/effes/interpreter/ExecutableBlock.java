@@ -15,7 +15,7 @@ public final class ExecutableBlock implements ExecutableMethod {
   public void execute(CallStack stack) {
     for (ExecutableStatement s : statements) {
       s.execute(stack);
-      if (stack.rvIsSet()) {
+      if (stack.rvIsSet() || stack.hasPendingTailCall()) {
         return;
       }
     }
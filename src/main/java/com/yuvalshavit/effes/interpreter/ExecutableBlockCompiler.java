@@ -17,6 +17,6 @@ public final class ExecutableBlockCompiler implements Function<Block, Executable
   @Override
   public ExecutableMethod apply(Block block) {
     List<ExecutableStatement> body = block.statements().stream().map(statementCompiler).collect(Collectors.toList());
-    return new ExecutableBlock(body, block.nVars());
+    return new ExecutableBlock(body, block.frameSize());
   }
 }
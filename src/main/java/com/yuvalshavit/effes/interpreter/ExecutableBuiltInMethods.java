@@ -3,78 +3,57 @@ package com.yuvalshavit.effes.interpreter;
 import com.yuvalshavit.effes.compile.node.BuiltInMethodsFactory;
 import com.yuvalshavit.effes.compile.TypeRegistry;
 
-import java.io.PrintStream;
-import java.util.List;
 import java.util.function.BiFunction;
 import java.util.function.LongBinaryOperator;
-import java.util.stream.Stream;
 
 public final class ExecutableBuiltInMethods implements BuiltInMethodsFactory<ExecutableMethod> {
   private final TypeRegistry typeRegistry;
-  private final PrintStream out;
 
-  public ExecutableBuiltInMethods(TypeRegistry typeRegistry, PrintStream out) {
+  public ExecutableBuiltInMethods(TypeRegistry typeRegistry) {
     this.typeRegistry = typeRegistry;
-    this.out = out;
   }
 
   @Override
   public ExecutableMethod print() {
+    EfValue voidValue = EfValue.of(typeRegistry.getSimpleType("Void")); // TODO need some mechanism to ensure that Void has no args!
     return method(stack -> {
-      out.println(stack.peekArg(0).getUserVisibleString());
-      stack.push(typeRegistry.getSimpleType("Void"), 0); // TODO need some mechanism to ensure that Void has no args!
+      stack.out().println(stack.peekArg(0).getUserVisibleString());
+      stack.push(voidValue);
       stack.popToRv();
     });
   }
 
   @Override
   public ExecutableMethod addInt() {
-    return binaryLongMethod(Long::sum);
+    return binaryLongMethod(IntOp.ADD::apply);
   }
 
   @Override
   public ExecutableMethod subInt() {
-    return binaryLongMethod((l, r) -> l -r);
+    return binaryLongMethod(IntOp.SUB::apply);
   }
 
   @Override
   public ExecutableMethod multInt() {
-    return binaryLongMethod((l, r) -> l * r);
+    return binaryLongMethod(IntOp.MULT::apply);
   }
 
   @Override
   public ExecutableMethod divInt() {
-    return binaryLongMethod((l, r) -> l / r);
+    return binaryLongMethod(IntOp.DIV::apply);
   }
 
   @Override
   public ExecutableMethod sprintf() {
     return method(stack -> {
-      EfValue formatObj = stack.peekArg(0);
-      EfValue args = stack.peekArg(1);
-      EfValue.StringValue format = (EfValue.StringValue) formatObj;
-      Object[] toArray = Stream.of(listToArray(args)).map(EfValue::getUserVisibleString).toArray(EfValue[]::new);
-      String result = String.format(format.getString(), toArray);
-      stack.push(EfValue.of(result));
+      SprintfFormat format = ((EfValue.StringValue) stack.peekArg(0)).asFormat();
+      StringBuilder result = stack.scratchBuilder();
+      format.appendTo(result, stack.peekArg(1));
+      stack.push(EfValue.of(result.toString()));
+      stack.popToRv();
     });
   }
 
-  private EfValue[] listToArray(final EfValue head) {
-    // assume that we either have a Head(T, tail) or an Empty.
-    int nArgs = 0;
-    for (List<EfValue> node = head.getState(); node.size() != 0; node = node.get(1).getState()) {
-      assert node.size() == 0 || node.size() == 2 : "not a List: " + head;
-      ++nArgs;
-    }
-    EfValue[] result = new EfValue[nArgs];
-    int index = 0;
-    for (List<EfValue> node = head.getState(); node.size() != 0; node = node.get(1).getState()) {
-      assert node.size() == 0 || node.size() == 2 : "not a List: " + head;
-      result[index++] = node.get(0);
-    }
-    return result;
-  }
-
   private static ExecutableMethod binaryLongMethod(LongBinaryOperator op) {
     return binaryMethod(EfValue.LongValue.class, (lhs, rhs) -> EfValue.of(op.applyAsLong(lhs.getValue(), rhs.getValue())));
   }
@@ -12,58 +12,46 @@ import com.google.common.collect.Lists;
 import com.yuvalshavit.effes.compile.node.EfType;
 import com.yuvalshavit.effes.compile.node.EfVar;
 import com.yuvalshavit.effes.compile.pmatch.PAlternative;
-import com.yuvalshavit.util.EfCollections;
 import com.yuvalshavit.util.EfFunctions;
 
 public final class ExecutableCase {
 
   private final ExecutableExpression matchAgainst;
   private final List<CaseMatcher> caseMatchers;
-  private final boolean isExpression;
+  private final CaseDecisionTree decisionTree;
 
-  public ExecutableCase(ExecutableExpression matchAgainst, List<CaseMatcher> caseMatchers, boolean isExpression) {
+  public ExecutableCase(ExecutableExpression matchAgainst, List<CaseMatcher> caseMatchers) {
     this.matchAgainst = matchAgainst;
     this.caseMatchers = ImmutableList.copyOf(caseMatchers);
-    this.isExpression = isExpression;
+    this.decisionTree = new CaseDecisionTree(Lists.transform(this.caseMatchers, m -> m.matchAlternative));
   }
 
   public void execute(CallStack stack) {
-    matchAgainst.execute(stack);
-    EfValue peek = stack.peek();
-    for (CaseMatcher matcher : caseMatchers) {
-      if (matcher.matchAlternative.matches(peek)) {
-        EfValue popped = stack.pop();// the type we matched against
-        for (int i = 0; i < matcher.nBindings; ++i) {
-          stack.push(null);
-        }
-        matcher.binder.accept(popped, stack);
-        matcher.ifMatches.execute(stack);
-        EfValue rv = isExpression
-          ? stack.pop()
-          : null;
-        for (int i = 0; i < matcher.nBindings; ++i) {
-          stack.pop();
-        }
-        if (isExpression) {
-          stack.push(rv);
-        }
-        return;
-      }
+    EfValue value; // the value we match against
+    if (matchAgainst instanceof ExecutableExpression.ValueExpression) {
+      value = ((ExecutableExpression.ValueExpression) matchAgainst).evaluate(stack);
+    } else {
+      matchAgainst.execute(stack);
+      value = stack.pop();
+    }
+    int matched = decisionTree.match(value);
+    if (matched == CaseDecisionTree.NO_MATCH) {
+      throw new IllegalStateException(String.format("no patterns matched (%s): %s", value, toString()));
     }
-    throw new IllegalStateException(String.format("no patterns matched (%s): %s", stack.pop(), toString()));
+    CaseMatcher matcher = caseMatchers.get(matched);
+    matcher.binder.accept(value, stack); // the frame has slots for the bindings; see Block#frameSize
+    matcher.ifMatches.execute(stack);
   }
 
   public static class CaseMatcher {
     private final PAlternative matchAlternative;
     private final ExecutableElement ifMatches;
     private final BiConsumer<EfValue,CallStack> binder;
-    private final int nBindings;
 
     public CaseMatcher(PAlternative matchType, ExecutableElement ifMatches, Map<String,EfVar> bindings) {
       this.matchAlternative = matchType;
       this.ifMatches = ifMatches;
       binder = createBinder(matchType, bindings);
-      nBindings = bindings.size();
     }
 
     private static BiConsumer<EfValue,CallStack> createBinder(PAlternative alternative, Map<String,EfVar> bindings) {
@@ -87,10 +75,13 @@ public final class ExecutableCase {
 
     private static BiConsumer<EfValue,CallStack> buildSimpleTypeBinder(EfType.SimpleType type, List<PAlternative> args, Map<String,EfVar> bindings) {
       List<BiConsumer<EfValue,CallStack>> recursions = new ArrayList<>(Lists.transform(args, arg -> createBinder(arg, bindings)));
+      int nArgs = recursions.size();
       return (value, stack) -> {
-        assert value.getType().getGeneric() == type.getGeneric() : String.format("%s != %s", value.getType().getGeneric(), type.getGeneric());
-        assert value.getState().size() == args.size() : String.format("%s doesn't match %s", value.getState(), args);
-        EfCollections.zipC(recursions, value.getState(), (binder, argValue) -> binder.accept(argValue, stack));
+        assert type.sameGeneric(value.getType()) : String.format("%s != %s", value.getType().getGeneric(), type.getGeneric());
+        assert value.arity() == nArgs : String.format("%s doesn't match %s", value, args);
+        for (int i = 0; i < nArgs; ++i) {
+          recursions.get(i).accept(value.getArg(i), stack);
+        }
       };
     }
 
@@ -6,7 +6,9 @@ import com.yuvalshavit.effes.compile.node.CtorArg;
 import com.yuvalshavit.effes.compile.node.EfType;
 import com.yuvalshavit.effes.compile.node.EfVar;
 import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
 
+import javax.annotation.Nullable;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -27,7 +29,7 @@ public abstract class ExecutableExpression implements ExecutableElement {
 
     public CaseExpression(Expression source, ExecutableExpression matchAgainst, List<ExecutableCase.CaseMatcher> caseMatchers) {
       super(source);
-      this.delegate = new ExecutableCase(matchAgainst, caseMatchers, true);
+      this.delegate = new ExecutableCase(matchAgainst, caseMatchers);
     }
 
     @Override
@@ -49,8 +51,29 @@ public abstract class ExecutableExpression implements ExecutableElement {
     @Override
     public void execute(CallStack stack) {
       delegate.execute(stack);
-      stack.push(stack.peek());
-      stack.popToLocal(assignTo.getArgPosition());
+      stack.setLocal(assignTo.getArgPosition(), stack.peek());
+    }
+  }
+
+  /**
+   * An assignment of a value that can be read without the stack. This is the usual shape of a case's scrutinee, which
+   * can then be matched without pushing it at all.
+   */
+  public static class AssignValueExpression extends ValueExpression {
+    private final ValueExpression delegate;
+    private final int pos;
+
+    public AssignValueExpression(Expression.AssignExpression source, ValueExpression delegate) {
+      super(source);
+      this.delegate = delegate;
+      this.pos = source.getVar().getArgPosition();
+    }
+
+    @Override
+    public EfValue evaluate(CallStack stack) {
+      EfValue value = delegate.evaluate(stack);
+      stack.setLocal(pos, value);
+      return value;
     }
   }
 
@@ -68,8 +91,7 @@ public abstract class ExecutableExpression implements ExecutableElement {
     public void execute(CallStack stack) {
       delegate.execute(stack);
       EfValue stackTop = stack.peek();
-      EfType.SimpleType actualType = stackTop.getType();
-      if (!castTo.contains(actualType)) {
+      if (!castTo.isInstance(stackTop.getType())) {
         throw new ClassCastException("expected type " + castTo + " but found " + stackTop);
       }
     }
@@ -78,20 +100,69 @@ public abstract class ExecutableExpression implements ExecutableElement {
   public static class CtorExpression extends ExecutableExpression {
     private final EfType.SimpleType ctorType;
     private final List<ExecutableExpression> args;
+    private final EfValue nullaryValue; // non-null iff there are no args
 
     public CtorExpression(Expression.CtorInvoke source, List<ExecutableExpression> args) {
       super(source);
       ctorType = source.simpleType();
       this.args = ImmutableList.copyOf(Lists.reverse(args)); // CallStack expects them in reverse order!
+      this.nullaryValue = args.isEmpty()
+        ? EfValue.of(ctorType)
+        : null;
     }
 
     @Override
     public void execute(CallStack stack) {
+      if (nullaryValue != null) {
+        stack.push(nullaryValue);
+        return;
+      }
       args.forEach(a -> a.execute(stack));
       stack.push(ctorType, args.size());
     }
   }
 
+  /**
+   * A ctor whose args can all be read without the stack, so that it can build its value directly rather than pushing
+   * each arg and then popping them all off again.
+   */
+  public static class ValueCtorExpression extends ValueExpression {
+    private final EfType.SimpleType ctorType;
+    private final ValueExpression[] args;
+
+    public ValueCtorExpression(Expression.CtorInvoke source, List<ValueExpression> args) {
+      super(source);
+      this.ctorType = source.simpleType();
+      this.args = args.toArray(new ValueExpression[args.size()]);
+    }
+
+    @Override
+    public EfValue evaluate(CallStack stack) {
+      // args are evaluated last to first, same as CtorExpression
+      switch (args.length) {
+      case 0:
+        return EfValue.of(ctorType);
+      case 1:
+        return EfValue.of(ctorType, args[0].evaluate(stack));
+      case 2: {
+        EfValue arg1 = args[1].evaluate(stack);
+        return EfValue.of(ctorType, args[0].evaluate(stack), arg1);
+      }
+      case 3: {
+        EfValue arg2 = args[2].evaluate(stack);
+        EfValue arg1 = args[1].evaluate(stack);
+        return EfValue.of(ctorType, args[0].evaluate(stack), arg1, arg2);
+      }
+      default:
+        EfValue[] values = new EfValue[args.length];
+        for (int i = args.length - 1; i >= 0; --i) {
+          values[i] = args[i].evaluate(stack);
+        }
+        return EfValue.of(ctorType, values);
+      }
+    }
+  }
+
   public static class InstanceArg extends ExecutableExpression {
     private final ExecutableExpression target;
     private final CtorArg arg;
@@ -106,12 +177,83 @@ public abstract class ExecutableExpression implements ExecutableElement {
     public void execute(CallStack stack) {
       target.execute(stack);
       EfValue.StandardValue targetValue = (EfValue.StandardValue) stack.pop();
-      EfValue argValue = targetValue.getState().get(arg.getArgPosition());
-      stack.push(argValue);
+      stack.push(targetValue.getArg(arg.getArgPosition()));
+    }
+  }
+
+  /**
+   * An arg of a value that can be read without the stack (a field of a var, for instance, or of one of its fields).
+   */
+  public static class ValueInstanceArg extends ValueExpression {
+    private final ValueExpression target;
+    private final int pos;
+
+    public ValueInstanceArg(Expression source, ValueExpression target, CtorArg arg) {
+      super(source);
+      this.target = target;
+      this.pos = arg.getArgPosition();
+    }
+
+    @Override
+    public EfValue evaluate(CallStack stack) {
+      return target.evaluate(stack).getArg(pos);
+    }
+  }
+
+  /**
+   * An expression that can hand its value straight to whatever consumes it: a var, a constant, an Int, or a ctor or
+   * field access made up of those. A case, a return or another ctor can take such a value from {@link #evaluate},
+   * rather than having it pushed onto the stack only to pop it right back off; only {@link #execute} pushes it.
+   */
+  public static abstract class ValueExpression extends ExecutableExpression {
+    private ValueExpression(Expression source) {
+      super(source);
+    }
+
+    public abstract EfValue evaluate(CallStack stack);
+
+    @Override
+    public void execute(CallStack stack) {
+      stack.push(evaluate(stack));
+    }
+  }
+
+  /**
+   * Adapts an Int expression, so that its value can be used wherever a {@link ValueExpression}'s can.
+   */
+  public static class BoxingExpression extends ValueExpression {
+    private final IntExpression delegate;
+
+    public BoxingExpression(IntExpression delegate) {
+      super(((ExecutableExpression) delegate).source);
+      this.delegate = delegate;
+    }
+
+    @Override
+    public EfValue evaluate(CallStack stack) {
+      return EfValue.of(delegate.evaluate(stack));
+    }
+  }
+
+  /**
+   * An expression whose value is always an Int, and which can produce that value as a raw long. The built-in Int
+   * operations work in terms of these, so that intermediate results don't get boxed into EfValues; only the outermost
+   * one does, when {@link #execute} pushes it onto the stack.
+   */
+  public static abstract class IntExpression extends ExecutableExpression {
+    private IntExpression(Expression source) {
+      super(source);
+    }
+
+    public abstract long evaluate(CallStack stack);
+
+    @Override
+    public void execute(CallStack stack) {
+      stack.push(EfValue.of(evaluate(stack)));
     }
   }
 
-  public static class IntLiteral extends ExecutableExpression {
+  public static class IntLiteral extends IntExpression {
     
     private final long value;
     
@@ -119,57 +261,277 @@ public abstract class ExecutableExpression implements ExecutableElement {
       super(source);
       value = source.getValue();
     }
-    
+
+    @Override
+    public long evaluate(CallStack stack) {
+      return value;
+    }
+  }
+
+  public static class IntOpExpression extends IntExpression {
+    private final IntOp op;
+    private final IntExpression lhs;
+    private final IntExpression rhs;
+    private final boolean rhsFirst;
+
+    public IntOpExpression(Expression source, IntOp op, IntExpression lhs, IntExpression rhs, boolean rhsFirst) {
+      super(source);
+      this.op = op;
+      this.lhs = lhs;
+      this.rhs = rhs;
+      this.rhsFirst = rhsFirst;
+    }
+
+    @Override
+    public long evaluate(CallStack stack) {
+      if (rhsFirst) {
+        long rhsValue = rhs.evaluate(stack);
+        return op.apply(lhs.evaluate(stack), rhsValue);
+      }
+      return op.apply(lhs.evaluate(stack), rhs.evaluate(stack));
+    }
+  }
+
+  /**
+   * Reads an Int var without pushing it onto the stack.
+   */
+  public static class IntVarReadExpression extends IntExpression {
+    private final int pos;
+    private final boolean isArg;
+
+    public IntVarReadExpression(Expression.VarExpression source) {
+      super(source);
+      this.pos = source.pos();
+      this.isArg = source.isArg();
+    }
+
+    @Override
+    public long evaluate(CallStack stack) {
+      EfValue value = isArg
+        ? stack.peekArg(pos)
+        : stack.peekLocal(pos);
+      return ((EfValue.LongValue) value).getValue();
+    }
+  }
+
+  /**
+   * Adapts any other expression that evaluates to an Int (a non-builtin method call, for instance).
+   */
+  public static class UnboxingExpression extends IntExpression {
+    private final ExecutableExpression delegate;
+
+    public UnboxingExpression(Expression source, ExecutableExpression delegate) {
+      super(source);
+      this.delegate = delegate;
+    }
+
+    @Override
+    public long evaluate(CallStack stack) {
+      EfValue value;
+      if (delegate instanceof ValueExpression) {
+        value = ((ValueExpression) delegate).evaluate(stack);
+      } else {
+        delegate.execute(stack);
+        value = stack.pop();
+      }
+      return ((EfValue.LongValue) value).getValue();
+    }
+
     @Override
     public void execute(CallStack stack) {
-      stack.push(EfValue.of(value));
+      delegate.execute(stack); // no need to unbox and re-box
     }
   }
 
-  public static class StringLiteral extends ExecutableExpression {
-    private final String value;
+  public static class ConstantExpression extends ValueExpression {
+    private final EfValue value;
 
-    public StringLiteral(Expression.StringLiteral source) {
+    public ConstantExpression(Expression.ConstantExpression source) {
       super(source);
       value = source.getValue();
     }
 
     @Override
-    public void execute(CallStack stack) {
-      stack.push(EfValue.of(value));
+    public EfValue evaluate(CallStack stack) {
+      return value;
+    }
+  }
+
+  public static class StringLiteral extends ValueExpression {
+    private final EfValue value;
+
+    public StringLiteral(Expression.StringLiteral source) {
+      super(source);
+      value = EfValue.of(source.getValue()); // values are immutable, so every evaluation can share one
+    }
+
+    @Override
+    public EfValue evaluate(CallStack stack) {
+      return value;
     }
   }
   
   public static class MethodInvokeExpression extends ExecutableExpression {
+    private final MethodId methodId;
     private final List<ExecutableExpression> args;
     private final Supplier<ExecutableMethod> body;
+    private final InvocationCounter counter;
     private final boolean hasRv;
+    private final boolean isTailCall;
 
     public MethodInvokeExpression(Expression.MethodInvoke source,
                                   List<ExecutableExpression> args,
-                                  Supplier<ExecutableMethod> body) {
+                                  Supplier<ExecutableMethod> body,
+                                  InvocationCounter counter,
+                                  boolean isTailCall) {
       super(source);
+      this.methodId = source.getMethodId();
       this.args = args;
       this.body = body;
+      this.counter = counter;
       this.hasRv = !EfType.VOID.equals(source.resultType());
+      this.isTailCall = isTailCall;
+      if (isTailCall && !hasRv) {
+        throw new IllegalArgumentException("can't tail call a method without a result: " + source);
+      }
     }
 
     @Override
     public void execute(CallStack stack) {
-      invoke(body.get(), args, stack, hasRv);
+      counter.hit(); // before fetching the body, since this may swap it out for a faster one
+      if (isTailCall) {
+        for (int i = args.size() - 1; i >= 0; --i) {
+          args.get(i).execute(stack);
+        }
+        stack.tailCall(body.get(), args.size(), methodId);
+      } else {
+        invoke(body.get(), args, stack, hasRv, methodId);
+      }
     }
 
-    public static void invoke(ExecutableMethod body, List<ExecutableExpression> args, CallStack stack, boolean hasRv) {
-      stack.openFrame(args, hasRv);
-      for (int nVars = body.nVars(); nVars > 0; --nVars) {
-        stack.push(null);
-      }
-      body.execute(stack);
+    public static void invoke(ExecutableMethod body,
+                              List<ExecutableExpression> args,
+                              CallStack stack,
+                              boolean hasRv,
+                              @Nullable MethodId methodId) {
+      stack.openFrame(args, hasRv, methodId);
+      run(body, stack);
+    }
+
+    static void invoke(ExecutableMethod body, EfValue[] args, CallStack stack, boolean hasRv, @Nullable MethodId methodId) {
+      stack.openFrame(args, hasRv, methodId);
+      run(body, stack);
+    }
+
+    /**
+     * Runs the body (and any tail calls it makes) in the frame that's just been opened for it, and then closes that
+     * frame.
+     */
+    static void run(ExecutableMethod body, CallStack stack) {
+      do {
+        for (int nVars = body.nVars(); nVars > 0; --nVars) {
+          stack.push(null);
+        }
+        body.execute(stack);
+      } while ((body = stack.takeTailCall()) != null);
       stack.closeFrame();
     }
   }
 
-  public static class VarReadExpression extends ExecutableExpression {
+  /**
+   * A call on a disjunctive target. The target is evaluated first, and its runtime type picks the method out of a
+   * {@link DispatchTable}; then the args (starting with the target, which is read back from the var it was assigned
+   * to) are evaluated, and the method is invoked.
+   */
+  public static class DispatchExpression extends ExecutableExpression {
+    private final ExecutableExpression target;
+    private final List<ExecutableExpression> args;
+    private final DispatchTable table;
+    private final boolean hasRv;
+    private final boolean isTailCall;
+
+    public DispatchExpression(Expression source,
+                              ExecutableExpression target,
+                              List<ExecutableExpression> args,
+                              DispatchTable table,
+                              boolean hasRv,
+                              boolean isTailCall) {
+      super(source);
+      this.target = target;
+      this.args = args;
+      this.table = table;
+      this.hasRv = hasRv;
+      this.isTailCall = isTailCall;
+      if (isTailCall && !hasRv) {
+        throw new IllegalArgumentException("can't tail call a method without a result: " + source);
+      }
+    }
+
+    @Override
+    public void execute(CallStack stack) {
+      EfValue receiver;
+      if (target instanceof ValueExpression) {
+        receiver = ((ValueExpression) target).evaluate(stack);
+      } else {
+        target.execute(stack);
+        receiver = stack.pop();
+      }
+      DispatchTable.Entry entry = table.get(receiver.getType());
+      if (entry == null) {
+        throw new IllegalStateException(String.format("no method in %s for %s: %s", table, receiver, this));
+      }
+      entry.counter().hit(); // before fetching the body, since this may swap it out for a faster one
+      if (isTailCall) {
+        for (int i = args.size() - 1; i >= 0; --i) {
+          args.get(i).execute(stack);
+        }
+        stack.tailCall(entry.body(), args.size(), entry.methodId());
+      } else {
+        MethodInvokeExpression.invoke(entry.body(), args, stack, hasRv, entry.methodId());
+      }
+    }
+  }
+
+  /**
+   * An invocation of a pure method, whose result may come from (and goes into) a {@link Memoizer}. These are never
+   * tail calls, since the result has to come back here to be cached; so calls in tail position aren't memoized at all.
+   */
+  public static class MemoizedInvokeExpression extends ExecutableExpression {
+    private final MethodId methodId;
+    private final List<ExecutableExpression> args;
+    private final Supplier<ExecutableMethod> body;
+    private final Memoizer memoizer;
+
+    public MemoizedInvokeExpression(Expression.MethodInvoke source,
+                                    List<ExecutableExpression> args,
+                                    Supplier<ExecutableMethod> body,
+                                    Memoizer memoizer) {
+      super(source);
+      this.methodId = source.getMethodId();
+      this.args = args;
+      this.body = body;
+      this.memoizer = memoizer;
+    }
+
+    @Override
+    public void execute(CallStack stack) {
+      EfValue[] argValues = new EfValue[args.size()];
+      for (int i = argValues.length - 1; i >= 0; --i) { // same order as CallStack.openFrame
+        args.get(i).execute(stack);
+        argValues[i] = stack.pop();
+      }
+      EfValue result = memoizer.get(methodId, argValues);
+      if (result == null) {
+        MethodInvokeExpression.invoke(body.get(), argValues, stack, true, methodId);
+        result = stack.peek();
+        memoizer.put(methodId, argValues, result);
+      } else {
+        stack.push(result);
+      }
+    }
+  }
+
+  public static class VarReadExpression extends ValueExpression {
     private final int pos;
     private final boolean isArg;
 
@@ -179,6 +541,13 @@ public abstract class ExecutableExpression implements ExecutableElement {
       this.isArg = source.isArg();
     }
 
+    @Override
+    public EfValue evaluate(CallStack stack) {
+      return isArg
+        ? stack.peekArg(pos)
+        : stack.peekLocal(pos);
+    }
+
     @Override
     public void execute(CallStack stack) {
       if (isArg) {
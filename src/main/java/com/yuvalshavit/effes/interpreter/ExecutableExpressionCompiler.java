@@ -1,10 +1,15 @@
 package com.yuvalshavit.effes.interpreter;
 
+import com.google.common.collect.Lists;
+import com.yuvalshavit.effes.compile.node.EfType;
 import com.yuvalshavit.effes.compile.node.Expression;
 import com.yuvalshavit.effes.compile.node.MethodId;
 import com.yuvalshavit.util.Dispatcher;
 
+import javax.annotation.Nullable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -13,11 +18,30 @@ public final class ExecutableExpressionCompiler implements Function<Expression,
 
   private final Function<MethodId, ExecutableMethod> methods;
   private final Function<MethodId, ExecutableMethod> builtInMethods;
+  private final Function<MethodId, InvocationCounter> counters;
+  @Nullable
+  private final Memoizer memoizer;
+  private final Map<String, DispatchTable> dispatchTables = new HashMap<>();
 
   public ExecutableExpressionCompiler(Function<MethodId, ExecutableMethod> methods,
                                       Function<MethodId, ExecutableMethod> builtInMethods) {
+    this(methods, builtInMethods, m -> InvocationCounter.NONE);
+  }
+
+  public ExecutableExpressionCompiler(Function<MethodId, ExecutableMethod> methods,
+                                      Function<MethodId, ExecutableMethod> builtInMethods,
+                                      Function<MethodId, InvocationCounter> counters) {
+    this(methods, builtInMethods, counters, null);
+  }
+
+  public ExecutableExpressionCompiler(Function<MethodId, ExecutableMethod> methods,
+                                      Function<MethodId, ExecutableMethod> builtInMethods,
+                                      Function<MethodId, InvocationCounter> counters,
+                                      @Nullable Memoizer memoizer) {
     this.methods = methods;
     this.builtInMethods = builtInMethods;
+    this.counters = counters;
+    this.memoizer = memoizer;
   }
 
   @Override
@@ -25,14 +49,35 @@ public final class ExecutableExpressionCompiler implements Function<Expression,
     return dispatcher.apply(this, expression);
   }
 
+  /**
+   * Compiles an expression whose value is about to be returned from its method. If that value comes from a call to
+   * another Effes method (possibly via a case's alternatives), the call becomes a tail call, which reuses the current
+   * frame rather than opening a new one.
+   */
+  public ExecutableExpression applyInTailPosition(Expression expression) {
+    if (expression instanceof Expression.MethodInvoke) {
+      Expression.MethodInvoke invoke = (Expression.MethodInvoke) expression;
+      if (!invoke.isBuiltIn() && !EfType.VOID.equals(invoke.resultType())) {
+        return methodInvoke(invoke, true);
+      }
+    } else if (expression instanceof Expression.CaseExpression && IntOp.recognize(expression) == null) {
+      ExecutableExpression dispatch = dispatch((Expression.CaseExpression) expression, true);
+      return dispatch != null
+        ? dispatch
+        : caseExpr((Expression.CaseExpression) expression, this::applyInTailPosition);
+    }
+    return apply(expression);
+  }
+
   private static final Dispatcher<ExecutableExpressionCompiler, Expression, ExecutableExpression> dispatcher =
     Dispatcher.builder(ExecutableExpressionCompiler.class, Expression.class, ExecutableExpression.class)
       .put(Expression.AssignExpression.class, ExecutableExpressionCompiler::assignExpr)
-      .put(Expression.CaseExpression.class, ExecutableExpressionCompiler::caseExpr)
+      .put(Expression.CaseExpression.class, ExecutableExpressionCompiler::caseOrIntOpExpr)
+      .put(Expression.ConstantExpression.class, ExecutableExpressionCompiler::constantExpr)
       .put(Expression.InstanceArg.class, ExecutableExpressionCompiler::instanceArg)
       .put(Expression.IntLiteral.class, ExecutableExpressionCompiler::intLiteral)
       .put(Expression.StringLiteral.class, ExecutableExpressionCompiler::stringLIteral)
-      .put(Expression.MethodInvoke.class, ExecutableExpressionCompiler::methodInvoke)
+      .put(Expression.MethodInvoke.class, ExecutableExpressionCompiler::methodOrIntOpInvoke)
       .put(Expression.CastExpression.class, ExecutableExpressionCompiler::castExpr)
       .put(Expression.CtorInvoke.class, ExecutableExpressionCompiler::ctorInvoke)
       .put(Expression.VarExpression.class, ExecutableExpressionCompiler::varExpr)
@@ -41,14 +86,105 @@ public final class ExecutableExpressionCompiler implements Function<Expression,
         throw new AssertionError(e);
       });
 
+  /**
+   * If the expression can hand over its value without pushing it, returns it as a
+   * {@link ExecutableExpression.ValueExpression} (boxing it if it's a raw Int); otherwise, returns it as-is. The
+   * compiler uses this wherever an expression's value is consumed right away, so that shapes like a field of a var, a
+   * ctor of vars and literals, or an assignment feeding a case each touch the stack once, if at all, rather than
+   * pushing and popping each of their parts.
+   */
+  public static ExecutableExpression asValue(ExecutableExpression expression) {
+    if (expression instanceof ExecutableExpression.IntExpression
+      && !(expression instanceof ExecutableExpression.UnboxingExpression)) {
+      return new ExecutableExpression.BoxingExpression((ExecutableExpression.IntExpression) expression);
+    }
+    return expression;
+  }
+
   private ExecutableExpression assignExpr(Expression.AssignExpression expr) {
-    return new ExecutableExpression.AssignExpression(expr, apply(expr.getDelegate()));
+    ExecutableExpression delegate = asValue(apply(expr.getDelegate()));
+    return delegate instanceof ExecutableExpression.ValueExpression
+      ? new ExecutableExpression.AssignValueExpression(expr, (ExecutableExpression.ValueExpression) delegate)
+      : new ExecutableExpression.AssignExpression(expr, delegate);
+  }
+
+  private ExecutableExpression caseOrIntOpExpr(Expression.CaseExpression expr) {
+    ExecutableExpression intOp = intOp(expr);
+    if (intOp != null) {
+      return intOp;
+    }
+    ExecutableExpression dispatch = dispatch(expr, false);
+    return dispatch != null
+      ? dispatch
+      : caseExpr(expr, this::apply);
+  }
+
+  private ExecutableExpression methodOrIntOpInvoke(Expression.MethodInvoke expr) {
+    ExecutableExpression intOp = intOp(expr);
+    return intOp != null
+      ? intOp
+      : methodInvoke(expr);
   }
 
-  private ExecutableExpression caseExpr(Expression.CaseExpression expr) {
-    ExecutableExpression matchAgainst = apply(expr.construct().getMatchAgainst());
+  /**
+   * If the expression is a built-in Int operation, compiles it to an {@link ExecutableExpression.IntOpExpression}
+   * whose operands are also evaluated unboxed where possible. Otherwise, returns null.
+   */
+  private ExecutableExpression.IntExpression intOp(Expression expr) {
+    IntOp.Invocation invocation = IntOp.recognize(expr);
+    if (invocation == null) {
+      return null;
+    }
+    return new ExecutableExpression.IntOpExpression(
+      expr,
+      invocation.op(),
+      intOperand(invocation.lhs()),
+      intOperand(invocation.rhs()),
+      invocation.rhsFirst());
+  }
+
+  private ExecutableExpression.IntExpression intOperand(Expression expr) {
+    if (expr instanceof Expression.VarExpression) {
+      return new ExecutableExpression.IntVarReadExpression((Expression.VarExpression) expr);
+    }
+    ExecutableExpression compiled = apply(expr);
+    return compiled instanceof ExecutableExpression.IntExpression
+      ? (ExecutableExpression.IntExpression) compiled
+      : new ExecutableExpression.UnboxingExpression(expr, compiled);
+  }
+
+  private boolean isMemoizable(Expression.MethodInvoke invoke) {
+    return memoizer != null && memoizer.isMemoizable(invoke.getMethodId());
+  }
+
+  /**
+   * If the case is a call on a disjunctive target (see {@link DispatchTable#recognize}), compiles it to a lookup in the
+   * {@link DispatchTable} for that method name. Otherwise, returns null.
+   */
+  @Nullable
+  private ExecutableExpression dispatch(Expression.CaseExpression expr, boolean inTailPosition) {
+    DispatchTable.Site site = DispatchTable.recognize(expr);
+    if (site == null || (!inTailPosition && site.invokes().stream().anyMatch(this::isMemoizable))) {
+      return null;
+    }
+    DispatchTable table = site.addTo(
+      dispatchTables,
+      id -> new DispatchTable.Entry(id, () -> methods.apply(id), counters.apply(id)));
+    List<ExecutableExpression> args = site.args().stream().map(this::apply).collect(Collectors.toList());
+    return new ExecutableExpression.DispatchExpression(
+      expr,
+      asValue(apply(site.target())),
+      args,
+      table,
+      site.hasRv(),
+      inTailPosition && site.hasRv());
+  }
+
+  private ExecutableExpression caseExpr(Expression.CaseExpression expr,
+                                        Function<Expression, ExecutableExpression> alternativeCompiler) {
+    ExecutableExpression matchAgainst = asValue(apply(expr.construct().getMatchAgainst()));
     List<ExecutableCase.CaseMatcher> matchers = expr.construct().getPatterns().stream().map(p -> {
-      ExecutableExpression ifMatch = apply(p.getIfMatched());
+      ExecutableExpression ifMatch = alternativeCompiler.apply(p.getIfMatched());
       return new ExecutableCase.CaseMatcher(p.getPAlternative(), ifMatch, p.bindings());
     }).collect(Collectors.toList());
     return new ExecutableExpression.CaseExpression(expr, matchAgainst, matchers);
@@ -60,9 +196,15 @@ public final class ExecutableExpressionCompiler implements Function<Expression,
 
   private ExecutableExpression instanceArg(Expression.InstanceArg expr) {
     ExecutableExpression target = apply(expr.getTarget());
-    return new ExecutableExpression.InstanceArg(expr, target, expr.getArg());
+    return target instanceof ExecutableExpression.ValueExpression
+      ? new ExecutableExpression.ValueInstanceArg(expr, (ExecutableExpression.ValueExpression) target, expr.getArg())
+      : new ExecutableExpression.InstanceArg(expr, target, expr.getArg());
   }
   
+  private ExecutableExpression constantExpr(Expression.ConstantExpression expr) {
+    return new ExecutableExpression.ConstantExpression(expr);
+  }
+
   private ExecutableExpression intLiteral(Expression.IntLiteral expr) {
     return new ExecutableExpression.IntLiteral(expr);
   }
@@ -72,16 +214,33 @@ public final class ExecutableExpressionCompiler implements Function<Expression,
   }
 
   private ExecutableExpression ctorInvoke(Expression.CtorInvoke expr) {
-    List<ExecutableExpression> args = expr.getArgs().stream().map(this::apply).collect(Collectors.toList());
+    List<ExecutableExpression> args = expr.getArgs().stream().map(this::apply).map(ExecutableExpressionCompiler::asValue)
+      .collect(Collectors.toList());
+    if (args.stream().allMatch(a -> a instanceof ExecutableExpression.ValueExpression)) {
+      return new ExecutableExpression.ValueCtorExpression(
+        expr,
+        Lists.transform(args, a -> (ExecutableExpression.ValueExpression) a));
+    }
     return new ExecutableExpression.CtorExpression(expr, args);
   }
 
-  public ExecutableExpression.MethodInvokeExpression methodInvoke(Expression.MethodInvoke expr) {
+  public ExecutableExpression methodInvoke(Expression.MethodInvoke expr) {
+    return methodInvoke(expr, false);
+  }
+
+  private ExecutableExpression methodInvoke(Expression.MethodInvoke expr, boolean isTailCall) {
     List<ExecutableExpression> args = expr.getArgs().stream().map(this::apply).collect(Collectors.toList());
     Supplier<ExecutableMethod> body = () -> expr.isBuiltIn()
       ? builtInMethods.apply(expr.getMethodId())
       : methods.apply(expr.getMethodId());
-    return new ExecutableExpression.MethodInvokeExpression(expr, args, body);
+    // a tail call doesn't come back here, so there's nothing to cache; it stays a tail call, to keep its constant space
+    if (memoizer != null && !isTailCall && !expr.isBuiltIn() && memoizer.isMemoizable(expr.getMethodId())) {
+      return new ExecutableExpression.MemoizedInvokeExpression(expr, args, body, memoizer);
+    }
+    InvocationCounter counter = expr.isBuiltIn()
+      ? InvocationCounter.NONE
+      : counters.apply(expr.getMethodId());
+    return new ExecutableExpression.MethodInvokeExpression(expr, args, body, counter, isTailCall);
   }
 
   private ExecutableExpression unrecognizedExpr(Expression.UnrecognizedExpression expr) {
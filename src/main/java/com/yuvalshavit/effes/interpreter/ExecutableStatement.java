@@ -39,7 +39,7 @@ public abstract class ExecutableStatement implements ExecutableElement {
 
     public CaseStatement(Statement source, ExecutableExpression matchAgainst, List<ExecutableCase.CaseMatcher> caseMatchers) {
       super(source);
-      this.delegate = new ExecutableCase(matchAgainst, caseMatchers, false);
+      this.delegate = new ExecutableCase(matchAgainst, caseMatchers);
     }
 
     @Override
@@ -53,13 +53,19 @@ public abstract class ExecutableStatement implements ExecutableElement {
 
     public ReturnStatement(Statement.ReturnStatement source, ExecutableExpressionCompiler expressionCompiler) {
       super(source);
-      this.value = expressionCompiler.apply(source.getExpression());
+      this.value = ExecutableExpressionCompiler.asValue(expressionCompiler.applyInTailPosition(source.getExpression()));
     }
 
     @Override
     public void execute(CallStack stack) {
+      if (value instanceof ExecutableExpression.ValueExpression) {
+        stack.setRv(((ExecutableExpression.ValueExpression) value).evaluate(stack));
+        return;
+      }
       value.execute(stack);
-      stack.popToRv();
+      if (!stack.hasPendingTailCall()) {
+        stack.popToRv();
+      }
     }
   }
 
@@ -41,7 +41,8 @@ public final class ExecutableStatementCompiler implements Function<Statement, Ex
   }
 
   private ExecutableStatement caseStat(Statement.CaseStatement stat) {
-    ExecutableExpression matchAgainst = expressionCompiler.apply(stat.construct().getMatchAgainst());
+    ExecutableExpression matchAgainst = ExecutableExpressionCompiler.asValue(
+      expressionCompiler.apply(stat.construct().getMatchAgainst()));
     List<ExecutableCase.CaseMatcher> matchers = stat.construct().getPatterns().stream().map(p -> {
       ExecutableElement ifMatch = block(p.getIfMatched());
       return new ExecutableCase.CaseMatcher(p.getPAlternative(), ifMatch, p.bindings());
@@ -60,6 +61,13 @@ public final class ExecutableStatementCompiler implements Function<Statement, Ex
   private ExecutableElement block(Block block) {
     List<ExecutableStatement> stats = ImmutableList.copyOf(
       block.statements().stream().map(this::apply).collect(Collectors.toList()));
-    return stack -> stats.forEach(s -> s.execute(stack));
+    return stack -> {
+      for (ExecutableStatement s : stats) {
+        s.execute(stack);
+        if (stack.hasPendingTailCall()) {
+          return;
+        }
+      }
+    };
   }
 }
@@ -0,0 +1,110 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.collect.ImmutableList;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import javax.annotation.Nullable;
+
+/**
+ * One run of a {@link CompiledProgram}: its call stack, and the sink it prints to. Executions are cheap to create,
+ * and aren't thread-safe; to run a program from several threads, give each thread an execution of its own (they can
+ * all share the one compiled program). An execution can run main more than once, one run after another, but not after
+ * a run that threw: its stack is left as the failure found it.
+ */
+public final class Execution {
+  private static final MethodId MAIN = MethodId.topLevel("main");
+
+  private final CompiledProgram program;
+  private final CallStack stack = new CallStack();
+  private long fuel = CallStack.UNLIMITED_FUEL;
+  private int maxDepth;
+
+  Execution(CompiledProgram program, OutputSink out) {
+    this.program = program;
+    this.maxDepth = program.getDefaultMaxDepth();
+    stack.setOut(out);
+  }
+
+  /**
+   * Sets how many calls each run may make before it fails with an {@link ExecutionLimitExceededException}. Unlimited
+   * by default.
+   */
+  public Execution setFuel(long fuel) {
+    if (fuel < 0) {
+      throw new IllegalArgumentException("fuel may not be negative: " + fuel);
+    }
+    this.fuel = fuel;
+    return this;
+  }
+
+  /**
+   * Sets how deep each run's calls may nest before it fails with an {@link EfStackOverflowException}. Defaults to the
+   * program's {@link CompiledProgram#getDefaultMaxDepth default}, which suits its backend on a thread of the JVM's
+   * default stack size; a run on a thread with a smaller stack may want to set a lower one. This applies to every
+   * backend, including generated code.
+   */
+  public Execution setMaxDepth(int maxDepth) {
+    if (maxDepth < 1) {
+      throw new IllegalArgumentException("max depth must be positive: " + maxDepth);
+    }
+    this.maxDepth = maxDepth;
+    return this;
+  }
+
+  /**
+   * How many calls the last run made (so far, if it's still going).
+   */
+  public long fuelUsed() {
+    return stack.fuelUsed();
+  }
+
+  public Object runMain() {
+    return runMain(null);
+  }
+
+  /**
+   * Runs the main method, with the given sampler (if any) recording its call chains. Only tree-walked methods have
+   * frames for the sampler to see; compiled code calls its callees directly.
+   */
+  public Object runMain(@Nullable SamplingProfiler sampler) {
+    return run(MAIN, sampler);
+  }
+
+  /**
+   * Runs the given method, which may not take any arguments, and returns its result. Returns null if there's no such
+   * method, or if it doesn't return anything.
+   *
+   * A run that recurses too deeply fails with an {@link EfStackOverflowException}, normally because it went past the
+   * max depth. The max depth is only an estimate of how much fits in the JVM's stack, though, so if the run runs out of
+   * JVM stack first, that's an EfStackOverflowException, too.
+   */
+  public Object run(MethodId entry, @Nullable SamplingProfiler sampler) {
+    EfMethod<? extends ExecutableMethod> method = program.getMethod(entry);
+    if (method == null) {
+      return null;
+    }
+    if (method.getArgs().length() != 0) {
+      throw new BadMainException(entry + " method may not take any arguments");
+    }
+    stack.setSampler(sampler);
+    stack.setFuel(fuel);
+    stack.setMaxDepth(maxDepth);
+    try {
+      Object initial = stack.snapshot();
+      boolean hasRv = !EfType.VOID.equals(method.getResultType());
+      ExecutableExpression.MethodInvokeExpression.invoke(method.getBody(), ImmutableList.of(), stack, hasRv, entry);
+      Object rv = hasRv
+        ? stack.pop()
+        : null;
+      assert stack.snapshot().equals(initial) : stack.snapshot();
+      return rv;
+    } catch (StackOverflowError e) {
+      throw new EfStackOverflowException(e);
+    } finally {
+      stack.setSampler(null);
+      stack.out().flush();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import javax.annotation.Nullable;
+
+/**
+ * Thrown when a run uses up its fuel: that is, it makes more calls than its {@link CallStack#setFuel budget} allows.
+ */
+public class ExecutionLimitExceededException extends RuntimeException {
+  private static final long serialVersionUID = -2718306512095523961L;
+
+  private final long limit;
+  @Nullable
+  private final MethodId method;
+  private final int depth;
+
+  ExecutionLimitExceededException(long limit, @Nullable MethodId method, int depth) {
+    super(String.format("exceeded the limit of %d calls, in %s at call depth %d",
+      limit, method == null ? "an unknown method" : method, depth));
+    this.limit = limit;
+    this.method = method;
+    this.depth = depth;
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * The method that was about to run when the fuel ran out, if known.
+   */
+  @Nullable
+  public MethodId getMethod() {
+    return method;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+}
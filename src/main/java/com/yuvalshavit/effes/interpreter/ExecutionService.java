@@ -0,0 +1,143 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.yuvalshavit.effes.compile.Source;
+import com.yuvalshavit.effes.compile.Sources;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.parser.ParserUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs lots of short programs concurrently. Each job is a program's source, the method to run and where to print; the
+ * service compiles each distinct source once (keyed by its SHA-256), and then runs it on one of a fixed pool of worker
+ * threads, as its own {@link Execution} of the shared {@link CompiledProgram}.
+ *
+ * At most {@code nThreads + queueCapacity} jobs can be running or waiting at once; past that, {@link #submit} blocks
+ * until one finishes. The compiled-program cache holds up to {@code effes.service.programCacheSize} programs (256 by
+ * default), evicting the least recently used ones.
+ */
+public final class ExecutionService implements AutoCloseable {
+  public static final long DEFAULT_PROGRAM_CACHE_SIZE = Long.getLong("effes.service.programCacheSize", 256);
+
+  private final Interpreter.Backend backend;
+  private final Function<String, Sources> parser;
+  private final Cache<HashCode, CompiledProgram> programs;
+  private final ThreadPoolExecutor workers;
+  private final Semaphore slots;
+
+  public ExecutionService(Interpreter.Backend backend, int nThreads, int queueCapacity) {
+    this(backend, nThreads, queueCapacity, ExecutionService::parse);
+  }
+
+  @VisibleForTesting
+  ExecutionService(Interpreter.Backend backend, int nThreads, int queueCapacity, Function<String, Sources> parser) {
+    if (nThreads < 1) {
+      throw new IllegalArgumentException("nThreads must be positive: " + nThreads);
+    }
+    if (queueCapacity < 0) {
+      throw new IllegalArgumentException("queueCapacity may not be negative: " + queueCapacity);
+    }
+    this.backend = backend;
+    this.parser = parser;
+    this.programs = CacheBuilder.newBuilder().maximumSize(DEFAULT_PROGRAM_CACHE_SIZE).recordStats().build();
+    AtomicInteger nextThread = new AtomicInteger();
+    // the semaphore is what bounds the jobs, so the executor's own queue doesn't need to
+    this.workers = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, "effes-worker-" + nextThread.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.slots = new Semaphore(nThreads + queueCapacity);
+  }
+
+  /**
+   * Returns the compiled program for the given source, compiling it if it's not cached. The program may have errors.
+   */
+  public CompiledProgram compile(String source) {
+    HashCode key = Hashing.sha256().hashString(source, StandardCharsets.UTF_8);
+    try {
+      return programs.get(key, () -> new CompiledProgram(parser.apply(source), backend));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Queues up a job, blocking if there are already as many as the service allows. The future fails with an
+   * {@link IllegalStateException} if the program has compilation errors (see {@link #compile} to get them).
+   */
+  public Future<JobResult> submit(String source, MethodId entry, OutputSink out) throws InterruptedException {
+    return submit(source, entry, out, CallStack.UNLIMITED_FUEL);
+  }
+
+  /**
+   * Like {@link #submit(String, MethodId, OutputSink)}, but the job fails with an
+   * {@link ExecutionLimitExceededException} if it makes more than {@code fuel} calls. That keeps a runaway program
+   * from holding on to a worker forever.
+   */
+  public Future<JobResult> submit(String source, MethodId entry, OutputSink out, long fuel)
+    throws InterruptedException
+  {
+    if (fuel < 0) {
+      throw new IllegalArgumentException("fuel may not be negative: " + fuel);
+    }
+    slots.acquire();
+    long submitted = System.nanoTime();
+    FutureTask<JobResult> job = new FutureTask<JobResult>(() -> run(source, entry, out, fuel, submitted)) {
+      @Override
+      protected void done() {
+        slots.release(); // also runs if the job is cancelled before it starts
+      }
+    };
+    try {
+      workers.execute(job);
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      throw e;
+    }
+    return job;
+  }
+
+  public CacheStats programCacheStats() {
+    return programs.stats();
+  }
+
+  /**
+   * Stops taking new jobs. Jobs that were already submitted still run.
+   */
+  @Override
+  public void close() {
+    workers.shutdown();
+  }
+
+  private JobResult run(String source, MethodId entry, OutputSink out, long fuel, long submitted) {
+    long started = System.nanoTime();
+    CompiledProgram program = compile(source);
+    long compiled = System.nanoTime();
+    Object result = program.newExecution(out).setFuel(fuel).run(entry, null);
+    long finished = System.nanoTime();
+    return new JobResult(result, started - submitted, compiled - started, finished - compiled);
+  }
+
+  private static Sources parse(String source) {
+    return new Sources(new Source(ParserUtils.createParser(source).compilationUnit()));
+  }
+}
@@ -0,0 +1,429 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.node.Node;
+import com.yuvalshavit.effes.compile.node.Statement;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+import com.yuvalshavit.util.Dispatcher;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Compiles the Block IR into {@link FlatMethod}s: flat arrays of opcodes that run in a single dispatch loop, as an
+ * alternative to the tree of ExecutableElements that {@link ExecutableBlockCompiler} builds.
+ *
+ * The code works on the CallStack the same way that the tree-walker does (args are pushed last to first, a case pops
+ * its target once it's bound its vars, and so on), so the two can call each other freely. A case compiles to a jump
+ * through its decision tree, followed by each alternative's code, each of which jumps to the end of the case. Calls in
+ * tail position become tail calls. A call on a disjunctive target goes through a {@link DispatchTable}, as on the
+ * tree-walker.
+ *
+ * Since calls between flat methods don't recurse on the JVM stack, it's the heap rather than the thread's stack that
+ * bounds how deep they can go, and so the {@link #DEFAULT_MAX_DEPTH} is far higher than the tree-walker's.
+ */
+public final class FlatCompiler {
+  /**
+   * The max depth for flat methods, unless the effes.maxDepth system property says otherwise. Each call takes a hundred
+   * or so bytes of heap for its frame, so this leaves room for the values that the calls work on, too.
+   */
+  public static final int DEFAULT_MAX_DEPTH = CallStack.maxDepthForHeap(1024);
+
+  private final Function<MethodId, ExecutableMethod> builtInMethods;
+  private final Map<String, DispatchTable> dispatchTables = new HashMap<>();
+
+  public FlatCompiler(Function<MethodId, ExecutableMethod> builtInMethods) {
+    this.builtInMethods = builtInMethods;
+  }
+
+  public MethodsRegistry<ExecutableMethod> compile(MethodsRegistry<Block> methods) {
+    Map<MethodId, ExecutableMethod> compiled = new HashMap<>();
+    Function<MethodId, ExecutableMethod> lookup = id -> {
+      ExecutableMethod method = compiled.get(id);
+      assert method != null : id;
+      return method;
+    };
+    return methods.transform((id, method) -> {
+      FlatMethod flat = new MethodCompiler(lookup).method(method.getBody());
+      compiled.put(id, flat);
+      return flat;
+    });
+  }
+
+  private class MethodCompiler {
+    private final Function<MethodId, ExecutableMethod> methods;
+    private int[] code = new int[32];
+    private int size = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    MethodCompiler(Function<MethodId, ExecutableMethod> methods) {
+      this.methods = methods;
+    }
+
+    FlatMethod method(Block body) {
+      statements(body);
+      emit(FlatMethod.END); // for methods without a return value; a return statement will have already finished
+      return new FlatMethod(Arrays.copyOf(code, size), constants.toArray(), body.frameSize());
+    }
+
+    private void statements(Block block) {
+      block.statements().forEach(this::statement);
+    }
+
+    private void statement(Statement statement) {
+      statementDispatcher.apply(this, statement);
+    }
+
+    private Void assignStat(Statement.AssignStatement statement) {
+      expression(statement.value());
+      emit(FlatMethod.STORE_LOCAL, statement.var().getArgPosition());
+      return null;
+    }
+
+    private Void caseStat(Statement.CaseStatement statement) {
+      caseConstruct(statement.construct(), statement.toString(), this::statements, true);
+      return null;
+    }
+
+    private Void methodInvokeStat(Statement.MethodInvoke statement) {
+      expression(statement.methodExpr());
+      emit(FlatMethod.DROP_TO_BASE); // the method's result, if it has one
+      return null;
+    }
+
+    private Void returnStat(Statement.ReturnStatement statement) {
+      tailExpression(statement.getExpression());
+      emit(FlatMethod.RETURN);
+      return null;
+    }
+
+    private void expression(Expression expression) {
+      expressionDispatcher.apply(this, expression);
+    }
+
+    /**
+     * Like {@link #expression}, but for an expression whose value is about to be returned. A call to another Effes
+     * method (possibly via a case's alternatives) becomes a tail call, which doesn't come back here.
+     */
+    private void tailExpression(Expression expression) {
+      if (expression instanceof Expression.MethodInvoke) {
+        Expression.MethodInvoke invoke = (Expression.MethodInvoke) expression;
+        if (IntOp.recognize(invoke) == null && !invoke.isBuiltIn() && !EfType.VOID.equals(invoke.resultType())) {
+          invoke(invoke, true);
+          return;
+        }
+      } else if (expression instanceof Expression.CaseExpression && IntOp.recognize(expression) == null) {
+        Expression.CaseExpression caseExpr = (Expression.CaseExpression) expression;
+        if (!dispatch(caseExpr, true)) {
+          // each alternative returns on its own, rather than jumping to a shared return
+          caseConstruct(caseExpr.construct(), expression.toString(), this::returnedExpression, false);
+        }
+        return;
+      }
+      expression(expression);
+    }
+
+    private void returnedExpression(Expression expression) {
+      tailExpression(expression);
+      emit(FlatMethod.RETURN);
+    }
+
+    private Void assignExpr(Expression.AssignExpression expr) {
+      expression(expr.getDelegate());
+      emit(FlatMethod.DUP);
+      emit(FlatMethod.STORE_LOCAL, expr.getVar().getArgPosition());
+      return null;
+    }
+
+    private Void caseExpr(Expression.CaseExpression expr) {
+      if (!intOp(expr) && !dispatch(expr, false)) {
+        caseConstruct(expr.construct(), expr.toString(), this::expression, true);
+      }
+      return null;
+    }
+
+    private Void castExpr(Expression.CastExpression expr) {
+      expression(expr.getDelegate());
+      emit(FlatMethod.CAST, constant(expr.resultType()));
+      return null;
+    }
+
+    private Void constantExpr(Expression.ConstantExpression expr) {
+      emit(FlatMethod.CONST, constant(expr.getValue()));
+      return null;
+    }
+
+    private Void ctorInvoke(Expression.CtorInvoke expr) {
+      List<Expression> args = expr.getArgs();
+      if (args.isEmpty()) {
+        emit(FlatMethod.CONST, constant(EfValue.of(expr.simpleType())));
+        return null;
+      }
+      Lists.reverse(args).forEach(this::expression); // CallStack expects them in reverse order!
+      emit(FlatMethod.NEW, constant(expr.simpleType()), args.size());
+      return null;
+    }
+
+    private Void instanceArg(Expression.InstanceArg expr) {
+      expression(expr.getTarget());
+      emit(FlatMethod.GET_ARG, expr.getArg().getArgPosition());
+      return null;
+    }
+
+    private Void intLiteral(Expression.IntLiteral expr) {
+      emit(FlatMethod.CONST, constant(EfValue.of(expr.getValue())));
+      return null;
+    }
+
+    private Void stringLiteral(Expression.StringLiteral expr) {
+      emit(FlatMethod.CONST, constant(EfValue.of(expr.getValue())));
+      return null;
+    }
+
+    private Void methodInvoke(Expression.MethodInvoke expr) {
+      if (!intOp(expr)) {
+        invoke(expr, false);
+      }
+      return null;
+    }
+
+    private Void varExpr(Expression.VarExpression expr) {
+      emit(expr.isArg() ? FlatMethod.LOAD_ARG : FlatMethod.LOAD_LOCAL, expr.pos());
+      return null;
+    }
+
+    private Void unrecognizedExpr(Expression.UnrecognizedExpression expr) {
+      throw new IllegalArgumentException(expr.toString());
+    }
+
+    /**
+     * If the expression is a built-in Int operation, emits it and returns true. Otherwise, returns false.
+     */
+    private boolean intOp(Expression expr) {
+      IntOp.Invocation invocation = IntOp.recognize(expr);
+      if (invocation == null) {
+        return false;
+      }
+      EfValue rhsConstant = constantValue(invocation.rhs());
+      if (rhsConstant instanceof EfValue.LongValue) {
+        // the rhs is free to read, so the lhs can go first no matter what
+        expression(invocation.lhs());
+        emit(FlatMethod.INT_OP_CONST, constant(invocation.op()), constant(rhsConstant));
+      } else if (invocation.rhsFirst()) {
+        expression(invocation.rhs());
+        expression(invocation.lhs());
+        emit(FlatMethod.SWAP);
+        emit(FlatMethod.INT_OP, constant(invocation.op()));
+      } else {
+        expression(invocation.lhs());
+        expression(invocation.rhs());
+        emit(FlatMethod.INT_OP, constant(invocation.op()));
+      }
+      return true;
+    }
+
+    @Nullable
+    private EfValue constantValue(Expression expr) {
+      if (expr instanceof Expression.IntLiteral) {
+        return EfValue.of(((Expression.IntLiteral) expr).getValue());
+      } else if (expr instanceof Expression.ConstantExpression) {
+        return ((Expression.ConstantExpression) expr).getValue();
+      }
+      return null;
+    }
+
+    private void invoke(Expression.MethodInvoke invoke, boolean isTailCall) {
+      boolean hasRv = !EfType.VOID.equals(invoke.resultType());
+      if (hasRv && !isTailCall) {
+        emit(FlatMethod.RV_SLOT);
+      }
+      List<Expression> args = invoke.getArgs();
+      Lists.reverse(args).forEach(this::expression);
+      if (invoke.isBuiltIn()) {
+        FlatMethod.Callee callee = new FlatMethod.Callee(invoke.getMethodId(), hasRv, builtInMethods);
+        emit(FlatMethod.CALL_BUILTIN, constant(callee), args.size());
+      } else {
+        FlatMethod.Callee callee = new FlatMethod.Callee(invoke.getMethodId(), hasRv, methods);
+        emit(isTailCall ? FlatMethod.TAIL_CALL : FlatMethod.CALL, constant(callee), args.size());
+      }
+    }
+
+    /**
+     * If the case is a call on a disjunctive target (see {@link DispatchTable#recognize}), emits it as a dispatch
+     * through the table for that method name, and returns true. Otherwise, returns false.
+     */
+    private boolean dispatch(Expression.CaseExpression expr, boolean inTailPosition) {
+      DispatchTable.Site site = DispatchTable.recognize(expr);
+      if (site == null) {
+        return false;
+      }
+      boolean hasRv = site.hasRv();
+      boolean isTailCall = inTailPosition && hasRv;
+      if (!(site.target() instanceof Expression.VarExpression)) {
+        expression(site.target()); // for its assignment to the receiver's var
+        emit(FlatMethod.POP);
+      }
+      if (hasRv && !isTailCall) {
+        emit(FlatMethod.RV_SLOT);
+      }
+      List<Expression> args = site.args();
+      Lists.reverse(args).forEach(this::expression);
+      DispatchTable table = site.addTo(
+        dispatchTables,
+        id -> new DispatchTable.Entry(id, Suppliers.memoize(() -> methods.apply(id))::get, InvocationCounter.NONE));
+      FlatMethod.Dispatch dispatch = new FlatMethod.Dispatch(table, hasRv, expr.toString());
+      emit(isTailCall ? FlatMethod.TAIL_DISPATCH : FlatMethod.DISPATCH, constant(dispatch), args.size());
+      return true;
+    }
+
+    /**
+     * Emits a case. If the alternatives fall through to whatever comes after the case, each one ends with a jump to
+     * there; otherwise, each one must finish its method (see {@link #returnedExpression}).
+     */
+    private <N extends Node> void caseConstruct(CaseConstruct<N> construct,
+                                                String source,
+                                                Consumer<N> alternativeCompiler,
+                                                boolean fallsThrough) {
+      List<CaseConstruct.Alternative<N>> alternatives = construct.getPatterns();
+      int[] targets = new int[alternatives.size()];
+      CaseDecisionTree tree = new CaseDecisionTree(Lists.transform(alternatives, CaseConstruct.Alternative::getPAlternative));
+      FlatMethod.Match match = new FlatMethod.Match(tree, targets, source);
+      // a var can be matched and taken apart where it is, as long as no binding overwrites it along the way
+      Expression matchAgainst = construct.getMatchAgainst();
+      Expression.VarExpression var = matchAgainst instanceof Expression.VarExpression
+        ? (Expression.VarExpression) matchAgainst
+        : null;
+      if (var != null && !var.isArg() && isBoundBy(var.pos(), alternatives)) {
+        var = null;
+      }
+      if (var != null) {
+        emit(var.isArg() ? FlatMethod.MATCH_ARG : FlatMethod.MATCH_LOCAL, var.pos(), constant(match));
+      } else {
+        expression(matchAgainst);
+        emit(FlatMethod.MATCH, constant(match));
+      }
+      List<Integer> jumpsToEnd = new ArrayList<>(alternatives.size());
+      for (int i = 0; i < alternatives.size(); ++i) {
+        CaseConstruct.Alternative<N> alternative = alternatives.get(i);
+        targets[i] = size;
+        bind(alternative.getPAlternative(), new ArrayList<>(), alternative.bindings(), var);
+        if (var == null) {
+          emit(FlatMethod.POP); // the value we matched against
+        }
+        alternativeCompiler.accept(alternative.getIfMatched());
+        if (fallsThrough) {
+          emit(FlatMethod.JUMP, -1);
+          jumpsToEnd.add(size - 1);
+        }
+      }
+      for (int jump : jumpsToEnd) {
+        code[jump] = size;
+      }
+    }
+
+    private boolean isBoundBy(int pos, List<? extends CaseConstruct.Alternative<?>> alternatives) {
+      return alternatives.stream()
+        .flatMap(alternative -> alternative.bindings().values().stream())
+        .anyMatch(bound -> bound.getArgPosition() == pos);
+    }
+
+    /**
+     * Emits the code that binds each of the pattern's vars to its part of the matched value. That value is either the
+     * given var, or (if that's null) on top of the stack, where it stays.
+     */
+    private void bind(PAlternative alternative, List<Integer> path, Map<String, EfVar> bindings,
+                      @Nullable Expression.VarExpression matched) {
+      alternative.map(
+        (type, args) -> {
+          for (int i = 0; i < args.size(); ++i) {
+            path.add(i);
+            bind(args.get(i), path, bindings, matched);
+            path.remove(path.size() - 1);
+          }
+          return null;
+        },
+        name -> {
+          EfVar var = name != null
+            ? bindings.get(name)
+            : null;
+          if (var != null) {
+            if (matched != null) {
+              varExpr(matched);
+            } else {
+              emit(FlatMethod.DUP);
+            }
+            path.forEach(pos -> emit(FlatMethod.GET_ARG, pos));
+            emit(FlatMethod.STORE_LOCAL, var.getArgPosition());
+          }
+          return null;
+        });
+    }
+
+    private int constant(Object value) {
+      // callees, dispatches and matches are per call site, so only the values are worth sharing
+      if (value instanceof FlatMethod.Callee
+        || value instanceof FlatMethod.Dispatch
+        || value instanceof FlatMethod.Match) {
+        constants.add(value);
+        return constants.size() - 1;
+      }
+      return constantIndexes.computeIfAbsent(value, v -> {
+        constants.add(v);
+        return constants.size() - 1;
+      });
+    }
+
+    private void emit(int... ops) {
+      if (size + ops.length > code.length) {
+        code = Arrays.copyOf(code, Math.max(code.length * 2, size + ops.length));
+      }
+      System.arraycopy(ops, 0, code, size, ops.length);
+      size += ops.length;
+    }
+  }
+
+  private static final Dispatcher<MethodCompiler, Statement, Void> statementDispatcher =
+    Dispatcher.builder(MethodCompiler.class, Statement.class, Void.class)
+      .put(Statement.AssignStatement.class, MethodCompiler::assignStat)
+      .put(Statement.CaseStatement.class, MethodCompiler::caseStat)
+      .put(Statement.MethodInvoke.class, MethodCompiler::methodInvokeStat)
+      .put(Statement.ReturnStatement.class, MethodCompiler::returnStat)
+      .put(Statement.UnrecognizedStatement.class, (me, s) -> {
+        throw new AssertionError(s);
+      })
+      .build((me, s) -> {
+        throw new AssertionError(s);
+      });
+
+  private static final Dispatcher<MethodCompiler, Expression, Void> expressionDispatcher =
+    Dispatcher.builder(MethodCompiler.class, Expression.class, Void.class)
+      .put(Expression.AssignExpression.class, MethodCompiler::assignExpr)
+      .put(Expression.CaseExpression.class, MethodCompiler::caseExpr)
+      .put(Expression.CastExpression.class, MethodCompiler::castExpr)
+      .put(Expression.ConstantExpression.class, MethodCompiler::constantExpr)
+      .put(Expression.CtorInvoke.class, MethodCompiler::ctorInvoke)
+      .put(Expression.InstanceArg.class, MethodCompiler::instanceArg)
+      .put(Expression.IntLiteral.class, MethodCompiler::intLiteral)
+      .put(Expression.MethodInvoke.class, MethodCompiler::methodInvoke)
+      .put(Expression.StringLiteral.class, MethodCompiler::stringLiteral)
+      .put(Expression.UnrecognizedExpression.class, MethodCompiler::unrecognizedExpr)
+      .put(Expression.VarExpression.class, MethodCompiler::varExpr)
+      .build((me, e) -> {
+        throw new AssertionError(e);
+      });
+}
@@ -0,0 +1,374 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * A method that's been compiled to a flat array of opcodes, plus a pool of the constants that they refer to (see
+ * {@link FlatCompiler}). It runs in a single loop, which dispatches on each opcode in turn, and keeps all of its
+ * values on the CallStack.
+ *
+ * Calls to other flat methods don't recurse into their {@link #execute}: the loop opens the callee's frame, remembers
+ * where to come back to, and carries on with the callee's code. So a chain of Effes calls costs one JVM frame in all,
+ * rather than a handful per call, and deep recursion is bounded by the CallStack's max depth rather than the thread's
+ * stack. Every Effes method on this backend is a flat method; the only other callees are built-ins, which the loop
+ * runs in a frame of their own, without going through the tree-walker's invocation code (built-ins have no locals
+ * and never make tail calls).
+ *
+ * Each opcode is followed by its operands, if it has any. Operands named {@code k} are indexes into the constant
+ * pool, and jump targets are indexes into the code.
+ */
+public final class FlatMethod implements ExecutableMethod {
+  /** k: push the constant EfValue */
+  static final int CONST = 0;
+  /** pos: push an arg */
+  static final int LOAD_ARG = 1;
+  /** pos: push a local */
+  static final int LOAD_LOCAL = 2;
+  /** pos: pop into a local */
+  static final int STORE_LOCAL = 3;
+  static final int DUP = 4;
+  static final int POP = 5;
+  /** k, nArgs: pop the args (arg0 on top), and push a new value of the constant SimpleType */
+  static final int NEW = 6;
+  /** pos: pop a value, and push its ctor arg */
+  static final int GET_ARG = 7;
+  /** k: check that the top of the stack is an instance of the constant EfType */
+  static final int CAST = 8;
+  /** k: pop the rhs and then the lhs, and push the result of the constant IntOp */
+  static final int INT_OP = 9;
+  /** k: jump to the alternative of the constant Match that the top of the stack matches */
+  static final int MATCH = 10;
+  /** target */
+  static final int JUMP = 11;
+  /** push the slot that a call's return value goes into, before pushing its args */
+  static final int RV_SLOT = 12;
+  /** k, nArgs: call the constant Callee, whose args are on the stack (arg0 on top) */
+  static final int CALL = 13;
+  /** k, nArgs: like CALL, but reuses the current frame */
+  static final int TAIL_CALL = 14;
+  /** pop the return value, and finish the method */
+  static final int RETURN = 15;
+  /** finish the method, which doesn't return anything */
+  static final int END = 16;
+  /** pop whatever a statement left on the stack */
+  static final int DROP_TO_BASE = 17;
+  /** swap the top two values */
+  static final int SWAP = 18;
+  /** k, nArgs: like CALL, but the constant Dispatch picks the method by the receiver's type (arg0, so on top) */
+  static final int DISPATCH = 19;
+  /** k, nArgs: like DISPATCH, but reuses the current frame */
+  static final int TAIL_DISPATCH = 20;
+  /** k, nArgs: like CALL, but the constant Callee is a built-in, which runs in its own JVM frame */
+  static final int CALL_BUILTIN = 21;
+  /** k, k2: pop the lhs, and push the result of the constant IntOp on it and the constant Int */
+  static final int INT_OP_CONST = 22;
+  /** pos, k: like MATCH, but on an arg, which stays where it is rather than being pushed */
+  static final int MATCH_ARG = 23;
+  /** pos, k: like MATCH, but on a local, which stays where it is rather than being pushed */
+  static final int MATCH_LOCAL = 24;
+
+  private final int[] code;
+  private final Object[] constants;
+  private final int nVars;
+
+  FlatMethod(int[] code, Object[] constants, int nVars) {
+    this.code = code;
+    this.constants = constants;
+    this.nVars = nVars;
+  }
+
+  @Override
+  public int nVars() {
+    return nVars;
+  }
+
+  @Override
+  public void execute(CallStack stack) {
+    FlatMethod method = this;
+    int[] code = this.code;
+    Object[] constants = this.constants;
+    int pc = 0;
+    int base = stack.depth(); // our caller has already pushed our locals
+    // the methods that called the current one from within this loop, and where to pick them back up
+    FlatMethod[] callers = null;
+    int[] callerPcs = null;
+    int[] callerBases = null;
+    int nCallers = 0;
+
+    while (true) {
+      int op = code[pc++];
+      switch (op) {
+      case CONST:
+        stack.push((EfValue) constants[code[pc++]]);
+        break;
+      case LOAD_ARG:
+        stack.pushArgToStack(code[pc++]);
+        break;
+      case LOAD_LOCAL:
+        stack.pushLocalToStack(code[pc++]);
+        break;
+      case STORE_LOCAL:
+        stack.popToLocal(code[pc++]);
+        break;
+      case DUP:
+        stack.push(stack.peek());
+        break;
+      case POP:
+        stack.pop();
+        break;
+      case NEW: {
+        EfType.SimpleType type = (EfType.SimpleType) constants[code[pc++]];
+        stack.push(type, code[pc++]);
+        break;
+      }
+      case GET_ARG:
+        stack.push(stack.pop().getArg(code[pc++]));
+        break;
+      case CAST: {
+        EfType castTo = (EfType) constants[code[pc++]];
+        EfValue top = stack.peek();
+        if (!castTo.isInstance(top.getType())) {
+          throw new ClassCastException("expected type " + castTo + " but found " + top);
+        }
+        break;
+      }
+      case INT_OP: {
+        IntOp intOp = (IntOp) constants[code[pc++]];
+        long rhs = ((EfValue.LongValue) stack.pop()).getValue();
+        long lhs = ((EfValue.LongValue) stack.pop()).getValue();
+        stack.push(EfValue.of(intOp.apply(lhs, rhs)));
+        break;
+      }
+      case INT_OP_CONST: {
+        IntOp intOp = (IntOp) constants[code[pc++]];
+        long rhs = ((EfValue.LongValue) constants[code[pc++]]).getValue();
+        long lhs = ((EfValue.LongValue) stack.pop()).getValue();
+        stack.push(EfValue.of(intOp.apply(lhs, rhs)));
+        break;
+      }
+      case MATCH:
+        pc = match((Match) constants[code[pc]], stack.peek());
+        break;
+      case MATCH_ARG: {
+        EfValue value = stack.peekArg(code[pc++]);
+        pc = match((Match) constants[code[pc]], value);
+        break;
+      }
+      case MATCH_LOCAL: {
+        EfValue value = stack.peekLocal(code[pc++]);
+        pc = match((Match) constants[code[pc]], value);
+        break;
+      }
+      case JUMP:
+        pc = code[pc];
+        break;
+      case RV_SLOT:
+        stack.pushRvSlot();
+        break;
+      case CALL:
+      case DISPATCH: {
+        Object target = constants[code[pc++]];
+        int nArgs = code[pc++];
+        FlatMethod body;
+        if (op == CALL) {
+          Callee callee = (Callee) target;
+          body = (FlatMethod) callee.body();
+          stack.openFrameOverArgs(nArgs, callee.hasRv, callee.id);
+        } else {
+          Dispatch dispatch = (Dispatch) target;
+          DispatchTable.Entry entry = dispatch.entry(stack.peek());
+          body = (FlatMethod) entry.body();
+          stack.openFrameOverArgs(nArgs, dispatch.hasRv, entry.methodId());
+        }
+        if (callers == null) {
+          callers = new FlatMethod[8];
+          callerPcs = new int[8];
+          callerBases = new int[8];
+        } else if (nCallers == callers.length) {
+          callers = Arrays.copyOf(callers, nCallers * 2);
+          callerPcs = Arrays.copyOf(callerPcs, nCallers * 2);
+          callerBases = Arrays.copyOf(callerBases, nCallers * 2);
+        }
+        callers[nCallers] = method;
+        callerPcs[nCallers] = pc;
+        callerBases[nCallers] = base;
+        ++nCallers;
+        method = body;
+        code = method.code;
+        constants = method.constants;
+        pc = 0;
+        base = pushLocals(method, stack);
+        break;
+      }
+      case CALL_BUILTIN: {
+        Callee callee = (Callee) constants[code[pc++]];
+        stack.openFrameOverArgs(code[pc++], callee.hasRv, callee.id);
+        callee.body().execute(stack);
+        stack.closeFrame();
+        break;
+      }
+      case TAIL_CALL:
+      case TAIL_DISPATCH: {
+        Object target = constants[code[pc++]];
+        int nArgs = code[pc++];
+        FlatMethod body;
+        if (op == TAIL_CALL) {
+          Callee callee = (Callee) target;
+          body = (FlatMethod) callee.body();
+          stack.tailCall(body, nArgs, callee.id);
+        } else {
+          DispatchTable.Entry entry = ((Dispatch) target).entry(stack.peek());
+          body = (FlatMethod) entry.body();
+          stack.tailCall(body, nArgs, entry.methodId());
+        }
+        stack.takeTailCall();
+        method = body;
+        code = method.code;
+        constants = method.constants;
+        pc = 0;
+        base = pushLocals(method, stack);
+        break;
+      }
+      case RETURN:
+      case END:
+        if (op == RETURN) {
+          stack.popToRv();
+        }
+        if (nCallers == 0) {
+          return; // whoever opened our frame will close it
+        }
+        stack.closeFrame();
+        --nCallers;
+        method = callers[nCallers];
+        code = method.code;
+        constants = method.constants;
+        pc = callerPcs[nCallers];
+        base = callerBases[nCallers];
+        callers[nCallers] = null;
+        break;
+      case DROP_TO_BASE:
+        while (stack.depth() > base) {
+          stack.pop();
+        }
+        break;
+      case SWAP: {
+        EfValue top = stack.pop();
+        EfValue next = stack.pop();
+        stack.push(top);
+        stack.push(next);
+        break;
+      }
+      default:
+        throw new AssertionError(String.format("unknown opcode %d at %d", op, pc - 1));
+      }
+    }
+  }
+
+  /**
+   * Returns where the code for the alternative that the value matches starts.
+   */
+  private static int match(Match match, EfValue value) {
+    int matched = match.tree.match(value);
+    if (matched == CaseDecisionTree.NO_MATCH) {
+      throw new IllegalStateException(String.format("no patterns matched (%s): %s", value, match.source));
+    }
+    return match.targets[matched];
+  }
+
+  private static int pushLocals(FlatMethod method, CallStack stack) {
+    for (int nVars = method.nVars; nVars > 0; --nVars) {
+      stack.push(null);
+    }
+    return stack.depth();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("<flat method with %d opcodes and %d constants>", code.length, constants.length);
+  }
+
+  /**
+   * A call's target, which is looked up the first time it's called (so that methods can call each other regardless of
+   * the order that they're compiled in).
+   */
+  static final class Callee {
+    @Nullable
+    private final MethodId id;
+    private final boolean hasRv;
+    private final Function<MethodId, ExecutableMethod> lookup;
+    private ExecutableMethod body; // racy, but every thread would look up the same body
+
+    Callee(MethodId id, boolean hasRv, Function<MethodId, ExecutableMethod> lookup) {
+      this.id = id;
+      this.hasRv = hasRv;
+      this.lookup = lookup;
+    }
+
+    ExecutableMethod body() {
+      ExecutableMethod r = body;
+      if (r == null) {
+        r = lookup.apply(id);
+        body = r;
+      }
+      return r;
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(id);
+    }
+  }
+
+  /**
+   * A call on a disjunctive target, which picks its method out of a {@link DispatchTable}.
+   */
+  static final class Dispatch {
+    private final DispatchTable table;
+    private final boolean hasRv;
+    private final String source;
+
+    Dispatch(DispatchTable table, boolean hasRv, String source) {
+      this.table = table;
+      this.hasRv = hasRv;
+      this.source = source;
+    }
+
+    DispatchTable.Entry entry(EfValue receiver) {
+      DispatchTable.Entry entry = table.get(receiver.getType());
+      if (entry == null) {
+        throw new IllegalStateException(String.format("no method in %s for %s: %s", table, receiver, source));
+      }
+      return entry;
+    }
+
+    @Override
+    public String toString() {
+      return source;
+    }
+  }
+
+  /**
+   * A case's decision tree, and where each of its alternatives' code starts.
+   */
+  static final class Match {
+    private final CaseDecisionTree tree;
+    private final int[] targets;
+    private final String source;
+
+    Match(CaseDecisionTree tree, int[] targets, String source) {
+      this.tree = tree;
+      this.targets = targets;
+      this.source = source;
+    }
+
+    @Override
+    public String toString() {
+      return source;
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.NodeStateListener;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfArgs;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.node.Node;
+import com.yuvalshavit.effes.compile.node.Statement;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Replaces calls to small methods with the methods' bodies, which saves opening and closing a frame for each of them.
+ * A method can be inlined if:
+ * <ul>
+ *   <li>its body is a single return statement (after its own calls have been inlined), so that it can stand in for
+ *   the call wherever an expression can go</li>
+ *   <li>that statement has at most {@code maxSize} nodes</li>
+ *   <li>it can't call itself, directly or otherwise</li>
+ * </ul>
+ *
+ * The callee's locals move to slots past the caller's own. Its args are replaced by the call's args if those are vars
+ * or constants, which are free to read as many times as the body likes. Any other arg is evaluated once, in the
+ * same order as the call would have evaluated it (last arg first), and bound to a slot of its own by a
+ * single-alternative case, which is as close as the IR comes to a "let".
+ */
+public final class Inliner {
+  public static final int DEFAULT_MAX_SIZE = Integer.getInteger("effes.inline.maxSize", 24);
+
+  private final MethodsRegistry<Block> methods;
+  private final int maxSize;
+  private final Map<MethodId, Block> inlinedBodies = new HashMap<>();
+  private final Map<MethodId, Boolean> recursive = new HashMap<>();
+
+  private Inliner(MethodsRegistry<Block> methods, int maxSize) {
+    this.methods = methods;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Inlines calls to methods with at most {@code maxSize} nodes; a {@code maxSize} of 0 turns inlining off.
+   */
+  public static MethodsRegistry<Block> inline(MethodsRegistry<Block> methods, int maxSize) {
+    if (maxSize <= 0) {
+      return methods;
+    }
+    Inliner inliner = new Inliner(methods, maxSize);
+    return methods.transform((id, method) -> inliner.inlinedBody(id));
+  }
+
+  private Block inlinedBody(MethodId id) {
+    Block inlined = inlinedBodies.get(id);
+    if (inlined == null) {
+      EfMethod<? extends Block> method = methods.getMethod(id);
+      assert method != null : id;
+      Block body = method.getBody();
+      inlined = new CallSites(body.frameSize()).block(body);
+      inlinedBodies.put(id, inlined);
+    }
+    return inlined;
+  }
+
+  /**
+   * Returns the callee's body as an expression, or null if it can't be inlined.
+   */
+  @Nullable
+  private Expression inlinable(MethodId callee) {
+    EfMethod<? extends Block> method = methods.getMethod(callee);
+    if (method == null || method.getBody().statements().size() != 1 || isRecursive(callee)) {
+      return null;
+    }
+    Block body = inlinedBody(callee);
+    Statement only = body.statements().size() == 1
+      ? body.statements().get(0)
+      : null;
+    if (!(only instanceof Statement.ReturnStatement) || size(only) > maxSize) {
+      return null;
+    }
+    return ((Statement.ReturnStatement) only).getExpression();
+  }
+
+  private boolean isRecursive(MethodId id) {
+    return recursive.computeIfAbsent(id, k -> {
+      Set<MethodId> seen = new HashSet<>();
+      Deque<MethodId> todo = new ArrayDeque<>(callees(k));
+      while (!todo.isEmpty()) {
+        MethodId next = todo.pop();
+        if (next.equals(k)) {
+          return true;
+        }
+        if (seen.add(next)) {
+          todo.addAll(callees(next));
+        }
+      }
+      return false;
+    });
+  }
+
+  private Set<MethodId> callees(MethodId id) {
+    EfMethod<? extends Block> method = methods.getMethod(id);
+    if (method == null) {
+      return Collections.emptySet();
+    }
+    Set<MethodId> callees = new HashSet<>();
+    NodeStateListener.accept(method.getBody(), child -> {
+      if (child instanceof Expression.MethodInvoke && !((Expression.MethodInvoke) child).isBuiltIn()) {
+        callees.add(((Expression.MethodInvoke) child).getMethodId());
+      }
+    });
+    return callees;
+  }
+
+  private static int size(Node node) {
+    int[] size = { 0 };
+    NodeStateListener.accept(node, child -> ++size[0]);
+    return size[0];
+  }
+
+  /**
+   * Finds the call sites in one method's body, and inlines whatever it can into them.
+   */
+  private class CallSites {
+    private int nextSlot;
+
+    CallSites(int nVars) {
+      this.nextSlot = nVars;
+    }
+
+    Block block(Block block) {
+      List<Statement> statements = new ArrayList<>(block.statements().size());
+      boolean changed = false;
+      for (Statement statement : block.statements()) {
+        Statement inlined = statement(statement);
+        changed |= inlined != statement;
+        statements.add(inlined);
+      }
+      return changed
+        ? new Block(block.token(), statements)
+        : block;
+    }
+
+    Statement statement(Statement statement) {
+      if (statement instanceof Statement.AssignStatement) {
+        Statement.AssignStatement assign = (Statement.AssignStatement) statement;
+        Expression value = expression(assign.value());
+        return value != assign.value()
+          ? new Statement.AssignStatement(assign.token(), assign.var(), value)
+          : assign;
+      } else if (statement instanceof Statement.CaseStatement) {
+        CaseConstruct<Block> construct = ((Statement.CaseStatement) statement).construct();
+        CaseConstruct<Block> inlined = IrRewriter.caseConstruct(construct, this::expression, this::block, Function.identity());
+        return inlined != construct
+          ? new Statement.CaseStatement(statement.token(), inlined)
+          : statement;
+      } else if (statement instanceof Statement.ReturnStatement) {
+        Expression expression = expression(((Statement.ReturnStatement) statement).getExpression());
+        return expression != ((Statement.ReturnStatement) statement).getExpression()
+          ? new Statement.ReturnStatement(statement.token(), expression)
+          : statement;
+      } else if (statement instanceof Statement.MethodInvoke) {
+        Expression expression = expression(((Statement.MethodInvoke) statement).methodExpr());
+        return expression != ((Statement.MethodInvoke) statement).methodExpr()
+          ? new Statement.MethodInvoke(expression)
+          : statement;
+      } else {
+        return statement;
+      }
+    }
+
+    Expression expression(Expression expression) {
+      Expression rewritten = IrRewriter.rewrite(expression, this::expression, Function.identity());
+      return rewritten instanceof Expression.MethodInvoke
+        ? invoke((Expression.MethodInvoke) rewritten)
+        : rewritten;
+    }
+
+    private Expression invoke(Expression.MethodInvoke invoke) {
+      if (invoke.isBuiltIn()) {
+        return invoke;
+      }
+      Expression body = inlinable(invoke.getMethodId());
+      if (body == null) {
+        return invoke;
+      }
+      EfMethod<? extends Block> callee = methods.getMethod(invoke.getMethodId());
+      assert callee != null;
+      int base = nextSlot;
+      int nCalleeVars = inlinedBody(invoke.getMethodId()).frameSize();
+      nextSlot += nCalleeVars;
+
+      List<Expression> args = invoke.getArgs();
+      List<EfArgs.Arg> params = callee.getArgs().asList();
+      List<Expression> argValues = new ArrayList<>(args.size());
+      List<EfVar> lets = new ArrayList<>(args.size());
+      for (int i = 0; i < args.size(); ++i) {
+        Expression arg = args.get(i);
+        if (IrRewriter.isFreeToRead(arg)) {
+          argValues.add(arg);
+          lets.add(null);
+        } else {
+          String name = params.get(i).name() != null
+            ? params.get(i).name()
+            : "$arg" + i; // args can be types without names
+          EfVar let = EfVar.var(name, nextSlot++, arg.resultType());
+          argValues.add(new Expression.VarExpression(arg.token(), let));
+          lets.add(let);
+        }
+      }
+
+      Expression inlined = new Remapper(argValues, base).expression(body);
+      // the outermost let is evaluated first, and a call evaluates its args last to first (see CallStack#openFrame)
+      for (int i = 0; i < args.size(); ++i) {
+        EfVar let = lets.get(i);
+        if (let != null) {
+          inlined = IrRewriter.let(invoke.token(), let, args.get(i), inlined);
+        }
+      }
+      return inlined;
+    }
+
+  }
+
+  /**
+   * Moves an inlined body into its caller's frame: its args become the call's arg values, and its locals move up by
+   * {@code base} slots.
+   */
+  private static class Remapper {
+    private final List<Expression> args;
+    private final int base;
+
+    Remapper(List<Expression> args, int base) {
+      this.args = args;
+      this.base = base;
+    }
+
+    Expression expression(Expression expression) {
+      if (expression instanceof Expression.VarExpression) {
+        Expression.VarExpression var = (Expression.VarExpression) expression;
+        return var.isArg()
+          ? args.get(var.pos())
+          : new Expression.VarExpression(var.token(), var(var.getVar()));
+      }
+      return IrRewriter.rewrite(expression, this::expression, this::var);
+    }
+
+    EfVar var(EfVar var) {
+      return var.isArg()
+        ? var
+        : EfVar.var(var.getName(), base + var.getArgPosition(), var.getType());
+    }
+  }
+}
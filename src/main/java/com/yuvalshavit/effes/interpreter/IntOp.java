@@ -0,0 +1,193 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.BuiltinType;
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * The built-in Int operations. Knowing about these lets the backends evaluate chains of arithmetic on raw longs, and
+ * only box the result into an EfValue once it escapes.
+ */
+public enum IntOp {
+  ADD("+") {
+    @Override
+    public long apply(long lhs, long rhs) {
+      return lhs + rhs;
+    }
+  },
+  SUB("-") {
+    @Override
+    public long apply(long lhs, long rhs) {
+      return lhs - rhs;
+    }
+  },
+  MULT("*") {
+    @Override
+    public long apply(long lhs, long rhs) {
+      return lhs * rhs;
+    }
+  },
+  DIV("/") {
+    @Override
+    public long apply(long lhs, long rhs) {
+      return lhs / rhs;
+    }
+  },
+  ;
+
+  private final String methodName;
+
+  IntOp(String methodName) {
+    this.methodName = methodName;
+  }
+
+  public abstract long apply(long lhs, long rhs);
+
+  /**
+   * Returns the operation that the given invocation performs, or null if it isn't a built-in Int operation.
+   */
+  @Nullable
+  public static IntOp of(Expression.MethodInvoke invoke) {
+    MethodId id = invoke.getMethodId();
+    if (!invoke.isBuiltIn() || invoke.getArgs().size() != 2 || !isIntType(id.getDefinedOn())) {
+      return null;
+    }
+    for (IntOp op : values()) {
+      if (op.methodName.equals(id.getName())) {
+        return op;
+      }
+    }
+    return null;
+  }
+
+  private static boolean isIntType(EfType.SimpleType type) {
+    return BuiltinType.IntValue.getEfType().equals(type) || BuiltinType.IntZero.getEfType().equals(type);
+  }
+
+  /**
+   * An Int operation, along with its operands.
+   */
+  public static final class Invocation {
+    private final IntOp op;
+    private final Expression lhs;
+    private final Expression rhs;
+    private final boolean rhsFirst;
+
+    private Invocation(IntOp op, Expression lhs, Expression rhs, boolean rhsFirst) {
+      this.op = op;
+      this.lhs = lhs;
+      this.rhs = rhs;
+      this.rhsFirst = rhsFirst;
+    }
+
+    public IntOp op() {
+      return op;
+    }
+
+    public Expression lhs() {
+      return lhs;
+    }
+
+    public Expression rhs() {
+      return rhs;
+    }
+
+    /**
+     * Whether the rhs has to be evaluated before the lhs. A direct invocation evaluates its args last to first, like
+     * any other call; the compiler's dispatching case evaluates the target first, since that's what it matches on.
+     * This is only true if neither operand is free to read, since otherwise the order can't make a difference.
+     */
+    public boolean rhsFirst() {
+      return rhsFirst;
+    }
+  }
+
+  /**
+   * Recognizes a built-in Int operation. That's either a direct invocation of one, or the case expression that the
+   * compiler generates when the target is an {@code Int}: one alternative per type in the disjunction, each of which
+   * downcasts the target and invokes the same operation on it. Both of those come down to the same long arithmetic, so
+   * we can skip the case entirely. We can tell that the alternatives came from the same invocation in the source
+   * (rather than from a case the user wrote) because they share its token.
+   *
+   * @return the operation and its operands, or null if the expression isn't one of the above
+   */
+  @Nullable
+  public static Invocation recognize(Expression expression) {
+    if (expression instanceof Expression.MethodInvoke) {
+      Expression.MethodInvoke invoke = (Expression.MethodInvoke) expression;
+      IntOp op = of(invoke);
+      if (op == null) {
+        return null;
+      }
+      Expression lhs = invoke.getArgs().get(0);
+      Expression rhs = invoke.getArgs().get(1);
+      return new Invocation(op, lhs, rhs, !IrRewriter.isFreeToRead(lhs) && !IrRewriter.isFreeToRead(rhs));
+    } else if (expression instanceof Expression.CaseExpression) {
+      CaseConstruct<Expression> construct = ((Expression.CaseExpression) expression).construct();
+      Expression matchAgainst = construct.getMatchAgainst();
+      EfVar matchedVar = matchedVar(matchAgainst);
+      List<CaseConstruct.Alternative<Expression>> alternatives = construct.getPatterns();
+      if (matchedVar == null || alternatives.isEmpty()) {
+        return null;
+      }
+      IntOp op = null;
+      Expression.MethodInvoke first = null;
+      for (CaseConstruct.Alternative<Expression> alternative : alternatives) {
+        Expression ifMatched = alternative.getIfMatched();
+        if (!alternative.bindings().isEmpty() || !(ifMatched instanceof Expression.MethodInvoke)) {
+          return null;
+        }
+        Expression.MethodInvoke invoke = (Expression.MethodInvoke) ifMatched;
+        IntOp alternativeOp = of(invoke);
+        if (alternativeOp == null || !isCastOf(invoke.getArgs().get(0), matchedVar)) {
+          return null;
+        }
+        if (first == null) {
+          first = invoke;
+          op = alternativeOp;
+        } else if (op != alternativeOp || first.token() != invoke.token()) {
+          return null;
+        }
+      }
+      Expression target = matchAgainst instanceof Expression.AssignExpression
+        ? ((Expression.AssignExpression) matchAgainst).getDelegate()
+        : matchAgainst;
+      return new Invocation(op, target, first.getArgs().get(1), false);
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * The match-against of a dispatching case is either the target var itself, or an assignment of the target to a
+   * synthetic var (whose name starts with '$', which user vars can't). In the latter case, only the case's
+   * alternatives ever read that var, so once we've skipped the case we can use the target directly.
+   */
+  @Nullable
+  private static EfVar matchedVar(Expression matchAgainst) {
+    if (matchAgainst instanceof Expression.VarExpression) {
+      return ((Expression.VarExpression) matchAgainst).getVar();
+    } else if (matchAgainst instanceof Expression.AssignExpression) {
+      EfVar var = ((Expression.AssignExpression) matchAgainst).getVar();
+      return var.getName().startsWith("$")
+        ? var
+        : null;
+    } else {
+      return null;
+    }
+  }
+
+  private static boolean isCastOf(Expression expression, EfVar var) {
+    if (!(expression instanceof Expression.CastExpression)) {
+      return false;
+    }
+    Expression delegate = ((Expression.CastExpression) expression).getDelegate();
+    return delegate instanceof Expression.VarExpression && var.equals(((Expression.VarExpression) delegate).getVar());
+  }
+}
@@ -1,69 +1,51 @@
 package com.yuvalshavit.effes.interpreter;
 
-import com.google.common.collect.ImmutableList;
 import com.yuvalshavit.effes.compile.Source;
 import com.yuvalshavit.effes.compile.Sources;
-import com.yuvalshavit.effes.compile.node.Block;
 import com.yuvalshavit.effes.compile.node.CompileErrors;
-import com.yuvalshavit.effes.compile.node.EfMethod;
-import com.yuvalshavit.effes.compile.node.EfType;
-import com.yuvalshavit.effes.compile.IrCompiler;
-import com.yuvalshavit.effes.compile.node.MethodId;
-import com.yuvalshavit.effes.compile.MethodsRegistry;
-import com.yuvalshavit.effes.compile.TypeRegistry;
 import com.yuvalshavit.effes.parser.EffesParser;
 import com.yuvalshavit.effes.parser.ParserUtils;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.function.Function;
+import java.nio.file.Paths;
 
+/**
+ * Compiles a program and runs it, printing to one stream. This is a convenience over {@link CompiledProgram} (which
+ * can be shared across threads) and {@link Execution} (one per run).
+ */
 public final class Interpreter {
-  private final MethodsRegistry<ExecutableMethod> methodsRegistry;
-  private final CompileErrors errs;
+  private final CompiledProgram program;
+  private final PrintStream out;
 
-  public Interpreter(Sources sources, PrintStream out) {
-    CompileErrors errs = new CompileErrors();
-
-    IrCompiler<ExecutableMethod> compiler = new IrCompiler<>(sources, (t, e) -> getBuiltins(out, t, e), errs);
-    if (errs.hasErrors()) {
-      this.errs = errs;
-      this.methodsRegistry = null;
-      return;
-    }
-
-    MethodsRegistry<Block> compiledMethods = compiler.getCompiledMethods();
-
-    MethodsRegistry<ExecutableMethod> executableMethods = new MethodsRegistry<>();
-    Function<MethodId, ExecutableMethod> methodLookup = m -> {
-      EfMethod<? extends ExecutableMethod> method = executableMethods.getMethod(m);
-      assert method != null : m;
-      return method.getBody();
-    };
-    Function<MethodId, ExecutableMethod> builtInMethodsLookup = name -> {
-      EfMethod<? extends ExecutableMethod> method = compiler.getBuiltInMethods().getMethod(name);
-      assert method != null;
-      return method.getBody();
-    };
-    ExecutableExpressionCompiler executableExpressionCompiler = new ExecutableExpressionCompiler(
-      methodLookup,
-      builtInMethodsLookup);
-    ExecutableStatementCompiler executableStatementCompiler = new ExecutableStatementCompiler(
-      executableExpressionCompiler);
-    ExecutableBlockCompiler executableBlockCompiler = new ExecutableBlockCompiler(executableStatementCompiler);
-    executableMethods.addAll(compiledMethods, m -> executableBlockCompiler.apply(m.getBody()));
+  public enum Backend {
+    /** Walks a tree of ExecutableElements, using the CallStack for all state. */
+    TREE_WALKER,
+    /** Generates JVM classes; see {@link BytecodeCompiler}. */
+    BYTECODE,
+    /** Starts out on the tree-walker, and compiles methods to bytecode once they get hot; see {@link TieredCompiler}. */
+    TIERED,
+    /** Like TREE_WALKER, but caches the results of pure methods; see {@link Memoizer}. */
+    MEMOIZING,
+    /**
+     * Like TREE_WALKER, but records each method's calls, time and allocations; see {@link Profiler}. This is always
+     * tree-walked, since compiled code calls its callees directly, without going through anything we could wrap.
+     */
+    PROFILING,
+    /** Compiles each method to a flat array of opcodes, which run in a single dispatch loop; see {@link FlatCompiler}. */
+    FLAT,
+  }
 
-    this.errs = null;
-    this.methodsRegistry = executableMethods;
+  public Interpreter(Sources sources, PrintStream out) {
+    this(sources, out, Backend.TREE_WALKER);
   }
 
-  private static MethodsRegistry<ExecutableMethod> getBuiltins(PrintStream out, TypeRegistry typeRegistry, CompileErrors errs) {
-    MethodsRegistry<ExecutableMethod> builtInMethods = new MethodsRegistry<>();
-    ExecutableBuiltInMethods builtIns = new ExecutableBuiltInMethods(typeRegistry, out);
-    builtIns.addTo(typeRegistry, builtInMethods, errs);
-    return builtInMethods;
+  public Interpreter(Sources sources, PrintStream out, Backend backend) {
+    this.program = new CompiledProgram(sources, backend);
+    this.out = out;
   }
 
   public Interpreter(Sources sources) {
@@ -71,39 +53,43 @@ public final class Interpreter {
   }
 
   public boolean hasErrors() {
-    return errs != null;
+    return program.hasErrors();
   }
 
   public CompileErrors getErrors() {
-    return errs != null
-      ? errs
-      : new CompileErrors();
+    return program.getErrors();
+  }
+
+  public CompiledProgram getProgram() {
+    return program;
+  }
+
+  /**
+   * Returns the memoizer, whose stats say how many calls it saved; or null if this isn't the MEMOIZING backend.
+   */
+  @Nullable
+  public Memoizer getMemoizer() {
+    return program.getMemoizer();
+  }
+
+  /**
+   * Returns the profiler, which has each method's stats; or null if this isn't the PROFILING backend.
+   */
+  @Nullable
+  public Profiler getProfiler() {
+    return program.getProfiler();
   }
 
   public Object runMain() {
-    if (hasErrors()) {
-      throw new IllegalStateException("compilation had errors");
-    }
-    EfMethod<? extends ExecutableMethod> main = methodsRegistry.getMethod(MethodId.topLevel("main"));
-    if (main != null) {
-      CallStack states = new CallStack();
-      Object initial = states.snapshot();
-      if(main.getArgs().length() != 0) {
-        throw new BadMainException("main method may not take any arguments");
-      }
-      boolean hasRv = !EfType.VOID.equals(main.getResultType());
-      ExecutableExpression.MethodInvokeExpression.invoke(main.getBody(), ImmutableList.of(), states, hasRv);
-      Object rv;
-      if (hasRv) {
-        rv = states.pop();
-      } else {
-        rv = null;
-      }
-      assert states.snapshot().equals(initial) : states.snapshot();
-      return rv;
-    } else {
-      return null;
-    }
+    return runMain(null);
+  }
+
+  /**
+   * Runs the main method, with the given sampler (if any) recording its call chains. Only tree-walked methods have
+   * frames for the sampler to see; compiled code calls its callees directly.
+   */
+  public Object runMain(@Nullable SamplingProfiler sampler) {
+    return program.newExecution(out).runMain(sampler);
   }
 
   public static void main(String[] args) throws IOException {
@@ -118,7 +104,21 @@ public final class Interpreter {
         interpreter.getErrors().getErrors().forEach(System.err::println);
         System.err.println(">> Compilation had errors; not executing code.");
       } else {
-        System.err.printf(">> %s%n", interpreter.runMain());
+        String samplesFile = System.getProperty("effes.sampler.out");
+        if (samplesFile != null) {
+          try (SamplingProfiler sampler = new SamplingProfiler()) {
+            System.err.printf(">> %s%n", interpreter.runMain(sampler));
+            sampler.writeFolded(Paths.get(samplesFile));
+          }
+        } else {
+          System.err.printf(">> %s%n", interpreter.runMain());
+        }
+        if (interpreter.getMemoizer() != null) {
+          System.err.printf(">> %s%n", interpreter.getMemoizer());
+        }
+        if (interpreter.getProfiler() != null) {
+          System.err.print(interpreter.getProfiler().toTable());
+        }
       }
     } catch (Exception | AssertionError e) {
       e.printStackTrace();
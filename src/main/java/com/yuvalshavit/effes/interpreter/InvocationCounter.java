@@ -0,0 +1,10 @@
+package com.yuvalshavit.effes.interpreter;
+
+/**
+ * Gets told about every invocation of a method. This is how {@link TieredCompiler} finds out which methods are hot.
+ */
+public interface InvocationCounter {
+  InvocationCounter NONE = () -> {};
+
+  void hit();
+}
@@ -0,0 +1,176 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.Node;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+import com.yuvalshavit.util.Dispatcher;
+
+import org.antlr.v4.runtime.Token;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Helpers for the passes that rewrite the IR. The IR's nodes are immutable, so a rewrite rebuilds whatever is above
+ * the nodes that changed, and shares everything else.
+ */
+final class IrRewriter {
+  private IrRewriter() {}
+
+  /**
+   * Returns a case that binds the value to the var and then evaluates the body; it has one wildcard alternative, so
+   * it always matches. This is as close as the IR comes to a "let".
+   */
+  static Expression let(Token token, EfVar var, Expression value, Expression body) {
+    CaseConstruct.Alternative<Expression> alternative = new CaseConstruct.Alternative<>(
+      PAlternative.any(var.getName()), body, Collections.singletonMap(var.getName(), var));
+    return new Expression.CaseExpression(token, new CaseConstruct<>(value, Collections.singletonList(alternative)));
+  }
+
+  /**
+   * Whether reading the expression any number of times (including none) is the same as reading it once: that is,
+   * whether it's a var or a constant.
+   */
+  static boolean isFreeToRead(Expression expression) {
+    return expression instanceof Expression.VarExpression
+      || expression instanceof Expression.IntLiteral
+      || expression instanceof Expression.StringLiteral
+      || expression instanceof Expression.ConstantExpression;
+  }
+
+  /**
+   * Rebuilds an expression with its child expressions (and the vars that it assigns to) transformed. Returns the
+   * same expression if nothing changed.
+   */
+  static Expression rewrite(Expression expression,
+                            Function<Expression, Expression> children,
+                            Function<EfVar, EfVar> vars) {
+    return rewriter.apply(new Rewrite(children, vars), expression);
+  }
+
+  /**
+   * Rebuilds a case with its target, alternatives and bindings transformed. Returns the same case if nothing changed.
+   */
+  static <N extends Node> CaseConstruct<N> caseConstruct(CaseConstruct<N> construct,
+                                                         Function<Expression, Expression> matchAgainstF,
+                                                         Function<N, N> alternativeF,
+                                                         Function<EfVar, EfVar> vars) {
+    Expression matchAgainst = matchAgainstF.apply(construct.getMatchAgainst());
+    boolean changed = matchAgainst != construct.getMatchAgainst();
+    List<CaseConstruct.Alternative<N>> alternatives = new ArrayList<>(construct.getPatterns().size());
+    for (CaseConstruct.Alternative<N> alternative : construct.getPatterns()) {
+      N ifMatched = alternativeF.apply(alternative.getIfMatched());
+      Map<String, EfVar> bindings = new HashMap<>(alternative.bindings().size());
+      boolean bindingsChanged = false;
+      for (Map.Entry<String, EfVar> binding : alternative.bindings().entrySet()) {
+        EfVar var = vars.apply(binding.getValue());
+        bindingsChanged |= var != binding.getValue();
+        bindings.put(binding.getKey(), var);
+      }
+      if (ifMatched != alternative.getIfMatched() || bindingsChanged) {
+        alternatives.add(new CaseConstruct.Alternative<>(alternative.getPAlternative(), ifMatched, bindingsChanged
+          ? bindings
+          : alternative.bindings()));
+        changed = true;
+      } else {
+        alternatives.add(alternative);
+      }
+    }
+    return changed
+      ? new CaseConstruct<>(matchAgainst, alternatives)
+      : construct;
+  }
+
+  private static final class Rewrite {
+    private final Function<Expression, Expression> children;
+    private final Function<EfVar, EfVar> vars;
+
+    Rewrite(Function<Expression, Expression> children, Function<EfVar, EfVar> vars) {
+      this.children = children;
+      this.vars = vars;
+    }
+
+    private Expression assignExpr(Expression.AssignExpression expr) {
+      Expression delegate = children.apply(expr.getDelegate());
+      EfVar var = vars.apply(expr.getVar());
+      return delegate != expr.getDelegate() || var != expr.getVar()
+        ? new Expression.AssignExpression(delegate, var)
+        : expr;
+    }
+
+    private Expression caseExpr(Expression.CaseExpression expr) {
+      CaseConstruct<Expression> construct = caseConstruct(expr.construct(), children, children, vars);
+      return construct != expr.construct()
+        ? new Expression.CaseExpression(expr.token(), construct)
+        : expr;
+    }
+
+    private Expression castExpr(Expression.CastExpression expr) {
+      Expression delegate = children.apply(expr.getDelegate());
+      return delegate != expr.getDelegate()
+        ? new Expression.CastExpression(delegate, expr.resultType())
+        : expr;
+    }
+
+    private Expression ctorInvoke(Expression.CtorInvoke expr) {
+      List<Expression> args = expressions(expr.getArgs());
+      return args != expr.getArgs()
+        ? expr.withArgs(args)
+        : expr;
+    }
+
+    private Expression instanceArg(Expression.InstanceArg expr) {
+      Expression target = children.apply(expr.getTarget());
+      return target != expr.getTarget()
+        ? new Expression.InstanceArg(expr.token(), target, expr.getArg())
+        : expr;
+    }
+
+    private Expression methodInvoke(Expression.MethodInvoke expr) {
+      List<Expression> args = expressions(expr.getArgs());
+      return args != expr.getArgs()
+        ? expr.withArgs(args)
+        : expr;
+    }
+
+    private Expression unchanged(Expression expr) {
+      return expr;
+    }
+
+    private List<Expression> expressions(List<Expression> expressions) {
+      List<Expression> rewritten = new ArrayList<>(expressions.size());
+      boolean changed = false;
+      for (Expression expression : expressions) {
+        Expression r = children.apply(expression);
+        changed |= r != expression;
+        rewritten.add(r);
+      }
+      return changed
+        ? rewritten
+        : expressions;
+    }
+  }
+
+  private static final Dispatcher<Rewrite, Expression, Expression> rewriter =
+    Dispatcher.builder(Rewrite.class, Expression.class, Expression.class)
+      .put(Expression.AssignExpression.class, Rewrite::assignExpr)
+      .put(Expression.CaseExpression.class, Rewrite::caseExpr)
+      .put(Expression.CastExpression.class, Rewrite::castExpr)
+      .put(Expression.ConstantExpression.class, Rewrite::unchanged)
+      .put(Expression.CtorInvoke.class, Rewrite::ctorInvoke)
+      .put(Expression.InstanceArg.class, Rewrite::instanceArg)
+      .put(Expression.IntLiteral.class, Rewrite::unchanged)
+      .put(Expression.MethodInvoke.class, Rewrite::methodInvoke)
+      .put(Expression.StringLiteral.class, Rewrite::unchanged)
+      .put(Expression.UnrecognizedExpression.class, Rewrite::unchanged)
+      .put(Expression.VarExpression.class, Rewrite::unchanged)
+      .build((me, e) -> {
+        throw new AssertionError(e);
+      });
+}
@@ -0,0 +1,44 @@
+package com.yuvalshavit.effes.interpreter;
+
+/**
+ * What one of an {@link ExecutionService}'s jobs returned, and how long it spent waiting in the queue, getting its
+ * compiled program (which is quick if the program was cached) and running.
+ */
+public final class JobResult {
+  private final Object result;
+  private final long queuedNanos;
+  private final long compileNanos;
+  private final long runNanos;
+
+  public JobResult(Object result, long queuedNanos, long compileNanos, long runNanos) {
+    this.result = result;
+    this.queuedNanos = queuedNanos;
+    this.compileNanos = compileNanos;
+    this.runNanos = runNanos;
+  }
+
+  /**
+   * The entry method's result, or null if it doesn't return anything.
+   */
+  public Object getResult() {
+    return result;
+  }
+
+  public long getQueuedNanos() {
+    return queuedNanos;
+  }
+
+  public long getCompileNanos() {
+    return compileNanos;
+  }
+
+  public long getRunNanos() {
+    return runNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s (queued %.3f ms, compile %.3f ms, run %.3f ms)",
+      result, queuedNanos / 1e6, compileNanos / 1e6, runNanos / 1e6);
+  }
+}
@@ -0,0 +1,468 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.NodeStateListener;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.EfVar;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.Node;
+import com.yuvalshavit.effes.compile.node.Statement;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Gets rid of values that are built only to be taken apart again. There are two shapes:
+ * <ul>
+ *   <li>A case whose target is a constructor invocation. We can usually tell which alternative it'll match at
+ *   compile time, and bind that alternative's vars straight to the constructor's args, without ever building the
+ *   value. This includes the cases that the compiler generates for a method call on a disjunctive target, and the
+ *   "lets" that the {@link Inliner} generates.</li>
+ *   <li>A var that's bound to a constructor invocation, but only ever read to get at its fields. Each field gets a
+ *   var of its own instead, so again, the value is never built. This is what an inlined accessor on a value that was
+ *   just built looks like.</li>
+ * </ul>
+ *
+ * Either way, the constructor's args are still evaluated once each, in the same order as before (last arg first, as
+ * with a call's args). Whatever can't be worked out at compile time is left for the backends, as before.
+ */
+public final class KnownCtorEliminator {
+  /**
+   * Whether {@link CompiledProgram} runs this pass. It's on unless {@code effes.eliminateKnownCtors} is {@code false}.
+   */
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("effes.eliminateKnownCtors", "true"));
+
+  private int nextSlot;
+
+  private KnownCtorEliminator(int nVars) {
+    this.nextSlot = nVars;
+  }
+
+  public static MethodsRegistry<Block> eliminate(MethodsRegistry<Block> methods) {
+    return methods.transform((id, method) -> eliminate(method.getBody()));
+  }
+
+  public static Block eliminate(Block body) {
+    return new KnownCtorEliminator(body.frameSize()).block(body);
+  }
+
+  private Block block(Block block) {
+    List<Statement> rewritten = new ArrayList<>(block.statements().size());
+    boolean changed = false;
+    for (Statement statement : block.statements()) {
+      List<Statement> statements = statement(statement);
+      changed |= statements.size() != 1 || statements.get(0) != statement;
+      for (Statement s : statements) {
+        rewritten.add(s);
+        if (!EfType.VOID.equals(s.resultType())) {
+          return new Block(block.token(), rewritten); // see ConstantFolder#block
+        }
+      }
+    }
+    return changed
+      ? new Block(block.token(), rewritten)
+      : block;
+  }
+
+  private List<Statement> statement(Statement statement) {
+    if (statement instanceof Statement.CaseStatement) {
+      CaseConstruct<Block> construct = ((Statement.CaseStatement) statement).construct();
+      Expression matchAgainst = expression(construct.getMatchAgainst());
+      Match<Block> match = match(construct, matchAgainst);
+      if (match != null) {
+        List<Statement> statements = new ArrayList<>();
+        for (Binding binding : match.bindings) {
+          statements.add(new Statement.AssignStatement(binding.value.token(), binding.var, binding.value));
+        }
+        statements.addAll(block(match.alternative.getIfMatched()).statements());
+        return statements;
+      }
+      CaseConstruct<Block> rewritten = IrRewriter.caseConstruct(
+        construct, e -> matchAgainst, this::block, Function.identity());
+      return Collections.singletonList(rewritten != construct
+        ? new Statement.CaseStatement(statement.token(), rewritten)
+        : statement);
+    }
+    Statement rewritten;
+    if (statement instanceof Statement.AssignStatement) {
+      Statement.AssignStatement assign = (Statement.AssignStatement) statement;
+      Expression value = expression(assign.value());
+      rewritten = value != assign.value()
+        ? new Statement.AssignStatement(assign.token(), assign.var(), value)
+        : assign;
+    } else if (statement instanceof Statement.ReturnStatement) {
+      Expression expression = expression(((Statement.ReturnStatement) statement).getExpression());
+      rewritten = expression != ((Statement.ReturnStatement) statement).getExpression()
+        ? new Statement.ReturnStatement(statement.token(), expression)
+        : statement;
+    } else if (statement instanceof Statement.MethodInvoke) {
+      Expression expression = expression(((Statement.MethodInvoke) statement).methodExpr());
+      rewritten = expression != ((Statement.MethodInvoke) statement).methodExpr()
+        ? new Statement.MethodInvoke(expression)
+        : statement;
+    } else {
+      rewritten = statement;
+    }
+    return Collections.singletonList(rewritten);
+  }
+
+  private Expression expression(Expression expression) {
+    Expression rewritten = IrRewriter.rewrite(expression, this::expression, Function.identity());
+    return rewritten instanceof Expression.CaseExpression
+      ? caseExpr((Expression.CaseExpression) rewritten)
+      : rewritten;
+  }
+
+  private Expression caseExpr(Expression.CaseExpression caseExpr) {
+    CaseConstruct<Expression> construct = caseExpr.construct();
+    EfVar letVar = letVar(construct.getMatchAgainst());
+    if (letVar != null && !usesSlot(construct.getPatterns(), letVar)) {
+      // "case (let x = v in e) of ..." is "let x = v in (case e of ...)", which is what the inliner's lets look like
+      // when an inlined method returns a constructor invocation
+      CaseConstruct<Expression> let = ((Expression.CaseExpression) construct.getMatchAgainst()).construct();
+      Expression.CaseExpression inner = new Expression.CaseExpression(
+        caseExpr.token(), new CaseConstruct<>(let.getPatterns().get(0).getIfMatched(), construct.getPatterns()));
+      Expression eliminated = caseExpr(inner);
+      return eliminated != inner
+        ? let(caseExpr, letVar, let.getMatchAgainst(), eliminated)
+        : caseExpr;
+    }
+    Match<Expression> match = match(construct, construct.getMatchAgainst());
+    if (match == null) {
+      return caseExpr;
+    }
+    Expression result = match.alternative.getIfMatched();
+    for (int i = match.bindings.size() - 1; i >= 0; --i) {
+      Binding binding = match.bindings.get(i);
+      result = let(caseExpr, binding.var, binding.value, result);
+    }
+    return result;
+  }
+
+  /**
+   * If the expression is a "let" (see {@link IrRewriter#let}), returns the var that it binds.
+   */
+  @Nullable
+  private static EfVar letVar(Expression expression) {
+    if (!(expression instanceof Expression.CaseExpression)) {
+      return null;
+    }
+    List<CaseConstruct.Alternative<Expression>> alternatives = ((Expression.CaseExpression) expression).construct()
+      .getPatterns();
+    if (alternatives.size() != 1 || alternatives.get(0).bindings().size() != 1) {
+      return null;
+    }
+    boolean isWildcard = alternatives.get(0).getPAlternative().map((type, args) -> false, name -> name != null);
+    return isWildcard
+      ? alternatives.get(0).bindings().values().iterator().next()
+      : null;
+  }
+
+  private static boolean usesSlot(List<CaseConstruct.Alternative<Expression>> alternatives, EfVar var) {
+    for (CaseConstruct.Alternative<Expression> alternative : alternatives) {
+      if (usedSlots(alternative.getIfMatched()).contains(var.getArgPosition())
+        || alternative.bindings().values().stream().anyMatch(v -> v.getArgPosition() == var.getArgPosition())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // matching
+
+  private enum Tri { YES, NO, MAYBE }
+
+  private static final class Binding {
+    private final EfVar var;
+    private final Expression value;
+
+    private Binding(EfVar var, Expression value) {
+      this.var = var;
+      this.value = value;
+    }
+  }
+
+  private static final class Match<N extends Node> {
+    private final CaseConstruct.Alternative<N> alternative;
+    private final List<Binding> bindings;
+
+    private Match(CaseConstruct.Alternative<N> alternative, List<Binding> bindings) {
+      this.alternative = alternative;
+      this.bindings = bindings;
+    }
+  }
+
+  /**
+   * If the case's target is a constructor invocation, and we can tell at compile time which alternative it matches,
+   * returns that alternative, along with what each of its vars should be bound to (in the order that they should be
+   * evaluated). Otherwise, returns null.
+   */
+  @Nullable
+  private <N extends Node> Match<N> match(CaseConstruct<N> construct, Expression matchAgainst) {
+    EfVar matchAgainstVar = null;
+    if (matchAgainst instanceof Expression.AssignExpression) {
+      matchAgainstVar = ((Expression.AssignExpression) matchAgainst).getVar();
+      matchAgainst = ((Expression.AssignExpression) matchAgainst).getDelegate();
+    }
+    if (!(matchAgainst instanceof Expression.CtorInvoke) || ((Expression.CtorInvoke) matchAgainst).simpleType() == null) {
+      return null;
+    }
+    for (CaseConstruct.Alternative<N> alternative : construct.getPatterns()) {
+      switch (matches(alternative.getPAlternative(), matchAgainst)) {
+      case NO:
+        continue;
+      case MAYBE:
+        return null;
+      case YES:
+        List<Binding> bindings = new ArrayList<>();
+        if (matchAgainstVar != null) {
+          // the var needs the whole value, so we can't take the value apart as well
+          if (!alternative.bindings().isEmpty()) {
+            return null;
+          }
+          bindings.add(new Binding(matchAgainstVar, matchAgainst));
+        } else {
+          bind(alternative.getPAlternative(), matchAgainst, alternative.bindings(), bindings);
+        }
+        return clobbers(bindings)
+          ? null
+          : new Match<>(alternative, bindings);
+      default:
+        throw new AssertionError();
+      }
+    }
+    return null; // let it fail at run time, same as it always has
+  }
+
+  private static Tri matches(PAlternative alternative, Expression expression) {
+    return alternative.map(
+      (type, args) -> {
+        if (expression instanceof Expression.CtorInvoke) {
+          Expression.CtorInvoke ctor = (Expression.CtorInvoke) expression;
+          if (ctor.simpleType() == null) {
+            return Tri.MAYBE;
+          } else if (!type.sameGeneric(ctor.simpleType())) {
+            return Tri.NO;
+          } else if (args.size() != ctor.getArgs().size()) {
+            return Tri.MAYBE;
+          }
+          Tri result = Tri.YES;
+          for (int i = 0; i < args.size(); ++i) {
+            Tri arg = matches(args.get(i), ctor.getArgs().get(i));
+            if (arg == Tri.NO) {
+              return Tri.NO;
+            } else if (arg == Tri.MAYBE) {
+              result = Tri.MAYBE;
+            }
+          }
+          return result;
+        }
+        EfValue constant = constantValue(expression);
+        if (constant == null) {
+          return Tri.MAYBE;
+        } else if (!alternative.matches(constant)) {
+          return Tri.NO;
+        }
+        // it matches, but binding the constant's parts would mean building expressions for them; leave that to the
+        // ConstantFolder, which works in terms of values anyway
+        return args.stream().allMatch(KnownCtorEliminator::bindsNothing)
+          ? Tri.YES
+          : Tri.MAYBE;
+      },
+      name -> Tri.YES);
+  }
+
+  private static boolean bindsNothing(PAlternative alternative) {
+    return alternative.map(
+      (type, args) -> args.stream().allMatch(KnownCtorEliminator::bindsNothing),
+      name -> name == null);
+  }
+
+  /**
+   * Adds a binding for each var that the alternative binds, and for each of the constructor's args that needs to be
+   * evaluated even though nothing binds it. {@link #matches} must have returned YES for the alternative.
+   */
+  private void bind(PAlternative alternative, Expression expression, Map<String, EfVar> vars, List<Binding> out) {
+    alternative.map(
+      (type, args) -> {
+        if (expression instanceof Expression.CtorInvoke) {
+          List<Expression> ctorArgs = ((Expression.CtorInvoke) expression).getArgs();
+          for (int i = args.size() - 1; i >= 0; --i) { // the order the ctor would have evaluated them in
+            bind(args.get(i), ctorArgs.get(i), vars, out);
+          }
+        } // otherwise, it's a constant, and there's nothing to evaluate or bind
+        return null;
+      },
+      name -> {
+        EfVar var = name != null
+          ? vars.get(name)
+          : null;
+        if (var != null) {
+          out.add(new Binding(var, expression));
+        } else if (!IrRewriter.isFreeToRead(expression)) {
+          out.add(new Binding(freshVar(expression), expression));
+        }
+        return null;
+      });
+  }
+
+  /**
+   * Whether any binding's var is used while evaluating a later binding's value. The compiler reuses a slot once its
+   * var is out of scope, so a pattern var can share a slot with a var that's local to one of the constructor's args;
+   * that's fine when the args are all evaluated before anything is bound, but not when they're interleaved.
+   */
+  private static boolean clobbers(List<Binding> bindings) {
+    for (int i = 1; i < bindings.size(); ++i) {
+      Set<Integer> used = usedSlots(bindings.get(i).value);
+      for (int j = 0; j < i; ++j) {
+        if (used.contains(bindings.get(j).var.getArgPosition())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // scalar replacement
+
+  /**
+   * Binds the var to the value in the body. If the value is a constructor invocation, and the body only ever reads
+   * the var to get its fields, each field is bound to its own var instead.
+   */
+  private Expression let(Expression source, EfVar var, Expression value, Expression body) {
+    if (!(value instanceof Expression.CtorInvoke) || !onlyReadsFields(body, var)) {
+      return IrRewriter.let(source.token(), var, value, body);
+    }
+    List<Expression> args = ((Expression.CtorInvoke) value).getArgs();
+    Set<Integer> assignedInBody = assignedSlots(body);
+    List<Expression> fields = new ArrayList<>(args.size());
+    List<EfVar> fieldVars = new ArrayList<>(args.size());
+    for (Expression arg : args) {
+      boolean isStable = !(arg instanceof Expression.VarExpression)
+        || ((Expression.VarExpression) arg).isArg()
+        || !assignedInBody.contains(((Expression.VarExpression) arg).pos());
+      if (IrRewriter.isFreeToRead(arg) && isStable) {
+        fields.add(arg);
+        fieldVars.add(null);
+      } else {
+        EfVar fieldVar = freshVar(arg);
+        fields.add(new Expression.VarExpression(arg.token(), fieldVar));
+        fieldVars.add(fieldVar);
+      }
+    }
+    Expression result = new FieldReads(var, fields).expression(body);
+    for (int i = 0; i < args.size(); ++i) { // so that the last arg is outermost, and thus evaluated first
+      if (fieldVars.get(i) != null) {
+        result = IrRewriter.let(source.token(), fieldVars.get(i), args.get(i), result);
+      }
+    }
+    return result;
+  }
+
+  private static boolean onlyReadsFields(Expression body, EfVar var) {
+    if (assignedSlots(body).contains(var.getArgPosition())) {
+      return false;
+    }
+    int[] reads = { 0 };
+    int[] fieldReads = { 0 };
+    NodeStateListener.accept(body, child -> {
+      if (child instanceof Expression.VarExpression && isRead(child, var)) {
+        ++reads[0];
+      } else if (child instanceof Expression.InstanceArg && isRead(((Expression.InstanceArg) child).getTarget(), var)) {
+        ++fieldReads[0];
+      }
+    });
+    return reads[0] == fieldReads[0];
+  }
+
+  /**
+   * Whether the node reads the var (possibly via casts).
+   */
+  private static boolean isRead(Node node, EfVar var) {
+    while (node instanceof Expression.CastExpression) {
+      node = ((Expression.CastExpression) node).getDelegate();
+    }
+    return node instanceof Expression.VarExpression
+      && !((Expression.VarExpression) node).isArg()
+      && ((Expression.VarExpression) node).pos() == var.getArgPosition();
+  }
+
+  private static Set<Integer> assignedSlots(Node root) {
+    Set<Integer> slots = new HashSet<>();
+    NodeStateListener.accept(root, child -> {
+      EfVar var = child.var();
+      if (var != null && !var.isArg()) {
+        slots.add(var.getArgPosition());
+      }
+      CaseConstruct<?> construct = null;
+      if (child instanceof Expression.CaseExpression) {
+        construct = ((Expression.CaseExpression) child).construct();
+      } else if (child instanceof Statement.CaseStatement) {
+        construct = ((Statement.CaseStatement) child).construct();
+      }
+      if (construct != null) {
+        construct.getPatterns().forEach(p -> p.bindings().values().forEach(v -> slots.add(v.getArgPosition())));
+      }
+    });
+    return slots;
+  }
+
+  private static Set<Integer> usedSlots(Node root) {
+    Set<Integer> slots = assignedSlots(root);
+    NodeStateListener.accept(root, child -> {
+      if (child instanceof Expression.VarExpression && !((Expression.VarExpression) child).isArg()) {
+        slots.add(((Expression.VarExpression) child).pos());
+      }
+    });
+    return slots;
+  }
+
+  /**
+   * Replaces reads of a var's fields with the fields themselves.
+   */
+  private static final class FieldReads {
+    private final EfVar var;
+    private final List<Expression> fields;
+
+    private FieldReads(EfVar var, List<Expression> fields) {
+      this.var = var;
+      this.fields = fields;
+    }
+
+    Expression expression(Expression expression) {
+      if (expression instanceof Expression.InstanceArg && isRead(((Expression.InstanceArg) expression).getTarget(), var)) {
+        return fields.get(((Expression.InstanceArg) expression).getArg().getArgPosition());
+      }
+      return IrRewriter.rewrite(expression, this::expression, Function.identity());
+    }
+  }
+
+  // helpers
+
+  private EfVar freshVar(Expression value) {
+    int slot = nextSlot++;
+    return EfVar.var("$field" + slot, slot, value.resultType());
+  }
+
+  @Nullable
+  private static EfValue constantValue(Expression expression) {
+    if (expression instanceof Expression.IntLiteral) {
+      return EfValue.of(((Expression.IntLiteral) expression).getValue());
+    } else if (expression instanceof Expression.StringLiteral) {
+      return EfValue.of(((Expression.StringLiteral) expression).getValue());
+    } else if (expression instanceof Expression.ConstantExpression) {
+      return ((Expression.ConstantExpression) expression).getValue();
+    } else {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.PurityAnalysis;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the results of pure methods, keyed by the method and its args. A naively recursive method like fib goes
+ * from exponential to linear time this way, since each distinct call only gets evaluated once.
+ *
+ * Only calls that aren't in tail position are memoized. A tail call stays a tail call, so that a pure method that
+ * loops by tail-calling itself still runs in constant space.
+ *
+ * The cache is bounded, evicting the least recently used results once it holds more than
+ * {@code effes.memo.maxSize} of them (10,000 by default).
+ */
+public final class Memoizer {
+  public static final long DEFAULT_MAX_SIZE = Long.getLong("effes.memo.maxSize", 10_000);
+
+  private final Set<MethodId> memoizable;
+  private final Cache<Key, EfValue> cache;
+
+  public Memoizer(MethodsRegistry<Block> methods, long maxSize) {
+    this.memoizable = PurityAnalysis.pureMethods(methods).stream()
+      .filter(id -> !EfType.VOID.equals(methods.getMethod(id).getResultType()))
+      .collect(Collectors.toSet());
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+  }
+
+  public boolean isMemoizable(MethodId method) {
+    return memoizable.contains(method);
+  }
+
+  @Nullable
+  public EfValue get(MethodId method, EfValue[] args) {
+    return cache.getIfPresent(new Key(method, args));
+  }
+
+  public void put(MethodId method, EfValue[] args, EfValue result) {
+    cache.put(new Key(method, args), result);
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = stats();
+    return String.format("memo: %d hits, %d misses, %d evictions", stats.hitCount(), stats.missCount(), stats.evictionCount());
+  }
+
+  private static final class Key {
+    private final MethodId method;
+    private final EfValue[] args;
+    private final int hash;
+
+    Key(MethodId method, EfValue[] args) {
+      this.method = method;
+      this.args = args;
+      this.hash = 31 * method.hashCode() + Arrays.hashCode(args);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      Key other = (Key) o;
+      return hash == other.hash && method.equals(other.method) && Arrays.equals(args, other.args);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
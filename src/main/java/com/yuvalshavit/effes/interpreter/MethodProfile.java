@@ -0,0 +1,55 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+/**
+ * One method's stats, as gathered by a {@link Profiler}. Times are in nanoseconds.
+ *
+ * Inclusive time counts the method's callees, but only once per outermost activation, so recursive methods don't count
+ * the same time repeatedly. Self time and allocations don't count callees. A tail call ends the caller's activation, so
+ * the callee's time counts as its own and not as part of the caller's.
+ */
+public final class MethodProfile {
+  private final MethodId method;
+  private final long calls;
+  private final long inclusiveNanos;
+  private final long selfNanos;
+  private final long allocations;
+
+  MethodProfile(MethodId method, long calls, long inclusiveNanos, long selfNanos, long allocations) {
+    this.method = method;
+    this.calls = calls;
+    this.inclusiveNanos = inclusiveNanos;
+    this.selfNanos = selfNanos;
+    this.allocations = allocations;
+  }
+
+  public MethodId getMethod() {
+    return method;
+  }
+
+  public long getCalls() {
+    return calls;
+  }
+
+  public long getInclusiveNanos() {
+    return inclusiveNanos;
+  }
+
+  public long getSelfNanos() {
+    return selfNanos;
+  }
+
+  /**
+   * The number of {@link EfValue}s built while this method was running, not counting its callees.
+   */
+  public long getAllocations() {
+    return allocations;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d calls, %d ns inclusive, %d ns self, %d allocations",
+      method, calls, inclusiveNanos, selfNanos, allocations);
+  }
+}
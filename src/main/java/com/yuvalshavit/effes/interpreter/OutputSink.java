@@ -0,0 +1,35 @@
+package com.yuvalshavit.effes.interpreter;
+
+import java.io.PrintStream;
+
+/**
+ * Where a run's print built-in writes its lines. Sinks are used by one run at a time, so they needn't be thread-safe;
+ * an {@link Execution} flushes its sink when each run ends.
+ *
+ * @see BufferedOutputSink
+ * @see StringOutputSink
+ */
+public interface OutputSink {
+  void println(String line);
+
+  void flush();
+
+  /**
+   * Returns a sink that writes each line straight to the given stream. This is the simplest sink, but also the slowest
+   * if the stream is synchronized or flushes on every line (as {@code System.out} does); prefer
+   * {@link BufferedOutputSink#to} for programs that print a lot.
+   */
+  static OutputSink of(PrintStream out) {
+    return new OutputSink() {
+      @Override
+      public void println(String line) {
+        out.println(line);
+      }
+
+      @Override
+      public void flush() {
+        out.flush();
+      }
+    };
+  }
+}
@@ -0,0 +1,238 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records each method's call count, time and allocations. It works by wrapping each {@link ExecutableMethod}, so it
+ * costs nothing unless a program is compiled with it (see {@link Interpreter.Backend#PROFILING}).
+ *
+ * A method's tail calls count as its callees, so its inclusive time covers everything up until its frame returns. (The
+ * wrapper runs them itself, rather than leaving them for the frame's owner, which would run them after the caller's
+ * time had stopped.)
+ *
+ * Each thread that runs profiled code keeps its own stack of running methods and its own stats, so several runs can
+ * share a profiler; {@link #getProfiles()} adds up every thread's stats. Read them once the runs are done. Allocations
+ * are counted process-wide, though, so a method's allocation count is only exact if no other profiled run is going at
+ * the same time.
+ *
+ * The wrappers take a few more JVM frames per call, so profiled code gets a {@link #DEFAULT_MAX_DEPTH} of its own, a bit
+ * lower than the tree-walker's.
+ */
+public final class Profiler {
+  /**
+   * The max depth for profiled code, unless the effes.maxDepth system property says otherwise. Roughly as many
+   * profiled calls as fit in a thread of the JVM's default stack size.
+   */
+  public static final int DEFAULT_MAX_DEPTH = CallStack.maxDepthForJvmStack(1600);
+
+  private final Map<MethodId, ProfiledMethod> wrapped = new HashMap<>(); // guarded by this
+  private final List<Tracker> trackers = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<Tracker> tracker = ThreadLocal.withInitial(() -> {
+    Tracker t = new Tracker();
+    trackers.add(t);
+    return t;
+  });
+
+  /**
+   * Returns a method that records its stats to this profiler, and otherwise does what the given one does. Wrapping
+   * the same method id twice returns the same wrapper.
+   */
+  public synchronized ExecutableMethod wrap(MethodId id, ExecutableMethod method) {
+    return wrapped.computeIfAbsent(id, k -> new ProfiledMethod(id, wrapped.size(), method));
+  }
+
+  /**
+   * Returns the stats of every method that was called, hottest (by self time) first.
+   */
+  public List<MethodProfile> getProfiles() {
+    Map<MethodId, Stats> totals = new HashMap<>();
+    for (Tracker t : trackers) {
+      for (Stats s : t.stats) {
+        if (s != null && s.calls != 0) {
+          totals.computeIfAbsent(s.method, Stats::new).add(s);
+        }
+      }
+    }
+    List<MethodProfile> profiles = new ArrayList<>(totals.size());
+    for (Stats s : totals.values()) {
+      profiles.add(new MethodProfile(s.method, s.calls, s.inclusiveNanos, s.selfNanos, s.allocations));
+    }
+    profiles.sort(Comparator.comparingLong(MethodProfile::getSelfNanos).reversed());
+    return profiles;
+  }
+
+  /**
+   * Returns the profiles as a table, hottest first.
+   */
+  public String toTable() {
+    List<MethodProfile> profiles = getProfiles();
+    int width = "method".length();
+    for (MethodProfile profile : profiles) {
+      width = Math.max(width, profile.getMethod().toString().length());
+    }
+    String format = "%-" + width + "s %12s %14s %14s %14s%n";
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(format, "method", "calls", "incl ms", "self ms", "allocations"));
+    for (MethodProfile profile : profiles) {
+      sb.append(String.format(format,
+        profile.getMethod(),
+        profile.getCalls(),
+        String.format("%.3f", profile.getInclusiveNanos() / 1e6),
+        String.format("%.3f", profile.getSelfNanos() / 1e6),
+        profile.getAllocations()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * One thread's stack of running methods (when each started, and how much of that went to its callees), and its
+   * stats, indexed by each wrapper's index.
+   */
+  private static final class Tracker {
+    private long[] startNanos = new long[64];
+    private long[] calleeNanos = new long[64];
+    private long[] startAllocations = new long[64];
+    private long[] calleeAllocations = new long[64];
+    private int depth;
+    private volatile Stats[] stats = new Stats[16]; // volatile so that getProfiles sees the latest array
+
+    Stats stats(ProfiledMethod method) {
+      Stats[] current = stats;
+      if (method.index >= current.length) {
+        current = Arrays.copyOf(current, Math.max(current.length * 2, method.index + 1));
+        stats = current;
+      }
+      Stats s = current[method.index];
+      if (s == null) {
+        s = new Stats(method.id);
+        current[method.index] = s;
+      }
+      return s;
+    }
+
+    void enter(Stats method) {
+      if (depth == startNanos.length) {
+        int newSize = depth * 2;
+        startNanos = Arrays.copyOf(startNanos, newSize);
+        calleeNanos = Arrays.copyOf(calleeNanos, newSize);
+        startAllocations = Arrays.copyOf(startAllocations, newSize);
+        calleeAllocations = Arrays.copyOf(calleeAllocations, newSize);
+      }
+      if (depth == 0) {
+        EfValue.countAllocations(true);
+      }
+      ++method.calls;
+      ++method.active;
+      calleeNanos[depth] = 0;
+      calleeAllocations[depth] = 0;
+      startAllocations[depth] = EfValue.allocations();
+      startNanos[depth] = System.nanoTime(); // last, so that the bookkeeping isn't counted
+      ++depth;
+    }
+
+    void exit(Stats method) {
+      long end = System.nanoTime();
+      --depth;
+      long elapsed = end - startNanos[depth];
+      long allocated = EfValue.allocations() - startAllocations[depth];
+      method.selfNanos += elapsed - calleeNanos[depth];
+      method.allocations += allocated - calleeAllocations[depth];
+      if (--method.active == 0) {
+        method.inclusiveNanos += elapsed;
+      }
+      if (depth > 0) {
+        calleeNanos[depth - 1] += elapsed;
+        calleeAllocations[depth - 1] += allocated;
+      } else {
+        EfValue.countAllocations(false);
+      }
+    }
+  }
+
+  private static final class Stats {
+    private final MethodId method;
+    private long calls;
+    private long inclusiveNanos;
+    private long selfNanos;
+    private long allocations;
+    private int active; // how many activations are on the stack, for recursive methods
+
+    Stats(MethodId method) {
+      this.method = method;
+    }
+
+    void add(Stats other) {
+      calls += other.calls;
+      inclusiveNanos += other.inclusiveNanos;
+      selfNanos += other.selfNanos;
+      allocations += other.allocations;
+    }
+  }
+
+  private final class ProfiledMethod implements ExecutableMethod {
+    private final MethodId id;
+    private final int index;
+    private final ExecutableMethod delegate;
+
+    ProfiledMethod(MethodId id, int index, ExecutableMethod delegate) {
+      this.id = id;
+      this.index = index;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public int nVars() {
+      return delegate.nVars();
+    }
+
+    @Override
+    public void execute(CallStack stack) {
+      Tracker t = tracker.get();
+      Stats stats = t.stats(this);
+      t.enter(stats);
+      try {
+        delegate.execute(stack);
+        // same as ExecutableExpression.MethodInvokeExpression#run, but within our time; the loop keeps tail calls flat
+        ExecutableMethod tailCall;
+        while ((tailCall = stack.takeTailCall()) != null) {
+          for (int nVars = tailCall.nVars(); nVars > 0; --nVars) {
+            stack.push(null);
+          }
+          if (tailCall instanceof ProfiledMethod) {
+            ((ProfiledMethod) tailCall).executeOnce(stack, t);
+          } else {
+            tailCall.execute(stack);
+          }
+        }
+      } finally {
+        t.exit(stats);
+      }
+    }
+
+    /**
+     * Runs just this method, leaving any tail call it makes pending for the caller's loop.
+     */
+    private void executeOnce(CallStack stack, Tracker t) {
+      Stats stats = t.stats(this);
+      t.enter(stats);
+      try {
+        delegate.execute(stack);
+      } finally {
+        t.exit(stats);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return delegate.toString();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically records the Effes-level call chain (the methods of each open {@link CallStack} frame), and counts how
+ * often each chain comes up. Unlike {@link Profiler}, this doesn't instrument every call, so it's cheap enough to
+ * leave on for long runs.
+ *
+ * A timer thread asks for a sample every interval; the interpreter's thread takes it the next time it opens a frame or
+ * makes a tail call. Checking for that request is a field read, and walking the stack only happens once per interval.
+ * Since every loop in Effes is a recursion, no busy code goes long without checking. Frames whose method isn't known
+ * (such as those of compiled code's calls into the interpreter) show up as "?".
+ *
+ * The sampler sees the program after it's been compiled, and only the PROFILING backend skips the {@link Inliner}; on
+ * any other backend, a method that was inlined into its callers never opens a frame of its own, so its samples are
+ * counted against those callers. To see every method, run with {@code -Deffes.inline.maxSize=0}.
+ *
+ * The results are in the folded-stack format that flame graph tools read: one line per distinct chain, outermost
+ * method first, separated by semicolons and followed by the sample count.
+ */
+public final class SamplingProfiler implements AutoCloseable {
+  public static final long DEFAULT_INTERVAL_MICROS = Long.getLong("effes.sampler.intervalMicros", 10_000);
+
+  private final ScheduledExecutorService timer;
+  private final Map<String, Long> samples = new TreeMap<>();
+  private volatile boolean requested;
+
+  public SamplingProfiler() {
+    this(DEFAULT_INTERVAL_MICROS);
+  }
+
+  public SamplingProfiler(long intervalMicros) {
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "effes-sampler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.scheduleAtFixedRate(() -> requested = true, intervalMicros, intervalMicros, TimeUnit.MICROSECONDS);
+  }
+
+  void poll(CallStack stack) {
+    if (requested) {
+      requested = false;
+      record(stack);
+    }
+  }
+
+  private void record(CallStack stack) {
+    StringBuilder sb = new StringBuilder();
+    for (int frame = 0, depth = stack.frameDepth(); frame < depth; ++frame) {
+      if (frame != 0) {
+        sb.append(';');
+      }
+      MethodId method = stack.frameMethod(frame);
+      sb.append(method == null ? "?" : method.toString().replace(';', '_').replace(' ', '_'));
+    }
+    samples.merge(sb.toString(), 1L, Long::sum);
+  }
+
+  /**
+   * Returns the number of samples of each call chain. Read this once the sampled run is done.
+   */
+  public Map<String, Long> getFoldedStacks() {
+    return Collections.unmodifiableMap(samples);
+  }
+
+  public void writeFolded(Writer out) throws IOException {
+    for (Map.Entry<String, Long> entry : samples.entrySet()) {
+      out.write(entry.getKey());
+      out.write(' ');
+      out.write(entry.getValue().toString());
+      out.write('\n');
+    }
+  }
+
+  public void writeFolded(Path file) throws IOException {
+    try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      writeFolded(out);
+    }
+  }
+
+  /**
+   * Stops the timer. Samples that were already taken are still available.
+   */
+  @Override
+  public void close() {
+    timer.shutdownNow();
+  }
+}
@@ -0,0 +1,192 @@
+package com.yuvalshavit.effes.interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.MissingFormatArgumentException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sprintf format, parsed once so that formatting with it doesn't have to. Since sprintf's args are always strings
+ * (each one's user-visible string), the only specifiers that can work are {@code %s} and {@code %S} (with an optional
+ * argument index, width, precision and {@code -} flag), {@code %%} and {@code %n}; those we handle ourselves. A format
+ * with anything else falls back to {@link String#format}, so it fails (or not) exactly as it would there.
+ *
+ * Formatting walks the args list once, as the specifiers ask for its elements.
+ */
+final class SprintfFormat {
+  // the same syntax that java.util.Formatter accepts
+  private static final Pattern SPECIFIER = Pattern.compile("%(\\d+\\$)?([-#+ 0,(<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
+  private static final String NEWLINE = System.lineSeparator();
+
+  private final String format;
+  private final Object[] pieces; // Strings (literal text) and Specifiers; null if we fall back to String.format
+  private final boolean hasArgIndexes;
+
+  private SprintfFormat(String format, Object[] pieces, boolean hasArgIndexes) {
+    this.format = format;
+    this.pieces = pieces;
+    this.hasArgIndexes = hasArgIndexes;
+  }
+
+  static SprintfFormat parse(String format) {
+    List<Object> pieces = new ArrayList<>();
+    boolean hasArgIndexes = false;
+    Matcher matcher = SPECIFIER.matcher(format);
+    StringBuilder text = new StringBuilder();
+    int pos = 0;
+    while (pos < format.length()) {
+      int percent = format.indexOf('%', pos);
+      if (percent < 0) {
+        text.append(format, pos, format.length());
+        break;
+      }
+      text.append(format, pos, percent);
+      if (!matcher.region(percent, format.length()).lookingAt()) {
+        return fallback(format); // String.format will throw UnknownFormatConversionException
+      }
+      pos = matcher.end();
+      String index = matcher.group(1);
+      String flags = matcher.group(2) == null ? "" : matcher.group(2);
+      String width = matcher.group(3);
+      String precision = matcher.group(4);
+      char conversion = matcher.group(6).charAt(0);
+      boolean plain = index == null && flags.isEmpty() && width == null && precision == null && matcher.group(5) == null;
+      if (conversion == '%' && plain) {
+        text.append('%');
+      } else if (conversion == 'n' && plain) {
+        text.append(NEWLINE);
+      } else if ((conversion == 's' || conversion == 'S') && matcher.group(5) == null && (flags.isEmpty() || flags.equals("-"))) {
+        Specifier specifier;
+        try {
+          specifier = new Specifier(
+            matcher.group(),
+            index == null ? -1 : Integer.parseInt(index.substring(0, index.length() - 1)) - 1,
+            !flags.isEmpty(),
+            width == null ? -1 : Integer.parseInt(width),
+            precision == null ? -1 : Integer.parseInt(precision.substring(1)),
+            conversion == 'S');
+        } catch (NumberFormatException e) {
+          return fallback(format);
+        }
+        if (specifier.argIndex < -1 || (specifier.leftJustify && specifier.width < 0)) {
+          return fallback(format); // an index of 0, or a '-' without a width
+        }
+        hasArgIndexes |= specifier.argIndex >= 0;
+        if (text.length() != 0) {
+          pieces.add(text.toString());
+          text.setLength(0);
+        }
+        pieces.add(specifier);
+      } else {
+        return fallback(format);
+      }
+    }
+    if (text.length() != 0) {
+      pieces.add(text.toString());
+    }
+    return new SprintfFormat(format, pieces.toArray(), hasArgIndexes);
+  }
+
+  private static SprintfFormat fallback(String format) {
+    return new SprintfFormat(format, null, true);
+  }
+
+  /**
+   * Appends the formatted args (a List[String], as a Head/Empty chain) to the given builder.
+   */
+  void appendTo(StringBuilder sb, EfValue args) {
+    if (pieces == null) {
+      sb.append(String.format(format, (Object[]) userVisibleStrings(args)));
+      return;
+    }
+    String[] indexedArgs = hasArgIndexes ? userVisibleStrings(args) : null;
+    int nextArg = 0;
+    EfValue node = args;
+    for (Object piece : pieces) {
+      if (piece instanceof String) {
+        sb.append((String) piece);
+        continue;
+      }
+      Specifier specifier = (Specifier) piece;
+      String arg;
+      if (indexedArgs != null) {
+        int index = specifier.argIndex >= 0 ? specifier.argIndex : nextArg++;
+        if (index >= indexedArgs.length) {
+          throw new MissingFormatArgumentException(specifier.text);
+        }
+        arg = indexedArgs[index];
+      } else {
+        if (node.arity() == 0) {
+          throw new MissingFormatArgumentException(specifier.text);
+        }
+        assert node.arity() == 2 : "not a List: " + args;
+        arg = node.getArg(0).getUserVisibleString();
+        node = node.getArg(1);
+      }
+      specifier.appendTo(sb, arg);
+    }
+  }
+
+  private static String[] userVisibleStrings(final EfValue head) {
+    // assume that we either have a Head(T, tail) or an Empty.
+    int nArgs = 0;
+    for (EfValue node = head; node.arity() != 0; node = node.getArg(1)) {
+      assert node.arity() == 2 : "not a List: " + head;
+      ++nArgs;
+    }
+    String[] result = new String[nArgs];
+    int index = 0;
+    for (EfValue node = head; node.arity() != 0; node = node.getArg(1)) {
+      result[index++] = node.getArg(0).getUserVisibleString();
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return format;
+  }
+
+  private static final class Specifier {
+    private final String text;
+    private final int argIndex; // -1 for the next ordinary arg
+    private final boolean leftJustify;
+    private final int width; // -1 for none
+    private final int precision; // -1 for none
+    private final boolean upperCase;
+
+    Specifier(String text, int argIndex, boolean leftJustify, int width, int precision, boolean upperCase) {
+      this.text = text;
+      this.argIndex = argIndex;
+      this.leftJustify = leftJustify;
+      this.width = width;
+      this.precision = precision;
+      this.upperCase = upperCase;
+    }
+
+    void appendTo(StringBuilder sb, String arg) {
+      if (precision >= 0 && precision < arg.length()) {
+        arg = arg.substring(0, precision);
+      }
+      if (upperCase) {
+        arg = arg.toUpperCase(Locale.getDefault(Locale.Category.FORMAT));
+      }
+      int padding = width - arg.length();
+      if (!leftJustify) {
+        pad(sb, padding);
+      }
+      sb.append(arg);
+      if (leftJustify) {
+        pad(sb, padding);
+      }
+    }
+
+    private static void pad(StringBuilder sb, int padding) {
+      for (int i = 0; i < padding; ++i) {
+        sb.append(' ');
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.yuvalshavit.effes.interpreter;
+
+/**
+ * Collects a run's output in memory.
+ */
+public final class StringOutputSink implements OutputSink {
+  private static final String NEWLINE = System.lineSeparator();
+
+  private final StringBuilder output = new StringBuilder();
+
+  @Override
+  public void println(String line) {
+    output.append(line).append(NEWLINE);
+  }
+
+  @Override
+  public void flush() {
+    // nothing to do
+  }
+
+  public String getOutput() {
+    return output.toString();
+  }
+
+  @Override
+  public String toString() {
+    return getOutput();
+  }
+}
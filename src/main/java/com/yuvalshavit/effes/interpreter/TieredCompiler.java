@@ -0,0 +1,222 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CaseConstruct;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.node.Statement;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs methods on the tree-walker until they get hot, and then swaps in a {@link BytecodeCompiler}-generated body.
+ *
+ * Each method gets an {@link InvocationCounter}, which the tree-walker bumps on every call. Once a method has been
+ * called {@code threshold} times, we compile just that method and replace its entry in the executable registry.
+ * Callers look the body up on every call, so they pick up the generated one from then on; calls that are already in
+ * progress finish on the tree-walker. Cold methods never pay for code generation, so a short script starts up just as
+ * quickly as it does on the plain tree-walker.
+ *
+ * Generated code calls other methods through a {@link MutableCallSite} per callee, which starts out pointing at the
+ * callee's tree-walker body and gets re-linked to its generated body when that method tiers up.
+ *
+ * Generated code only turns a method's tail calls to itself into jumps; its tail calls to other methods are plain JVM
+ * calls. So methods that tail-call each other in a cycle (like an isEven/isOdd pair) never tier up, and keep running
+ * in constant space on the tree-walker. Methods that tail-call other methods outside of such a cycle tier up as usual.
+ *
+ * A compiled program may be run by several threads at once, so tiering up is serialized per program; a thread that
+ * looks a method up while another is replacing it just gets the tree-walker body for one more call.
+ */
+public final class TieredCompiler {
+  public static final int DEFAULT_THRESHOLD = Integer.getInteger("effes.tierUpThreshold", 1000);
+
+  private final Function<MethodId, ExecutableMethod> builtInMethods;
+  private final BytecodeCompiler bytecodeCompiler;
+  private final int threshold;
+
+  public TieredCompiler(Function<MethodId, ExecutableMethod> builtInMethods, int threshold) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("threshold must be positive: " + threshold);
+    }
+    this.builtInMethods = builtInMethods;
+    this.bytecodeCompiler = new BytecodeCompiler(builtInMethods);
+    this.threshold = threshold;
+  }
+
+  public MethodsRegistry<ExecutableMethod> compile(MethodsRegistry<Block> methods) {
+    return new Program(methods).executableMethods;
+  }
+
+  private class Program {
+    private final MethodsRegistry<Block> sources;
+    private final MethodsRegistry<ExecutableMethod> executableMethods = MethodsRegistry.concurrent();
+    private final Map<MethodId, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<MethodId, MutableCallSite> callSites = new HashMap<>(); // guarded by this
+    private final Set<MethodId> tailCallCycles;
+
+    Program(MethodsRegistry<Block> sources) {
+      this.sources = sources;
+      this.tailCallCycles = tailCallCycles(sources);
+      ExecutableExpressionCompiler executableExpressionCompiler = new ExecutableExpressionCompiler(
+        m -> method(m).getBody(),
+        builtInMethods,
+        this::counter);
+      ExecutableStatementCompiler executableStatementCompiler = new ExecutableStatementCompiler(
+        executableExpressionCompiler);
+      ExecutableBlockCompiler executableBlockCompiler = new ExecutableBlockCompiler(executableStatementCompiler);
+      executableMethods.addAll(sources, m -> executableBlockCompiler.apply(m.getBody()));
+    }
+
+    private EfMethod<? extends ExecutableMethod> method(MethodId id) {
+      EfMethod<? extends ExecutableMethod> method = executableMethods.getMethod(id);
+      assert method != null : id;
+      return method;
+    }
+
+    private Counter counter(MethodId id) {
+      return counters.computeIfAbsent(id, Counter::new);
+    }
+
+    /**
+     * The handle that generated code uses to call the given method. Until that method tiers up, the handle goes
+     * through its counter, since calls from generated code don't go through the tree-walker's counting.
+     */
+    private MethodHandle invoker(MethodId id) {
+      return callSites.computeIfAbsent(id, k -> {
+        EfMethod<? extends ExecutableMethod> method = method(k);
+        ExecutableMethod target = method.getBody();
+        Counter counter = counter(k);
+        if (!counter.isTieredUp()) {
+          target = new ExecutableMethod() {
+            @Override
+            public int nVars() {
+              return method.getBody().nVars();
+            }
+
+            @Override
+            public void execute(CallStack stack) {
+              counter.hit();
+              method.getBody().execute(stack);
+            }
+          };
+        }
+        return new MutableCallSite(handleFor(method, target));
+      }).dynamicInvoker();
+    }
+
+    private synchronized void tierUp(MethodId id) {
+      EfMethod<? extends Block> source = sources.getMethod(id);
+      assert source != null : id;
+      ExecutableMethod compiled = bytecodeCompiler.compile(id, source, this::invoker);
+      EfMethod<ExecutableMethod> tieredUp = source.tranform(ignored -> compiled);
+      executableMethods.replaceMethod(id, tieredUp);
+      counter(id).tieredUp = true;
+      MutableCallSite callSite = callSites.get(id);
+      if (callSite != null) {
+        callSite.setTarget(handleFor(tieredUp, compiled));
+        MutableCallSite.syncAll(new MutableCallSite[] { callSite });
+      }
+    }
+
+    private class Counter implements InvocationCounter {
+      private final MethodId id;
+      private final AtomicInteger remaining;
+      private boolean tieredUp; // guarded by Program.this
+
+      Counter(MethodId id) {
+        this.id = id;
+        this.remaining = new AtomicInteger(tailCallCycles.contains(id)
+          ? -1 // never tier up
+          : threshold);
+      }
+
+      @Override
+      public void hit() {
+        // once we're done counting, this is just a read; and only the thread that counts down to zero tiers up
+        if (remaining.get() > 0 && remaining.decrementAndGet() == 0) {
+          tierUp(id);
+        }
+      }
+
+      boolean isTieredUp() {
+        return tieredUp;
+      }
+    }
+  }
+
+  /**
+   * The methods that can reach themselves through tail calls to other methods. Generated code turns self tail calls into
+   * jumps, but other tail calls are plain JVM calls; so to keep these methods in constant space, we leave them on the
+   * tree-walker.
+   */
+  @VisibleForTesting
+  static Set<MethodId> tailCallCycles(MethodsRegistry<Block> methods) {
+    Map<MethodId, Set<MethodId>> tailCallees = new HashMap<>();
+    methods.getMethodsByName().forEach((id, method) -> {
+      Set<MethodId> callees = new HashSet<>();
+      otherTailCallees(id, method.getBody(), callees);
+      tailCallees.put(id, callees);
+    });
+    Set<MethodId> cycles = new HashSet<>();
+    for (MethodId id : tailCallees.keySet()) {
+      Set<MethodId> seen = new HashSet<>();
+      Deque<MethodId> pending = new ArrayDeque<>(tailCallees.get(id));
+      while (!pending.isEmpty()) {
+        MethodId callee = pending.pop();
+        if (callee.equals(id)) {
+          cycles.add(id);
+          break;
+        }
+        if (seen.add(callee)) {
+          pending.addAll(tailCallees.getOrDefault(callee, Collections.emptySet()));
+        }
+      }
+    }
+    return cycles;
+  }
+
+  private static void otherTailCallees(MethodId self, Block block, Set<MethodId> into) {
+    for (Statement statement : block.statements()) {
+      if (statement instanceof Statement.ReturnStatement) {
+        otherTailCallees(self, ((Statement.ReturnStatement) statement).getExpression(), into);
+      } else if (statement instanceof Statement.CaseStatement) {
+        for (CaseConstruct.Alternative<Block> alternative : ((Statement.CaseStatement) statement).construct().getPatterns()) {
+          otherTailCallees(self, alternative.getIfMatched(), into);
+        }
+      }
+    }
+  }
+
+  private static void otherTailCallees(MethodId self, Expression expression, Set<MethodId> into) {
+    if (expression instanceof Expression.MethodInvoke) {
+      Expression.MethodInvoke invoke = (Expression.MethodInvoke) expression;
+      if (!invoke.isBuiltIn() && !EfType.VOID.equals(invoke.resultType()) && !self.equals(invoke.getMethodId())) {
+        into.add(invoke.getMethodId());
+      }
+    } else if (expression instanceof Expression.CaseExpression) {
+      for (CaseConstruct.Alternative<Expression> alternative : ((Expression.CaseExpression) expression).construct().getPatterns()) {
+        otherTailCallees(self, alternative.getIfMatched(), into);
+      }
+    }
+  }
+
+  private static MethodHandle handleFor(EfMethod<?> method, ExecutableMethod body) {
+    boolean hasRv = !EfType.VOID.equals(method.getResultType());
+    return BytecodeCompiler.handleFor(body, hasRv, method.getArgs().length());
+  }
+}
@@ -5,6 +5,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.yuvalshavit.effes.parser.EffesParser;
+import com.yuvalshavit.effes.parser.ParserUtils;
 
 public class SourcesFactory {
   private SourcesFactory() {}
@@ -13,6 +14,12 @@ public class SourcesFactory {
     return withoutBuiltins(parser.compilationUnit());
   }
 
+  public static Sources withBuiltins(String builtins, String userland) {
+    Source builtinSource = new Source(ParserUtils.createParser(builtins).compilationUnit(), true);
+    Source userlandSource = new Source(ParserUtils.createParser(userland).compilationUnit());
+    return new Sources(Collections.singletonList(builtinSource), Collections.singletonList(userlandSource));
+  }
+
   private static Sources withoutBuiltins(EffesParser.CompilationUnitContext... compilationUnitContexts) {
     return new Sources(Collections.emptySet(), Stream.of(compilationUnitContexts).map(Source::new).collect(Collectors.toList()));
   }
@@ -4,6 +4,7 @@ import com.google.common.base.Functions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.yuvalshavit.effes.TUtils;
+import com.yuvalshavit.effes.compile.node.BuiltinType;
 import com.yuvalshavit.effes.compile.node.CompileErrors;
 import com.yuvalshavit.effes.compile.node.CtorArg;
 import com.yuvalshavit.effes.compile.node.EfType;
@@ -46,6 +47,19 @@ public final class TypesFinderTest {
     assertEquals(registry.getAllSimpleTypeNames(), Sets.newHashSet("True", "False"));
   }
 
+  @Test
+  public void typesAreTaggedDensely() {
+    EffesParser parser = ParserUtils.createParser(
+      "type True",
+      "type False");
+    TypeRegistry registry = new TypeRegistry(CompileErrors.throwing);
+    new TypesFinder(registry, null).accept(SourcesFactory.withoutBuiltins(parser));
+    int builtIns = BuiltinType.values().length;
+    assertEquals(registry.getSimpleType("True").getTag(), builtIns);
+    assertEquals(registry.getSimpleType("False").getTag(), builtIns + 1);
+    assertEquals(BuiltinType.IntValue.getEfType().getTag(), BuiltinType.IntValue.ordinal());
+  }
+
   @Test
   public void duplicateTypes() {
     EffesParser parser = ParserUtils.createParser(
@@ -198,6 +198,29 @@ public final class EfTypeTest {
     return EfType.comparator.compare(t1, t2);
   }
 
+  @Test
+  public void isInstanceByTag() {
+    EfType.SimpleType alpha = simpleTypeNamed("Alpha");
+    EfType.SimpleType bravo = simpleTypeNamed("Bravo");
+    EfType.SimpleType charlie = simpleTypeNamed("Charlie");
+    alpha.setTag(0);
+    bravo.setTag(1);
+    charlie.setTag(2);
+    EfType dis = disjunction(alpha, bravo);
+    Assert.assertTrue(dis.isInstance(alpha));
+    Assert.assertTrue(dis.isInstance(bravo));
+    Assert.assertFalse(dis.isInstance(charlie));
+    Assert.assertTrue(alpha.isInstance(alpha));
+    Assert.assertFalse(alpha.isInstance(bravo));
+  }
+
+  @Test
+  public void isInstanceUntagged() {
+    EfType dis = disjunction(simpleA, simpleB);
+    Assert.assertTrue(dis.isInstance((EfType.SimpleType) simpleA));
+    Assert.assertFalse(dis.isInstance((EfType.SimpleType) simpleC));
+  }
+
   private static EfType.SimpleType simpleTypeNamed(String name) {
     EfType.SimpleType type = new EfType.SimpleType(name, Collections.emptyList());
     type.setCtorArgs(Collections.emptyList());
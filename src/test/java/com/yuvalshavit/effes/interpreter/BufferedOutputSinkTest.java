@@ -0,0 +1,70 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.testng.annotations.Test;
+
+public final class BufferedOutputSinkTest {
+  private static final String NEWLINE = System.lineSeparator();
+
+  @Test
+  public void writesWhenBufferFills() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BufferedOutputSink sink = new BufferedOutputSink(Channels.newChannel(bytes), StandardCharsets.UTF_8, 8, 60_000);
+    sink.println("abc");
+    assertEquals(bytes.size(), 0);
+    sink.println("defghij"); // doesn't fit, so the buffer gets written out
+    assertTrue(utf8(bytes).startsWith("abc" + NEWLINE + "def"), utf8(bytes));
+    sink.flush();
+    assertEquals(utf8(bytes), "abc" + NEWLINE + "defghij" + NEWLINE);
+  }
+
+  @Test
+  public void writesWhenLinesAreTooOld() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BufferedOutputSink sink = new BufferedOutputSink(Channels.newChannel(bytes), StandardCharsets.UTF_8, 1024, 0);
+    sink.println("now");
+    assertEquals(utf8(bytes), "now" + NEWLINE);
+  }
+
+  @Test
+  public void multiByteCharsAcrossWrites() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BufferedOutputSink sink = new BufferedOutputSink(Channels.newChannel(bytes), StandardCharsets.UTF_8, 3, 60_000);
+    String line = "héllo wörld ☃";
+    sink.println(line);
+    sink.println(line);
+    sink.flush();
+    assertEquals(utf8(bytes), line + NEWLINE + line + NEWLINE);
+  }
+
+  @Test
+  public void writesToFileChannel() throws IOException {
+    Path file = Files.createTempFile("effes-out", ".txt");
+    try {
+      try (BufferedOutputSink sink = new BufferedOutputSink(FileChannel.open(file, StandardOpenOption.WRITE))) {
+        for (int i = 0; i < 10000; ++i) {
+          sink.println(Integer.toString(i));
+        }
+      }
+      assertEquals(Files.readAllLines(file, StandardCharsets.UTF_8).size(), 10000);
+      assertEquals(Files.readAllLines(file, StandardCharsets.UTF_8).get(9999), "9999");
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static String utf8(ByteArrayOutputStream bytes) {
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
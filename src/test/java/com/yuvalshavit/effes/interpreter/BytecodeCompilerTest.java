@@ -0,0 +1,119 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class BytecodeCompilerTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Nil",
+    "type Cons (head: Int, tail: Cons | Nil)",
+    "",
+    "countUp (n: Int), (acc: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: acc",
+    "    IntValue: countUp (n . - 1, acc . + 1)",
+    "",
+    "build (n: Int) -> Cons | Nil:",
+    "  return case n of",
+    "    IntZero: Nil",
+    "    IntValue: Cons(n, build (n . - 1))",
+    "",
+    "firstTwo (l: Cons | Nil) -> Int:",
+    "  return case l of",
+    "    Nil: 0",
+    "    Cons(h, Nil): h",
+    "    Cons(h, Cons(h2, t)): h . * h2",
+    "",
+    "describe (n: Int):",
+    "  case n of",
+    "    IntZero:",
+    "      debugPrint \"zero\"",
+    "    IntValue:",
+    "      debugPrint n",
+    "",
+    "runLoop -> Int:",
+    "  return countUp (200000, 0)",
+    "",
+    "runCases -> Int:",
+    "  describe 0",
+    "  describe 2",
+    "  a = firstTwo Nil",
+    "  b = firstTwo (build 1)",
+    "  c = firstTwo (build 4)",
+    "  return a . + (b . + c)",
+    "",
+    "runConstants -> Cons | Nil:",
+    "  debugPrint \"hello\"",
+    "  return Nil",
+    "",
+    "main:",
+    "  debugPrint runCases",
+    "");
+
+  @Test
+  public void selfTailCallsDoNotNeedJvmStack() throws InterruptedException {
+    // far deeper than a 64k stack could hold as JVM calls, so this only works if the tail call is a jump
+    CompiledProgram program = TestPrograms.program(PROGRAM, Interpreter.Backend.BYTECODE);
+    AtomicReference<Object> result = new AtomicReference<>();
+    Thread thread = new Thread(
+      null,
+      () -> {
+        try {
+          result.set(program.newExecution(new StringOutputSink()).run(MethodId.topLevel("runLoop"), null));
+        } catch (Throwable t) {
+          result.set(t);
+        }
+      },
+      "bytecode-tail-loop",
+      64 * 1024);
+    thread.start();
+    thread.join();
+    assertEquals(result.get(), EfValue.of(200000));
+  }
+
+  @Test
+  public void selfTailCallsBurnFuel() {
+    CompiledProgram program = TestPrograms.program(PROGRAM, Interpreter.Backend.BYTECODE);
+    Execution execution = program.newExecution(new StringOutputSink());
+    execution.run(MethodId.topLevel("runLoop"), null);
+    assertEquals(execution.fuelUsed(), 200000 + 3L); // runLoop, then countUp's entry and each of its jumps
+  }
+
+  @Test(dataProvider = "treeWalkerAndBytecode", dataProviderClass = TestPrograms.class)
+  public void cases(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel("runCases"), null);
+    assertEquals(result, EfValue.of(0 + 1 + 4 * 3));
+    assertEquals(out.getOutput().trim(), "\"zero\"\n2");
+  }
+
+  @Test(dataProvider = "treeWalkerAndBytecode", dataProviderClass = TestPrograms.class)
+  public void constants(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel("runConstants"), null);
+    assertEquals(String.valueOf(result), "Nil");
+    assertEquals(out.getOutput().trim(), "\"hello\"");
+  }
+
+  @Test
+  public void constantsAreTakenOnce() {
+    Object[] constants = { "a", 1 };
+    BytecodeRuntime.putConstants("test/Constants", constants);
+    assertSame(BytecodeRuntime.takeConstants("test/Constants"), constants);
+    try {
+      BytecodeRuntime.takeConstants("test/Constants");
+      throw new AssertionError("expected the constants to be gone");
+    } catch (IllegalStateException e) {
+      assertEquals(e.getMessage(), "no constants for test/Constants");
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.yuvalshavit.effes.interpreter;
 
 import com.google.common.collect.ImmutableList;
 import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.MethodId;
 import org.testng.annotations.Test;
 
 import java.util.Collections;
@@ -13,6 +14,7 @@ import static com.yuvalshavit.util.AssertException.assertException;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public final class CallStackTest {
 
@@ -444,6 +446,110 @@ public final class CallStackTest {
     stack.closeFrame();
   }
 
+  @Test
+  public void maxDepth() {
+    CallStack stack = new CallStack(2);
+    Object initial = stack.snapshot();
+    open(stack, pushExpr("a0"));
+    open(stack, pushExpr("b0"));
+    Object beforeOverflow = stack.snapshot();
+    assertException(EfStackOverflowException.class, () -> open(stack, pushExpr("c0")));
+    assertEquals(stack.snapshot(), beforeOverflow);
+
+    push(stack, "rv-b");
+    close(stack);
+    assertEquals(pop(stack), "rv-b");
+    push(stack, "rv-a");
+    close(stack);
+    assertEquals(pop(stack), "rv-a");
+    assertEquals(stack.snapshot(), initial);
+  }
+
+  @Test
+  public void maxDepthCanChange() {
+    CallStack stack = new CallStack(1);
+    open(stack, pushExpr("a0"));
+    assertException(EfStackOverflowException.class, () -> open(stack, pushExpr("b0")));
+    stack.setMaxDepth(2);
+    open(stack, pushExpr("b0"));
+    assertEquals(stack.frameDepth(), 2);
+    assertException(IllegalArgumentException.class, () -> stack.setMaxDepth(0));
+  }
+
+  @Test
+  public void fuelRunsOut() {
+    CallStack stack = new CallStack();
+    stack.setFuel(2);
+    MethodId spin = MethodId.topLevel("spin");
+    stack.openFrame(ImmutableList.of(pushExpr("a0")), true, spin);
+    stack.openFrame(ImmutableList.of(pushExpr("b0")), true, spin);
+    assertEquals(stack.fuelUsed(), 2);
+    try {
+      stack.openFrame(ImmutableList.of(pushExpr("c0")), true, spin);
+      fail("expected the fuel to run out");
+    } catch (ExecutionLimitExceededException e) {
+      assertEquals(e.getLimit(), 2);
+      assertEquals(e.getMethod(), spin);
+      assertEquals(e.getDepth(), 3);
+    }
+  }
+
+  @Test
+  public void deepNestingGrowsStack() {
+    CallStack stack = new CallStack(10000);
+    Object initial = stack.snapshot();
+    for (int i = 0; i < 5000; ++i) {
+      open(stack, pushExpr("a" + i), pushExpr("b" + i));
+      push(stack, "local-" + i);
+    }
+    assertEquals(stack.frameDepth(), 5000);
+    for (int i = 4999; i >= 0; --i) {
+      assertEquals(peekArg(stack, 1), "b" + i);
+      stack.pushLocalToStack(0);
+      close(stack);
+      assertEquals(pop(stack), "local-" + i);
+    }
+    assertEquals(stack.frameDepth(), 0);
+    assertEquals(stack.snapshot(), initial);
+  }
+
+  @Test
+  public void tailCallReusesFrame() {
+    CallStack stack = new CallStack();
+    Object initial = stack.snapshot();
+    open(stack, pushExpr("a0"), pushExpr("a1"));
+    push(stack, "local");
+    assertEquals(stack.depth(), 4); // rv, a1, a0, local
+
+    // tail call with three args, pushed the same way openFrame would
+    push(stack, "b2");
+    push(stack, "b1");
+    push(stack, "b0");
+    ExecutableMethod body = new ExecutableBlock(Collections.emptyList(), 0);
+    stack.tailCall(body, 3);
+    assertTrue(stack.hasPendingTailCall());
+    assertFalse(stack.rvIsSet());
+    assertEquals(stack.frameDepth(), 1);
+    assertEquals(peekArg(stack, 0), "b0");
+    assertEquals(peekArg(stack, 2), "b2");
+    assertException(NoSuchElementException.class, stack::peek);
+    assertEquals(stack.takeTailCall(), body);
+    assertFalse(stack.hasPendingTailCall());
+
+    // and back down to one arg
+    push(stack, "c0");
+    stack.tailCall(body, 1);
+    stack.takeTailCall();
+    assertEquals(peekArg(stack, 0), "c0");
+    assertException(IndexOutOfBoundsException.class, () -> stack.peekArg(1));
+    push(stack, "local");
+    assertEquals(stack.depth(), 3); // rv, c0, local
+
+    close(stack);
+    assertEquals(pop(stack), "local");
+    assertEquals(stack.snapshot(), initial);
+  }
+
   private static void open(CallStack stack, ExecutableElement... args) {
     stack.openFrame(ImmutableList.copyOf(args), true);
   }
@@ -454,7 +560,7 @@ public final class CallStackTest {
   }
   
   private static List<EfValue> getState(EfValue value) {
-    assertEquals(value.getClass(), EfValue.StandardValue.class);
+    assertTrue(value instanceof EfValue.StandardValue, value.getClass().getName());
     EfValue.StandardValue stdValue = (EfValue.StandardValue) value;
     return stdValue.getState();
   }
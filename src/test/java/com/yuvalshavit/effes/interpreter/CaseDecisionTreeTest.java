@@ -0,0 +1,102 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static com.yuvalshavit.effes.compile.pmatch.PAlternative.any;
+import static com.yuvalshavit.effes.compile.pmatch.PAlternative.simple;
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.yuvalshavit.effes.compile.node.CtorArg;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.pmatch.PAlternative;
+
+public final class CaseDecisionTreeTest {
+
+  private final EfType.SimpleType tTrue = nullary("True");
+  private final EfType.SimpleType tFalse = nullary("False");
+  private final EfType tBool = EfType.disjunction(tTrue, tFalse);
+  private final EfType.SimpleType tPair;
+
+  public CaseDecisionTreeTest() {
+    tPair = new EfType.SimpleType("Pair", Collections.emptyList());
+    tPair.setCtorArgs(asList(new CtorArg(0, "first", tBool), new CtorArg(1, "second", tBool)));
+  }
+
+  @Test
+  public void topLevelTypes() {
+    CaseDecisionTree tree = tree(simple(tFalse), simple(tTrue));
+    assertEquals(tree.match(EfValue.of(tTrue)), 1);
+    assertEquals(tree.match(EfValue.of(tFalse)), 0);
+  }
+
+  @Test
+  public void noMatch() {
+    CaseDecisionTree tree = tree(simple(tTrue));
+    assertEquals(tree.match(EfValue.of(tFalse)), CaseDecisionTree.NO_MATCH);
+  }
+
+  @Test
+  public void firstMatchWins() {
+    CaseDecisionTree tree = tree(
+      simple(tPair, simple(tTrue), any()),
+      simple(tPair, any(), simple(tTrue)),
+      any("other"));
+    assertEquals(tree.match(pair(tTrue, tTrue)), 0);
+    assertEquals(tree.match(pair(tTrue, tFalse)), 0);
+    assertEquals(tree.match(pair(tFalse, tTrue)), 1);
+    assertEquals(tree.match(pair(tFalse, tFalse)), 2);
+    assertEquals(tree.match(EfValue.of(tTrue)), 2);
+  }
+
+  @Test
+  public void wildcardBeforeSpecific() {
+    CaseDecisionTree tree = tree(any(), simple(tTrue));
+    assertEquals(tree.match(EfValue.of(tTrue)), 0);
+    assertEquals(tree.match(EfValue.of(tFalse)), 0);
+  }
+
+  @Test
+  public void agreesWithMatches() {
+    List<PAlternative> alternatives = asList(
+      simple(tPair, simple(tFalse), simple(tFalse)),
+      simple(tPair, any(), simple(tFalse)),
+      simple(tTrue));
+    CaseDecisionTree tree = new CaseDecisionTree(alternatives);
+    List<EfValue> values = asList(
+      EfValue.of(tTrue),
+      EfValue.of(tFalse),
+      pair(tTrue, tTrue),
+      pair(tTrue, tFalse),
+      pair(tFalse, tTrue),
+      pair(tFalse, tFalse));
+    for (EfValue value : values) {
+      int expected = CaseDecisionTree.NO_MATCH;
+      for (int i = 0; i < alternatives.size(); ++i) {
+        if (alternatives.get(i).matches(value)) {
+          expected = i;
+          break;
+        }
+      }
+      assertEquals(tree.match(value), expected, value.toString());
+    }
+  }
+
+  private EfValue pair(EfType.SimpleType first, EfType.SimpleType second) {
+    return EfValue.of(tPair, ImmutableList.of(EfValue.of(first), EfValue.of(second)));
+  }
+
+  private static EfType.SimpleType nullary(String name) {
+    EfType.SimpleType type = new EfType.SimpleType(name, Collections.emptyList());
+    type.setCtorArgs(Collections.emptyList());
+    return type;
+  }
+
+  private static CaseDecisionTree tree(PAlternative... alternatives) {
+    return new CaseDecisionTree(asList(alternatives));
+  }
+}
@@ -0,0 +1,100 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.node.Statement;
+
+public final class ConstantFolderTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Box (value: Int)",
+    "",
+    "arithmetic -> Int:",
+    "  return 6 . * (3 . + 4)",
+    "",
+    "box -> Box:",
+    "  return Box(1 . + 2)",
+    "",
+    "locals (n: Int) -> Int:",
+    "  a = 2",
+    "  b = a . * 3",
+    "  return n . + b",
+    "",
+    "knownCtor -> Int:",
+    "  return case (3 . + 4) of",
+    "    0: 100",
+    "    x: x . * 2",
+    "",
+    "main:",
+    "  debugPrint (locals 1)",
+    "");
+
+  private MethodsRegistry<Block> folded;
+
+  @BeforeClass
+  public void compile() {
+    folded = ConstantFolder.fold(TestPrograms.compile(PROGRAM));
+  }
+
+  @Test
+  public void arithmeticOnLiterals() {
+    assertEquals(literal(returned("arithmetic")), 42L);
+  }
+
+  @Test
+  public void ctorWithConstantArgs() {
+    Expression returned = returned("box");
+    assertTrue(returned instanceof Expression.ConstantExpression, returned.toString());
+    EfValue value = ((Expression.ConstantExpression) returned).getValue();
+    assertEquals(value.getType().getName(), "Box");
+    assertEquals(value.getArg(0), EfValue.of(3));
+  }
+
+  @Test
+  public void localsArePropagated() {
+    Block body = body("locals");
+    assertEquals(body.statements().size(), 1, body.statements().toString());
+    IntOp.Invocation invocation = IntOp.recognize(returned("locals"));
+    assertNotNull(invocation);
+    assertEquals(literal(invocation.rhs()), 6L);
+  }
+
+  @Test
+  public void caseOfKnownCtor() {
+    assertEquals(literal(returned("knownCtor")), 14L);
+  }
+
+  @Test
+  public void frameSizeCountsCaseBindings() {
+    // folding can drop a case along with its bindings, so frames are sized for every binding up front
+    Block unfolded = TestPrograms.body(TestPrograms.compile(PROGRAM), "knownCtor");
+    assertEquals(unfolded.nVars(), 0);
+    assertEquals(unfolded.frameSize(), 1);
+  }
+
+  private Block body(String methodName) {
+    EfMethod<? extends Block> method = folded.getMethod(MethodId.topLevel(methodName));
+    assertNotNull(method, methodName);
+    return method.getBody();
+  }
+
+  private Expression returned(String methodName) {
+    Statement last = body(methodName).statements().get(body(methodName).statements().size() - 1);
+    return ((Statement.ReturnStatement) last).getExpression();
+  }
+
+  private static long literal(Expression expression) {
+    assertTrue(expression instanceof Expression.IntLiteral, expression.toString());
+    return ((Expression.IntLiteral) expression).getValue();
+  }
+}
@@ -0,0 +1,104 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class DispatchTableTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Circle:",
+    "  area (scale: Int) -> Int:",
+    "    debugPrint scale",
+    "    return scale . * 3",
+    "",
+    "type Square:",
+    "  area (scale: Int) -> Int:",
+    "    debugPrint scale",
+    "    return scale . * 4",
+    "",
+    "type Shape = Circle | Square",
+    "",
+    "areaOf (s: Shape), (n: Int) -> Int:",
+    "  return s.area n",
+    "",
+    "sumAreas (s: Shape), (t: Shape), (n: Int), (acc: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: acc",
+    "    IntValue: sumAreas (t, s, n . - 1, acc . + (s.area n))",
+    "",
+    "run -> Int:",
+    "  return sumAreas (Circle, Square, 3, 0)",
+    "",
+    "main:",
+    "  debugPrint run",
+    "");
+
+  @Test
+  public void callOnDisjunctionIsDispatched() {
+    ExecutableExpressionCompiler compiler = new ExecutableExpressionCompiler(
+      m -> {
+        throw new AssertionError(m);
+      },
+      m -> {
+        throw new AssertionError(m);
+      });
+    Expression returned = TestPrograms.returned(TestPrograms.compile(PROGRAM), "areaOf");
+    assertTrue(compiler.apply(returned) instanceof ExecutableExpression.DispatchExpression, returned.toString());
+    assertTrue(compiler.applyInTailPosition(returned) instanceof ExecutableExpression.DispatchExpression);
+  }
+
+  @Test
+  public void argsAreSharedBetweenAlternatives() {
+    Expression returned = TestPrograms.returned(TestPrograms.compile(PROGRAM), "areaOf");
+    assertTrue(returned instanceof Expression.CaseExpression, returned.toString());
+    Expression.CaseExpression caseExpr = (Expression.CaseExpression) returned;
+    Expression.MethodInvoke first = (Expression.MethodInvoke) caseExpr.construct().getPatterns().get(0).getIfMatched();
+    Expression.MethodInvoke second = (Expression.MethodInvoke) caseExpr.construct().getPatterns().get(1).getIfMatched();
+    assertTrue(first.getArgs().get(1) == second.getArgs().get(1));
+  }
+
+  @Test
+  public void aTypeHasOneMethodPerName() {
+    DispatchTable.Site site = DispatchTable.recognize((Expression.CaseExpression) areaOf());
+    assertNotNull(site);
+    MethodId circleArea = site.invokes().get(0).getMethodId();
+    MethodId squareArea = site.invokes().get(1).getMethodId();
+    DispatchTable table = new DispatchTable("area");
+    table.put(circleArea.getDefinedOn(), entry(circleArea));
+    table.put(circleArea.getDefinedOn(), entry(circleArea)); // another call site, same method
+    try {
+      table.put(circleArea.getDefinedOn(), entry(squareArea));
+      throw new AssertionError("expected the second method to be rejected");
+    } catch (IllegalStateException e) {
+      assertEquals(table.get(circleArea.getDefinedOn()).methodId(), circleArea);
+    }
+  }
+
+  @Test(dataProvider = "allBackends", dataProviderClass = TestPrograms.class)
+  public void dispatchesOnRuntimeType(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel("run"), null);
+    assertEquals(result, EfValue.of(9 + 8 + 3));
+    assertEquals(out.getOutput().trim(), "3\n2\n1");
+  }
+
+  private static Expression areaOf() {
+    return TestPrograms.returned(TestPrograms.compile(PROGRAM), "areaOf");
+  }
+
+  private static DispatchTable.Entry entry(MethodId id) {
+    return new DispatchTable.Entry(
+      id,
+      () -> {
+        throw new AssertionError(id);
+      },
+      InvocationCounter.NONE);
+  }
+}
@@ -0,0 +1,110 @@
+package com.yuvalshavit.effes.interpreter;
+
+import com.google.common.collect.ImmutableList;
+import com.yuvalshavit.effes.compile.node.EfType;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public final class EfValueTest {
+
+  @Test
+  public void nullaryValuesAreCanonical() {
+    EfType.SimpleType type = new EfType.SimpleType("Nothing", Collections.emptyList());
+    assertSame(EfValue.of(type, Collections.emptyList()), EfValue.of(type));
+    assertSame(EfValue.of(type), EfValue.of(type));
+  }
+
+  @Test
+  public void nullaryNotEqualToOtherType() {
+    EfType.SimpleType one = new EfType.SimpleType("One", Collections.emptyList());
+    EfType.SimpleType two = new EfType.SimpleType("Two", Collections.emptyList());
+    assertNotEquals(EfValue.of(one), EfValue.of(two));
+  }
+
+  @Test
+  public void valuesWithState() {
+    EfType.SimpleType box = new EfType.SimpleType("Box", Collections.emptyList());
+    EfValue first = EfValue.of(box, ImmutableList.of(EfValue.of(5)));
+    EfValue second = EfValue.of(box, ImmutableList.of(EfValue.of(5)));
+    assertNotSame(first, second);
+    assertEquals(first, second);
+    assertNotEquals(first, EfValue.of(box));
+  }
+
+  @Test
+  public void smallIntsAreCached() {
+    assertSame(EfValue.of(0), EfValue.of(0));
+    assertSame(EfValue.of(EfValue.INT_CACHE_LOW), EfValue.of(EfValue.INT_CACHE_LOW));
+    assertSame(EfValue.of(EfValue.INT_CACHE_HIGH), EfValue.of(EfValue.INT_CACHE_HIGH));
+  }
+
+  @Test
+  public void largeIntsAreNotCached() {
+    long large = EfValue.INT_CACHE_HIGH + 1;
+    assertNotSame(EfValue.of(large), EfValue.of(large));
+    assertEquals(EfValue.of(large), EfValue.of(large));
+  }
+
+  @Test
+  public void fixedArityArgs() {
+    EfType.SimpleType pair = new EfType.SimpleType("Pair", Collections.emptyList());
+    EfValue value = EfValue.of(pair, EfValue.of(1), EfValue.of(2));
+    assertEquals(value.arity(), 2);
+    assertSame(value.getArg(0), EfValue.of(1));
+    assertSame(value.getArg(1), EfValue.of(2));
+    assertEquals(value.getState(), ImmutableList.of(EfValue.of(1), EfValue.of(2)));
+    assertEquals(value, EfValue.of(pair, ImmutableList.of(EfValue.of(1), EfValue.of(2))));
+  }
+
+  @Test
+  public void largeArityArgs() {
+    EfType.SimpleType big = new EfType.SimpleType("Big", Collections.emptyList());
+    EfValue[] args = new EfValue[EfValue.MAX_FIXED_ARITY + 2];
+    for (int i = 0; i < args.length; ++i) {
+      args[i] = EfValue.of(i);
+    }
+    EfValue value = EfValue.of(big, args);
+    assertEquals(value.arity(), args.length);
+    assertSame(value.getArg(args.length - 1), args[args.length - 1]);
+    assertEquals(value, EfValue.of(big, value.getState()));
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void argOutOfBounds() {
+    EfType.SimpleType box = new EfType.SimpleType("Box", Collections.emptyList());
+    EfValue.of(box, EfValue.of(1)).getArg(1);
+  }
+
+  @Test
+  public void longListsHashAndCompare() {
+    EfType.SimpleType cons = new EfType.SimpleType("Cons", Collections.emptyList());
+    EfType.SimpleType empty = new EfType.SimpleType("Empty", Collections.emptyList());
+    EfValue first = EfValue.of(empty);
+    EfValue second = EfValue.of(empty);
+    for (int i = 0; i < 100_000; ++i) {
+      first = EfValue.of(cons, EfValue.of(i), first);
+      second = EfValue.of(cons, EfValue.of(i), second);
+    }
+    // not assertEquals, since its failure message would need toString, which does recurse
+    assertEquals(first.hashCode(), second.hashCode());
+    assertTrue(first.equals(second));
+    assertFalse(first.equals(EfValue.of(cons, EfValue.of(-1), second)));
+  }
+
+  @Test
+  public void hashConsingSharesEqualValues() {
+    EfType.SimpleType box = new EfType.SimpleType("Box", Collections.emptyList());
+    EfValue.StandardValue first = EfValue.hashCons((EfValue.StandardValue) EfValue.of(box, EfValue.of(5000)));
+    EfValue.StandardValue second = EfValue.hashCons((EfValue.StandardValue) EfValue.of(box, EfValue.of(5000)));
+    assertSame(first, second);
+    assertNotSame(first, EfValue.hashCons((EfValue.StandardValue) EfValue.of(box, EfValue.of(5001))));
+  }
+}
@@ -0,0 +1,74 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+/**
+ * Runs one program whose every step prints something on each backend, so that they all have to agree not just on the
+ * results, but on the order things happen in.
+ */
+public final class EvaluationOrderTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Box (value: Int)",
+    "type Pair (first: Box, second: Box)",
+    "",
+    TestPrograms.NOISY,
+    "noisyBox (n: Int) -> Box:",
+    "  debugPrint n",
+    "  return Box(n)",
+    "",
+    "minus (a: Int), (b: Int) -> Int:",
+    "  return a . - b",
+    "",
+    "countDown (n: Int), (a: Int), (b: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: a . - b",
+    "    IntValue: countDown (noisy (n . - 1), noisy a, noisy b)",
+    "",
+    "sumTo (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 0",
+    "    IntValue: (sumTo (noisy (n . - 1))) . + (noisy n)",
+    "",
+    "run -> Int:",
+    "  p = Pair(noisyBox 1, noisyBox 2)",
+    "  m = minus (noisy 3, noisy 4)",
+    "  d = (noisy 5) . - (noisy 6)",
+    "  c = countDown (2, noisy 7, noisy 8)",
+    "  s = sumTo 2",
+    "  fields = p.first.value . - p.second.value",
+    "  total = m . + d",
+    "  return total . + (c . + (s . + fields))",
+    "",
+    "main:",
+    "  debugPrint run",
+    "");
+
+  /** Enough runs for the TIERED backend to tier its methods up, so that the later runs are on generated code. */
+  private static final int RUNS = TieredCompiler.DEFAULT_THRESHOLD + 10;
+
+  @Test(dataProvider = "allBackends", dataProviderClass = TestPrograms.class)
+  public void backendsAgree(Interpreter.Backend backend) {
+    String expected = run(Interpreter.Backend.TREE_WALKER, 1);
+    assertEquals(expected, "2\n1\n4\n3\n5\n6\n8\n7\n8\n7\n1\n8\n7\n0\n1\n0\n1\n2\nIntValue<-1>");
+    assertEquals(run(backend, RUNS), expected);
+  }
+
+  /**
+   * Runs the program the given number of times, and returns the output of the last run, followed by its result.
+   */
+  private static String run(Interpreter.Backend backend, int times) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    String output = null;
+    for (int i = 0; i < times; ++i) {
+      StringOutputSink out = new StringOutputSink();
+      Object result = program.newExecution(out).run(MethodId.topLevel("run"), null);
+      output = out.getOutput() + result;
+    }
+    return output.trim();
+  }
+}
@@ -0,0 +1,106 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.node.Statement;
+
+public final class ExecutableExpressionCompilerTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Box (value: Int)",
+    "type Pair (first: Box, second: Box)",
+    "type Nil",
+    "type Cons (head: Int, tail: Cons | Nil)",
+    "",
+    "secondValue (p: Pair) -> Int:",
+    "  return p.second.value",
+    "",
+    "pairOf (a: Int), (b: Int) -> Pair:",
+    "  return Pair(Box(a), Box(b . + 1))",
+    "",
+    "passThrough (p: Pair) -> Pair:",
+    "  return p",
+    "",
+    "build (n: Int) -> Cons | Nil:",
+    "  return case n of",
+    "    IntZero: Nil",
+    "    IntValue: Cons(n, build (n . - 1))",
+    "",
+    "sum (l: Cons | Nil) -> Int:",
+    "  return case l of",
+    "    Nil: 0",
+    "    Cons(h, t): h . + (sum t)",
+    "",
+    "run -> Int:",
+    "  p = passThrough (pairOf (3, 4))",
+    "  debugPrint p.first.value",
+    "  return (secondValue p) . * (sum (build 4))",
+    "",
+    "main:",
+    "  debugPrint run",
+    "");
+
+  @Test
+  public void fieldOfFieldIsOneValue() {
+    ExecutableExpression compiled = compiler().apply(TestPrograms.returned(TestPrograms.compile(PROGRAM), "secondValue"));
+    assertTrue(compiled instanceof ExecutableExpression.ValueInstanceArg, compiled.getClass().getName());
+  }
+
+  @Test
+  public void ctorOfValuesIsOneValue() {
+    ExecutableExpression compiled = compiler().apply(TestPrograms.returned(TestPrograms.compile(PROGRAM), "pairOf"));
+    assertTrue(compiled instanceof ExecutableExpression.ValueCtorExpression, compiled.getClass().getName());
+  }
+
+  @Test
+  public void returnOfVarIsOneValue() {
+    ExecutableExpression compiled = compiler().applyInTailPosition(TestPrograms.returned(TestPrograms.compile(PROGRAM), "passThrough"));
+    assertTrue(compiled instanceof ExecutableExpression.VarReadExpression, compiled.getClass().getName());
+  }
+
+  @Test
+  public void intOpIsBoxedForValueConsumers() {
+    Expression.CtorInvoke ctor = (Expression.CtorInvoke) TestPrograms.returned(TestPrograms.compile(PROGRAM), "pairOf");
+    ExecutableExpression compiled = compiler().apply(ctor.getArgs().get(1));
+    assertTrue(compiled instanceof ExecutableExpression.ValueCtorExpression, compiled.getClass().getName());
+    ExecutableExpression intOp = compiler().apply(((Expression.CtorInvoke) ctor.getArgs().get(1)).getArgs().get(0));
+    assertTrue(intOp instanceof ExecutableExpression.IntExpression);
+    assertTrue(ExecutableExpressionCompiler.asValue(intOp) instanceof ExecutableExpression.BoxingExpression);
+  }
+
+  @Test
+  public void callsAreNotValues() {
+    EfMethod<? extends Block> run = TestPrograms.compile(PROGRAM).getMethod(MethodId.topLevel("run"));
+    assertNotNull(run);
+    Expression assigned = ((Statement.AssignStatement) run.getBody().statements().get(0)).value();
+    ExecutableExpression compiled = ExecutableExpressionCompiler.asValue(compiler().apply(assigned));
+    assertTrue(!(compiled instanceof ExecutableExpression.ValueExpression), compiled.getClass().getName());
+  }
+
+  @Test(dataProvider = "treeWalkerAndBytecode", dataProviderClass = TestPrograms.class)
+  public void fusedNodesRunLikeOtherBackends(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel("run"), null);
+    assertEquals(result, EfValue.of(5 * (4 + 3 + 2 + 1)));
+    assertEquals(out.getOutput().trim(), "3");
+  }
+
+  private static ExecutableExpressionCompiler compiler() {
+    return new ExecutableExpressionCompiler(
+      m -> {
+        throw new AssertionError(m);
+      },
+      m -> {
+        throw new AssertionError(m);
+      });
+  }
+}
@@ -0,0 +1,90 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class ExecutionServiceTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "double (n: Int) -> Int:",
+    "  return n . + n",
+    "",
+    "answer -> Int:",
+    "  return double 21",
+    "",
+    "spin (n: Int) -> Int:",
+    "  return spin (n . + 1)",
+    "",
+    "forever -> Int:",
+    "  return spin 0",
+    "",
+    "main:",
+    "  debugPrint (double 5)",
+    "");
+
+  @Test
+  public void runsJobsConcurrently() throws Exception {
+    try (ExecutionService service = service(4, 2)) {
+      List<StringOutputSink> outputs = new ArrayList<>();
+      List<Future<JobResult>> jobs = new ArrayList<>();
+      for (int i = 0; i < 50; ++i) {
+        StringOutputSink out = new StringOutputSink();
+        outputs.add(out);
+        jobs.add(service.submit(PROGRAM, MethodId.topLevel("main"), out));
+      }
+      for (int i = 0; i < jobs.size(); ++i) {
+        assertEquals(jobs.get(i).get().getResult(), null);
+        assertEquals(outputs.get(i).getOutput().trim(), "10");
+      }
+      assertEquals(service.programCacheStats().loadCount(), 1);
+    }
+  }
+
+  @Test
+  public void runsOtherEntryMethods() throws Exception {
+    try (ExecutionService service = service(1, 0)) {
+      JobResult result = service.submit(PROGRAM, MethodId.topLevel("answer"), new StringOutputSink()).get();
+      assertEquals(result.getResult(), EfValue.of(42));
+    }
+  }
+
+  @Test
+  public void runawayJobsRunOutOfFuel() throws Exception {
+    try (ExecutionService service = service(1, 0)) {
+      // long enough for spin to tier up, so that the generated code's checks are covered, too
+      Future<JobResult> job = service.submit(PROGRAM, MethodId.topLevel("forever"), new StringOutputSink(), 100000);
+      try {
+        job.get();
+        fail("expected the job to run out of fuel");
+      } catch (ExecutionException e) {
+        ExecutionLimitExceededException cause = (ExecutionLimitExceededException) e.getCause();
+        assertEquals(cause.getLimit(), 100000);
+        assertEquals(cause.getMethod(), MethodId.topLevel("spin"));
+      }
+    }
+  }
+
+  @Test
+  public void compiledProgramsAreCachedBySource() {
+    try (ExecutionService service = service(1, 0)) {
+      CompiledProgram program = service.compile(PROGRAM);
+      assertSame(service.compile(new String(PROGRAM.toCharArray())), program);
+      assertEquals(service.compile(PROGRAM + "\n").hasErrors(), false);
+      assertEquals(service.programCacheStats().loadCount(), 2);
+    }
+  }
+
+  private static ExecutionService service(int nThreads, int queueCapacity) {
+    return new ExecutionService(Interpreter.Backend.TIERED, nThreads, queueCapacity, TestPrograms::sources);
+  }
+}
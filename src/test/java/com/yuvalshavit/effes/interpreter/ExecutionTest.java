@@ -0,0 +1,114 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class ExecutionTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Nil",
+    "type Cons (head: Int, tail: Cons | Nil)",
+    "",
+    "build (n: Int) -> Cons | Nil:",
+    "  return case n of",
+    "    IntZero: Nil",
+    "    IntValue: Cons(n, build (n . - 1))",
+    "",
+    "len (l: Cons | Nil) -> Int:",
+    "  return case l of",
+    "    Nil: 0",
+    "    Cons(h, t): (len t) . + 1",
+    "",
+    "nest (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 0",
+    "    IntValue: (nest (n . - 1)) . + 1",
+    "",
+    "runShallow -> Int:",
+    "  return len (build 100)",
+    "",
+    "runDeep -> Int:",
+    "  return len (build 2000)",
+    "",
+    "runBaselineDeep -> Int:",
+    "  return len (build 600)",
+    "",
+    "runWayTooDeep -> Int:",
+    "  return nest 1000000000",
+    "",
+    "main:",
+    "  debugPrint runShallow",
+    "");
+
+  @Test(dataProvider = "allBackends", dataProviderClass = TestPrograms.class)
+  public void tooDeepRecursionIsAnEffesStackOverflow(Interpreter.Backend backend) {
+    // whether it goes past the max depth or runs out of JVM stack first, it should look the same to the caller
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    try {
+      program.newExecution(new StringOutputSink()).run(MethodId.topLevel("runWayTooDeep"), null);
+      throw new AssertionError("expected a stack overflow");
+    } catch (EfStackOverflowException e) {
+      assertTrue(e.getMessage().startsWith("stack overflow: "), e.getMessage());
+    }
+  }
+
+  @Test(dataProvider = "allBackends", dataProviderClass = TestPrograms.class)
+  public void defaultMaxDepthIsDeepEnough(Interpreter.Backend backend) {
+    // the tree-walker could always go this deep on a default-sized stack, so no backend's default should stop it
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    assertTrue(program.getDefaultMaxDepth() > 600, Integer.toString(program.getDefaultMaxDepth()));
+    assertEquals(program.newExecution(new StringOutputSink()).run(MethodId.topLevel("runBaselineDeep"), null), EfValue.of(600));
+  }
+
+  @Test
+  public void defaultMaxDepthDependsOnTheBackend() {
+    int treeWalker = TestPrograms.program(PROGRAM, Interpreter.Backend.TREE_WALKER).getDefaultMaxDepth();
+    int bytecode = TestPrograms.program(PROGRAM, Interpreter.Backend.BYTECODE).getDefaultMaxDepth();
+    int flat = TestPrograms.program(PROGRAM, Interpreter.Backend.FLAT).getDefaultMaxDepth();
+    assertEquals(treeWalker, CallStack.DEFAULT_MAX_DEPTH);
+    assertEquals(bytecode, BytecodeCompiler.DEFAULT_MAX_DEPTH);
+    assertEquals(flat, FlatCompiler.DEFAULT_MAX_DEPTH);
+    if (System.getProperty("effes.maxDepth") == null) {
+      assertTrue(treeWalker < bytecode, treeWalker + " vs " + bytecode);
+      assertTrue(bytecode < flat, bytecode + " vs " + flat);
+    }
+  }
+
+  @Test(dataProvider = "allBackends", dataProviderClass = TestPrograms.class)
+  public void maxDepthIsConfigurable(Interpreter.Backend backend) {
+    // capped first, since MEMOIZING would answer from its cache once it's seen a run go through
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    Execution execution = program.newExecution(new StringOutputSink()).setMaxDepth(50);
+    try {
+      execution.run(MethodId.topLevel("runShallow"), null);
+      throw new AssertionError("expected a stack overflow");
+    } catch (EfStackOverflowException e) {
+      assertEquals(e.getMessage(), "stack overflow: exceeded maximum call depth of 50");
+    }
+    execution = program.newExecution(new StringOutputSink());
+    assertEquals(execution.run(MethodId.topLevel("runShallow"), null), EfValue.of(100));
+  }
+
+  @Test
+  public void flatIsOnlyLimitedByItsMaxDepth() {
+    // FLAT doesn't recurse on the JVM stack, so the max depth is all that stops it, however deep that is
+    CompiledProgram program = TestPrograms.program(PROGRAM, Interpreter.Backend.FLAT);
+    try {
+      program.newExecution(new StringOutputSink()).setMaxDepth(1000).run(MethodId.topLevel("runDeep"), null);
+      throw new AssertionError("expected a stack overflow");
+    } catch (EfStackOverflowException e) {
+      assertEquals(e.getMessage(), "stack overflow: exceeded maximum call depth of 1000");
+    }
+    Execution execution = program.newExecution(new StringOutputSink()).setMaxDepth(5000);
+    assertEquals(execution.run(MethodId.topLevel("runDeep"), null), EfValue.of(2000));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void maxDepthMustBePositive() {
+    TestPrograms.program(PROGRAM, Interpreter.Backend.TREE_WALKER).newExecution(new StringOutputSink()).setMaxDepth(0);
+  }
+}
@@ -0,0 +1,66 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+/**
+ * Times FLAT against the tree-walker on a program that's nearly all calls, which is where FLAT gains the most: a
+ * doubly-recursive count. (Walking a list runs about even on the two, since both spend most of that time in the
+ * call stack and in building values.) This is in the benchmark group, which the build skips; run it with
+ * {@code mvn test -Dgroups=benchmark -DexcludedGroups=}.
+ */
+public final class FlatBenchmarkTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "paths (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 1",
+    "    IntValue: (paths (n . - 1)) . + (paths (n . - 1))",
+    "",
+    "run -> Int:",
+    "  return paths 14",
+    "",
+    "main:",
+    "  debugPrint run",
+    "");
+
+  private static final EfValue EXPECTED = EfValue.of(1 << 14);
+  private static final int WARMUP_RUNS = 500;
+  private static final int TIMED_RUNS = 200;
+
+  @Test(groups = "benchmark")
+  public void flatIsFasterThanTheTreeWalker() {
+    long treeWalker = bestNanosPerRun(Interpreter.Backend.TREE_WALKER);
+    long flat = bestNanosPerRun(Interpreter.Backend.FLAT);
+    System.out.printf(
+      "tree-walker: %,d ns/run, flat: %,d ns/run (%.2fx)%n",
+      treeWalker,
+      flat,
+      (double) treeWalker / flat);
+    assertTrue(flat < treeWalker, "flat took " + flat + " ns/run, but the tree-walker took " + treeWalker);
+  }
+
+  /**
+   * Warms the backend up, and then returns the fastest of its timed runs.
+   */
+  private static long bestNanosPerRun(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    MethodId run = MethodId.topLevel("run");
+    for (int i = 0; i < WARMUP_RUNS; ++i) {
+      assertEquals(program.newExecution(new StringOutputSink()).run(run, null), EXPECTED, backend.toString());
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < TIMED_RUNS; ++i) {
+      Execution execution = program.newExecution(new StringOutputSink());
+      long start = System.nanoTime();
+      Object result = execution.run(run, null);
+      best = Math.min(best, System.nanoTime() - start);
+      assertEquals(result, EXPECTED, backend.toString());
+    }
+    return best;
+  }
+}
@@ -0,0 +1,95 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class FlatCompilerTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Nil",
+    "type Cons[T](head: T, tail: Cons[T] | Nil)",
+    "",
+    "build (n: Int) -> Cons[Int] | Nil:",
+    "  return case n of",
+    "    IntZero: Nil",
+    "    IntValue: Cons[Int](n, build (n . - 1))",
+    "",
+    "len (l: Cons[Int] | Nil) -> Int:",
+    "  return case l of",
+    "    Nil: 0",
+    "    Cons(h, t): (len t) . + 1",
+    "",
+    "sum (l: Cons[Int] | Nil), (acc: Int) -> Int:",
+    "  return case l of",
+    "    Nil: acc",
+    "    Cons(h, t): sum (t, acc . + h)",
+    "",
+    "countdown (n: Int):",
+    "  case n of",
+    "    IntZero:",
+    "      debugPrint 0",
+    "    IntValue:",
+    "      debugPrint n",
+    "      countdown (n . - 1)",
+    "",
+    "runShallow -> Int:",
+    "  countdown 3",
+    "  l = build 10",
+    "  return (len l) . * (sum (l, 0))",
+    "",
+    "runDeep -> Int:",
+    "  return len (build 900)",
+    "",
+    "runTooDeep -> Int:",
+    "  return len (build 5000)",
+    "",
+    "main:",
+    "  debugPrint runShallow",
+    "");
+
+  @Test(dataProvider = "treeWalkerAndFlat", dataProviderClass = TestPrograms.class)
+  public void runsLikeOtherBackends(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel("runShallow"), null);
+    assertEquals(result, EfValue.of(10 * 55));
+    assertEquals(out.getOutput().trim(), "3\n2\n1\n0");
+  }
+
+  @Test
+  public void deepRecursionDoesNotNeedJvmStack() throws InterruptedException {
+    CompiledProgram program = TestPrograms.program(PROGRAM, Interpreter.Backend.FLAT);
+    AtomicReference<Object> result = new AtomicReference<>();
+    Thread thread = new Thread(
+      null,
+      () -> {
+        try {
+          // deeper than a tree-walker could go even on a full-sized stack, and FLAT's default max depth allows it
+          result.set(program.newExecution(new StringOutputSink()).run(MethodId.topLevel("runDeep"), null));
+        } catch (Throwable t) {
+          result.set(t);
+        }
+      },
+      "flat-deep-recursion",
+      64 * 1024);
+    thread.start();
+    thread.join();
+    assertEquals(result.get(), EfValue.of(900));
+  }
+
+  @Test
+  public void tooDeepRecursionIsAnEffesStackOverflow() {
+    CompiledProgram program = TestPrograms.program(PROGRAM, Interpreter.Backend.FLAT);
+    try {
+      program.newExecution(new StringOutputSink()).setMaxDepth(1000).run(MethodId.topLevel("runTooDeep"), null);
+      throw new AssertionError("expected a stack overflow");
+    } catch (EfStackOverflowException e) {
+      assertEquals(e.getMessage(), "stack overflow: exceeded maximum call depth of 1000");
+    }
+  }
+}
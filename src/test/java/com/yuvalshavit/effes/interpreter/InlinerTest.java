@@ -0,0 +1,100 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class InlinerTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Box (value: Int)",
+    "",
+    "get (b: Box) -> Int:",
+    "  return b.value",
+    "",
+    "getter (b: Box) -> Int:",
+    "  return get b",
+    "",
+    "twice (n: Int) -> Int:",
+    "  return n . + n",
+    "",
+    TestPrograms.NOISY,
+    "twiceNoisy -> Int:",
+    "  return twice (noisy 7)",
+    "",
+    "minus (a: Int), (b: Int) -> Int:",
+    "  return a . - b",
+    "",
+    "minusNoisy -> Int:",
+    "  return minus (noisy 1, noisy 2)",
+    "",
+    "countDown (n: Int) -> Int:",
+    "  return case n of",
+    "    0: 0",
+    "    _: countDown (n . - 1)",
+    "",
+    "callsCountDown -> Int:",
+    "  return countDown 3",
+    "",
+    "main:",
+    "  debugPrint (getter Box(5))",
+    "");
+
+  @Test
+  public void accessorIsInlined() {
+    Expression returned = TestPrograms.returned(inline(24), "getter");
+    assertTrue(returned instanceof Expression.InstanceArg, returned.toString());
+    Expression target = ((Expression.InstanceArg) returned).getTarget();
+    assertTrue(target instanceof Expression.VarExpression, target.toString());
+    assertTrue(((Expression.VarExpression) target).isArg());
+  }
+
+  @Test
+  public void recursiveMethodsAreNotInlined() {
+    Expression returned = TestPrograms.returned(inline(24), "callsCountDown");
+    assertTrue(returned instanceof Expression.MethodInvoke, returned.toString());
+  }
+
+  @Test
+  public void sizeBudget() {
+    assertTrue(TestPrograms.returned(inline(1), "getter") instanceof Expression.MethodInvoke);
+    assertTrue(TestPrograms.returned(inline(0), "getter") instanceof Expression.MethodInvoke);
+  }
+
+  @Test
+  public void argsThatAreNotFreeToReadAreBound() {
+    Expression returned = TestPrograms.returned(inline(24), "twiceNoisy");
+    assertTrue(returned instanceof Expression.CaseExpression, returned.toString());
+    Expression matchAgainst = ((Expression.CaseExpression) returned).construct().getMatchAgainst();
+    assertTrue(matchAgainst instanceof Expression.MethodInvoke, matchAgainst.toString());
+    assertEquals(((Expression.MethodInvoke) matchAgainst).getMethodId(), MethodId.topLevel("noisy"));
+  }
+
+  @Test(dataProvider = "treeWalkerAndBytecode", dataProviderClass = TestPrograms.class)
+  public void argsAreEvaluatedOnce(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel("twiceNoisy"), null);
+    assertEquals(result, EfValue.of(14));
+    assertEquals(out.getOutput().trim(), "7");
+  }
+
+  @Test(dataProvider = "allBackends", dataProviderClass = TestPrograms.class)
+  public void argsAreEvaluatedInCallOrder(Interpreter.Backend backend) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel("minusNoisy"), null);
+    assertEquals(result, EfValue.of(-1));
+    assertEquals(out.getOutput().trim(), "2\n1"); // last arg first, same as CallStack#openFrame
+  }
+
+  private static MethodsRegistry<Block> inline(int maxSize) {
+    return Inliner.inline(TestPrograms.compile(PROGRAM), maxSize);
+  }
+}
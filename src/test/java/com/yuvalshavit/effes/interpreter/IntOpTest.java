@@ -0,0 +1,134 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class IntOpTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Box (value: Int)",
+    "",
+    TestPrograms.NOISY,
+    "noisyFive -> IntValue:",
+    "  debugPrint 5",
+    "  return 5",
+    "",
+    "dispatched (n: Int) -> Int:",
+    "  return n . + 1",
+    "",
+    "direct -> Int:",
+    "  return noisyFive . + (noisy 1)",
+    "",
+    "userWritten (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: n . + 1",
+    "    IntValue: n . + 1",
+    "",
+    "divided (n: Int), (d: IntValue) -> Int:",
+    "  return n . / d",
+    "",
+    "arithmetic (a: Int), (b: Box) -> Int:",
+    "  tripled = a . * 3",
+    "  x = tripled . - b.value",
+    "  half = b.value . / 2",
+    "  return x . + (half . * a)",
+    "",
+    "runArithmetic -> Int:",
+    "  return arithmetic (7, Box(10))",
+    "",
+    "runDivided -> Int:",
+    "  n = 3 . - 20",
+    "  return divided (n, 5)",
+    "",
+    "runOrder -> Int:",
+    "  sum = (noisy 2) . + (noisy 3)",
+    "  return sum . + direct",
+    "",
+    "main:",
+    "  debugPrint runArithmetic",
+    "");
+
+  @Test
+  public void apply() {
+    assertEquals(IntOp.ADD.apply(3, 4), 7);
+    assertEquals(IntOp.SUB.apply(3, 4), -1);
+    assertEquals(IntOp.MULT.apply(3, 4), 12);
+    assertEquals(IntOp.DIV.apply(-17, 5), -3);
+  }
+
+  @Test
+  public void dispatchingCaseIsRecognized() {
+    IntOp.Invocation invocation = IntOp.recognize(returned("dispatched"));
+    assertNotNull(invocation);
+    assertEquals(invocation.op(), IntOp.ADD);
+    assertTrue(invocation.lhs() instanceof Expression.VarExpression, invocation.lhs().toString());
+    assertTrue(invocation.rhs() instanceof Expression.IntLiteral, invocation.rhs().toString());
+    assertFalse(invocation.rhsFirst()); // the case evaluates its target first
+  }
+
+  @Test
+  public void directInvocationIsRecognized() {
+    Expression returned = returned("direct");
+    assertTrue(returned instanceof Expression.MethodInvoke, returned.toString());
+    IntOp.Invocation invocation = IntOp.recognize(returned);
+    assertNotNull(invocation);
+    assertEquals(invocation.op(), IntOp.ADD);
+    assertTrue(invocation.rhsFirst()); // like any other call's args
+  }
+
+  @Test
+  public void userWrittenCaseIsNotRecognized() {
+    Expression returned = returned("userWritten");
+    assertTrue(returned instanceof Expression.CaseExpression, returned.toString());
+    assertNull(IntOp.recognize(returned));
+  }
+
+  @Test
+  public void divisionIsRecognized() {
+    IntOp.Invocation invocation = IntOp.recognize(returned("divided"));
+    assertNotNull(invocation);
+    assertEquals(invocation.op(), IntOp.DIV);
+  }
+
+  @Test
+  public void otherExpressionsAreNotRecognized() {
+    assertNull(IntOp.recognize(returned("runArithmetic")));
+  }
+
+  @DataProvider
+  public Object[][] runs() {
+    return new Object[][] {
+      { Interpreter.Backend.TREE_WALKER, "runArithmetic", EfValue.of(7 * 3 - 10 + 10 / 2 * 7), "" },
+      { Interpreter.Backend.BYTECODE, "runArithmetic", EfValue.of(7 * 3 - 10 + 10 / 2 * 7), "" },
+      { Interpreter.Backend.TREE_WALKER, "runDivided", EfValue.of(-17 / 5), "" },
+      { Interpreter.Backend.BYTECODE, "runDivided", EfValue.of(-17 / 5), "" },
+      { Interpreter.Backend.TREE_WALKER, "runOrder", EfValue.of(11), "2\n3\n1\n5" },
+      { Interpreter.Backend.BYTECODE, "runOrder", EfValue.of(11), "2\n3\n1\n5" },
+    };
+  }
+
+  @Test(dataProvider = "runs")
+  public void unboxedArithmetic(Interpreter.Backend backend, String methodName, EfValue expected, String output) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel(methodName), null);
+    assertEquals(result, expected);
+    assertEquals(out.getOutput().trim(), output);
+  }
+
+  private static Expression returned(String methodName) {
+    MethodsRegistry<Block> methods = TestPrograms.compile(PROGRAM);
+    return TestPrograms.returned(methods, methodName);
+  }
+}
@@ -0,0 +1,130 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.NodeStateListener;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class KnownCtorEliminatorTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "type Box (value: Int)",
+    "type Pair (first: Int, second: Int)",
+    "type Shape = Box | Pair",
+    "",
+    "get (b: Box) -> Int:",
+    "  return b.value",
+    "",
+    "boxed (n: Int) -> Shape:",
+    "  return Box(n)",
+    "",
+    "paired (a: Int), (b: Int) -> Shape:",
+    "  return Pair(a, b)",
+    "",
+    TestPrograms.NOISY,
+    "unbox (n: Int) -> Int:",
+    "  return case boxed (n . + 4) of",
+    "    Box(v): v . * 2",
+    "    Pair(a, b): a",
+    "",
+    "swap (n: Int) -> Int:",
+    "  return case paired (noisy n, noisy 1) of",
+    "    Box(v): v",
+    "    Pair(a, b): b . - a",
+    "",
+    "pairedNoisily (n: Int) -> Shape:",
+    "  return Pair(noisy n, noisy 1)",
+    "",
+    "direct (n: Int) -> Int:",
+    "  return case pairedNoisily n of",
+    "    Box(v): v",
+    "    Pair(a, b): b . - a",
+    "",
+    "difference (p: Pair) -> Int:",
+    "  return p.first . - p.second",
+    "",
+    "scalar (n: Int) -> Int:",
+    "  return difference Pair(noisy n, noisy 1)",
+    "",
+    "accessFresh (n: Int) -> Int:",
+    "  return get Box(n . + 1)",
+    "",
+    "runUnbox -> Int:",
+    "  return unbox 3",
+    "",
+    "runSwap -> Int:",
+    "  return swap 3",
+    "",
+    "runDirect -> Int:",
+    "  return direct 3",
+    "",
+    "runScalar -> Int:",
+    "  return scalar 3",
+    "",
+    "runAccessFresh -> Int:",
+    "  return accessFresh 3",
+    "",
+    "main:",
+    "  debugPrint runUnbox",
+    "");
+
+  @DataProvider
+  public Object[][] methods() {
+    return new Object[][] {
+      { "unbox" },
+      { "swap" },
+      { "direct" },
+      { "scalar" },
+      { "accessFresh" },
+    };
+  }
+
+  @Test(dataProvider = "methods")
+  public void noCtorIsInvoked(String methodName) {
+    EfMethod<? extends Block> method = eliminated().getMethod(MethodId.topLevel(methodName));
+    assertNotNull(method, methodName);
+    NodeStateListener.accept(method.getBody(), child -> assertFalse(
+      child instanceof Expression.CtorInvoke, String.valueOf(method.getBody().statements())));
+  }
+
+  @DataProvider
+  public Object[][] runs() {
+    return new Object[][] {
+      { Interpreter.Backend.TREE_WALKER, "runUnbox", EfValue.of(14), "" },
+      { Interpreter.Backend.BYTECODE, "runUnbox", EfValue.of(14), "" },
+      { Interpreter.Backend.TREE_WALKER, "runSwap", EfValue.of(-2), "1\n3" },
+      { Interpreter.Backend.BYTECODE, "runSwap", EfValue.of(-2), "1\n3" },
+      { Interpreter.Backend.TREE_WALKER, "runDirect", EfValue.of(-2), "1\n3" },
+      { Interpreter.Backend.BYTECODE, "runDirect", EfValue.of(-2), "1\n3" },
+      { Interpreter.Backend.PROFILING, "runDirect", EfValue.of(-2), "1\n3" },
+      { Interpreter.Backend.TREE_WALKER, "runScalar", EfValue.of(2), "1\n3" },
+      { Interpreter.Backend.BYTECODE, "runScalar", EfValue.of(2), "1\n3" },
+      { Interpreter.Backend.PROFILING, "runScalar", EfValue.of(2), "1\n3" },
+      { Interpreter.Backend.TREE_WALKER, "runAccessFresh", EfValue.of(4), "" },
+      { Interpreter.Backend.BYTECODE, "runAccessFresh", EfValue.of(4), "" },
+    };
+  }
+
+  @Test(dataProvider = "runs")
+  public void resultsAreUnchanged(Interpreter.Backend backend, String methodName, EfValue expected, String output) {
+    CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+    StringOutputSink out = new StringOutputSink();
+    Object result = program.newExecution(out).run(MethodId.topLevel(methodName), null);
+    assertEquals(result, expected);
+    assertEquals(out.getOutput().trim(), output);
+  }
+
+  private static MethodsRegistry<Block> eliminated() {
+    MethodsRegistry<Block> inlined = Inliner.inline(TestPrograms.compile(PROGRAM), Inliner.DEFAULT_MAX_SIZE);
+    return KnownCtorEliminator.eliminate(inlined);
+  }
+}
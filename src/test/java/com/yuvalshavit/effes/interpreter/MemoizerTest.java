@@ -0,0 +1,131 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.PurityAnalysis;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class MemoizerTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "paths (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 1",
+    "    IntValue: (paths (n . - 1)) . + (paths (n . - 1))",
+    "",
+    "countUp (n: Int), (acc: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: acc",
+    "    IntValue: countUp (n . - 1, acc . + 1)",
+    "",
+    TestPrograms.NOISY,
+    "callsNoisy (n: Int) -> Int:",
+    "  return (noisy n) . + 1",
+    "",
+    "shout (n: Int):",
+    "  debugPrint n",
+    "",
+    "runPaths -> Int:",
+    "  return paths 16",
+    "",
+    "runLoop -> Int:",
+    "  return countUp (100000, 0)",
+    "",
+    "runNoisy -> Int:",
+    "  a = callsNoisy 1",
+    "  b = callsNoisy 1",
+    "  return a . + b",
+    "",
+    "main:",
+    "  shout runPaths",
+    "");
+
+  @Test
+  public void pureMethods() {
+    MethodsRegistry<Block> methods = TestPrograms.compile(PROGRAM);
+    assertEquals(
+      PurityAnalysis.pureMethods(methods),
+      ImmutableSet.of(
+        MethodId.topLevel("paths"),
+        MethodId.topLevel("countUp"),
+        MethodId.topLevel("runPaths"),
+        MethodId.topLevel("runLoop")));
+  }
+
+  @Test
+  public void onlyPureMethodsWithResultsAreMemoizable() {
+    Memoizer memoizer = new Memoizer(TestPrograms.compile(PROGRAM), Memoizer.DEFAULT_MAX_SIZE);
+    assertTrue(memoizer.isMemoizable(MethodId.topLevel("paths")));
+    assertFalse(memoizer.isMemoizable(MethodId.topLevel("noisy")));
+    assertFalse(memoizer.isMemoizable(MethodId.topLevel("callsNoisy"))); // impure by way of noisy
+    assertFalse(memoizer.isMemoizable(MethodId.topLevel("shout")));
+  }
+
+  @Test
+  public void stats() {
+    Memoizer memoizer = new Memoizer(TestPrograms.compile(PROGRAM), Memoizer.DEFAULT_MAX_SIZE);
+    MethodId paths = MethodId.topLevel("paths");
+    EfValue[] args = { EfValue.of(3) };
+    assertNull(memoizer.get(paths, args));
+    memoizer.put(paths, args, EfValue.of(8));
+    assertEquals(memoizer.get(paths, new EfValue[] { EfValue.of(3) }), EfValue.of(8));
+    assertNull(memoizer.get(MethodId.topLevel("countUp"), args));
+    CacheStats stats = memoizer.stats();
+    assertEquals(stats.hitCount(), 1);
+    assertEquals(stats.missCount(), 2);
+    assertEquals(memoizer.toString(), "memo: 1 hits, 2 misses, 0 evictions");
+  }
+
+  @Test
+  public void eviction() {
+    Memoizer memoizer = new Memoizer(TestPrograms.compile(PROGRAM), 1);
+    MethodId paths = MethodId.topLevel("paths");
+    for (int i = 0; i < 3; ++i) {
+      memoizer.put(paths, new EfValue[] { EfValue.of(i) }, EfValue.of(1 << i));
+    }
+    assertEquals(memoizer.stats().evictionCount(), 2);
+    assertNull(memoizer.get(paths, new EfValue[] { EfValue.of(0) }));
+    assertEquals(memoizer.get(paths, new EfValue[] { EfValue.of(2) }), EfValue.of(4));
+  }
+
+  @DataProvider
+  public Object[][] runs() {
+    return new Object[][] {
+      { "runPaths", EfValue.of(1 << 16), "" },
+      { "runLoop", EfValue.of(100000), "" },
+      { "runNoisy", EfValue.of(4), "1\n1" },
+    };
+  }
+
+  @Test(dataProvider = "runs")
+  public void resultsMatchTheTreeWalker(String methodName, EfValue expected, String output) {
+    for (Interpreter.Backend backend : new Interpreter.Backend[] { Interpreter.Backend.TREE_WALKER, Interpreter.Backend.MEMOIZING }) {
+      CompiledProgram program = TestPrograms.program(PROGRAM, backend);
+      StringOutputSink out = new StringOutputSink();
+      Object result = program.newExecution(out).run(MethodId.topLevel(methodName), null);
+      assertEquals(result, expected, backend.toString());
+      assertEquals(out.getOutput().trim(), output, backend.toString());
+    }
+  }
+
+  @Test
+  public void repeatedCallsComeFromTheCache() {
+    CompiledProgram program = TestPrograms.program(PROGRAM, Interpreter.Backend.MEMOIZING);
+    program.newExecution(new StringOutputSink()).run(MethodId.topLevel("runPaths"), null);
+    Memoizer memoizer = program.getMemoizer();
+    assertNotNull(memoizer);
+    // each of paths 16 .. paths 1 is evaluated once, and its second call comes from the cache
+    assertEquals(memoizer.stats().hitCount(), 16);
+  }
+}
@@ -0,0 +1,160 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.node.EfType;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class ProfilerTest {
+
+  @Test
+  public void callsAndAllocations() {
+    Profiler profiler = new Profiler();
+    EfType.SimpleType box = new EfType.SimpleType("Box", Collections.emptyList());
+    MethodId innerId = MethodId.topLevel("inner");
+    MethodId outerId = MethodId.topLevel("outer");
+    ExecutableMethod inner = profiler.wrap(innerId, method(stack -> EfValue.of(box, EfValue.of("a"))));
+    ExecutableMethod outer = profiler.wrap(outerId, method(stack -> {
+      inner.execute(stack);
+      inner.execute(stack);
+      EfValue.of(box, EfValue.of("b"));
+    }));
+    outer.execute(new CallStack());
+    outer.execute(new CallStack());
+
+    Map<MethodId, MethodProfile> profiles = byId(profiler.getProfiles());
+    MethodProfile outerProfile = profiles.get(outerId);
+    MethodProfile innerProfile = profiles.get(innerId);
+    assertEquals(outerProfile.getCalls(), 2);
+    assertEquals(innerProfile.getCalls(), 4);
+    assertEquals(innerProfile.getAllocations(), 8); // each call builds a String and a Box
+    assertEquals(outerProfile.getAllocations(), 4);
+    assertTrue(outerProfile.getInclusiveNanos() >= outerProfile.getSelfNanos() + innerProfile.getSelfNanos());
+  }
+
+  @Test
+  public void recursionCountsInclusiveTimeOnce() {
+    Profiler profiler = new Profiler();
+    MethodId id = MethodId.topLevel("recurse");
+    ExecutableMethod[] recurse = new ExecutableMethod[1];
+    int[] remaining = { 10 };
+    recurse[0] = profiler.wrap(id, method(stack -> {
+      if (--remaining[0] > 0) {
+        recurse[0].execute(stack);
+      }
+    }));
+    recurse[0].execute(new CallStack());
+
+    MethodProfile profile = profiler.getProfiles().get(0);
+    assertEquals(profile.getCalls(), 10);
+    assertEquals(profile.getInclusiveNanos(), profile.getSelfNanos());
+  }
+
+  @Test
+  public void tailCalleesCountTowardTheCaller() {
+    String program = Joiner.on('\n').join(
+      "countUp (n: Int), (acc: Int) -> Int:",
+      "  return case n of",
+      "    IntZero: acc",
+      "    IntValue: countUp (n . - 1, acc . + 1)",
+      "",
+      "outer -> Int:",
+      "  return countUp (100000, 0)",
+      "",
+      "main:",
+      "  debugPrint outer",
+      "");
+    CompiledProgram compiled = TestPrograms.program(program, Interpreter.Backend.PROFILING);
+    // far deeper than the max depth, so the tail calls must still reuse their frame
+    Object result = compiled.newExecution(new StringOutputSink()).run(MethodId.topLevel("outer"), null);
+    assertEquals(result, EfValue.of(100000));
+
+    Profiler profiler = compiled.getProfiler();
+    assertNotNull(profiler);
+    Map<MethodId, MethodProfile> profiles = byId(profiler.getProfiles());
+    MethodProfile outerProfile = profiles.get(MethodId.topLevel("outer"));
+    MethodProfile countUpProfile = profiles.get(MethodId.topLevel("countUp"));
+    assertEquals(outerProfile.getCalls(), 1);
+    assertEquals(countUpProfile.getCalls(), 100001);
+    assertTrue(
+      outerProfile.getInclusiveNanos() >= outerProfile.getSelfNanos() + countUpProfile.getInclusiveNanos(),
+      outerProfile + " vs " + countUpProfile);
+  }
+
+  @Test
+  public void allocationsNotCountedOutsideProfiledMethods() {
+    Profiler profiler = new Profiler();
+    MethodId id = MethodId.topLevel("noop");
+    profiler.wrap(id, method(stack -> {})).execute(new CallStack());
+    long before = EfValue.allocations();
+    EfValue.of("not counted");
+    assertEquals(EfValue.allocations(), before);
+  }
+
+  @Test
+  public void runsOnSeveralThreadsAddUp() throws Exception {
+    Profiler profiler = new Profiler();
+    MethodId id = MethodId.topLevel("build");
+    ExecutableMethod build = profiler.wrap(id, method(stack -> EfValue.of("built")));
+    int nThreads = 4;
+    int callsPerThread = 10000;
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<?>> runs = new ArrayList<>();
+      for (int i = 0; i < nThreads; ++i) {
+        runs.add(executor.submit(() -> {
+          CallStack stack = new CallStack();
+          for (int call = 0; call < callsPerThread; ++call) {
+            build.execute(stack);
+          }
+        }));
+      }
+      for (Future<?> run : runs) {
+        run.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    MethodProfile profile = byId(profiler.getProfiles()).get(id);
+    assertEquals(profile.getCalls(), nThreads * callsPerThread);
+    // allocations are counted process-wide, so the threads see each other's; but none are missed
+    assertTrue(profile.getAllocations() >= nThreads * callsPerThread, Long.toString(profile.getAllocations()));
+    long before = EfValue.allocations();
+    EfValue.of("not counted");
+    assertEquals(EfValue.allocations(), before); // every thread's run turned counting back off
+  }
+
+  private static Map<MethodId, MethodProfile> byId(List<MethodProfile> profiles) {
+    return profiles.stream().collect(Collectors.toMap(MethodProfile::getMethod, Function.identity()));
+  }
+
+  private static ExecutableMethod method(ExecutableElement body) {
+    return new ExecutableMethod() {
+      @Override
+      public int nVars() {
+        return 0;
+      }
+
+      @Override
+      public void execute(CallStack stack) {
+        body.execute(stack);
+      }
+    };
+  }
+}
@@ -0,0 +1,65 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class SamplingProfilerTest {
+
+  @Test(timeOut = 10_000)
+  public void samplesCallChains() throws IOException {
+    CallStack stack = new CallStack();
+    Map<String, Long> samples;
+    StringWriter folded = new StringWriter();
+    try (SamplingProfiler sampler = new SamplingProfiler(100)) {
+      stack.setSampler(sampler);
+      stack.openFrame(ImmutableList.of(), false, MethodId.topLevel("outer"));
+      while (!sampler.getFoldedStacks().containsKey("outer;inner")) {
+        stack.openFrame(ImmutableList.of(), false, MethodId.topLevel("inner"));
+        stack.closeFrame();
+      }
+      stack.closeFrame();
+      samples = sampler.getFoldedStacks();
+      sampler.writeFolded(folded);
+    }
+    for (String chain : samples.keySet()) {
+      assertTrue(chain.equals("outer") || chain.equals("outer;inner"), chain);
+    }
+    assertTrue(folded.toString().contains("outer;inner " + samples.get("outer;inner") + "\n"), folded.toString());
+  }
+
+  @Test
+  public void unknownMethods() {
+    CallStack stack = new CallStack();
+    stack.openFrame(ImmutableList.of(), false);
+    assertEquals(stack.frameMethod(0), null);
+    stack.closeFrame();
+  }
+
+  @Test
+  public void tailCallReplacesFrameMethod() {
+    CallStack stack = new CallStack();
+    stack.openFrame(ImmutableList.of(), true, MethodId.topLevel("caller"));
+    stack.tailCall(noop, 0, MethodId.topLevel("callee"));
+    assertEquals(stack.frameMethod(0), MethodId.topLevel("callee"));
+    assertEquals(stack.takeTailCall(), noop);
+  }
+
+  private static final ExecutableMethod noop = new ExecutableMethod() {
+    @Override
+    public int nVars() {
+      return 0;
+    }
+
+    @Override
+    public void execute(CallStack stack) {}
+  };
+}
@@ -0,0 +1,79 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static com.yuvalshavit.util.AssertException.assertException;
+import static org.testng.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.MissingFormatArgumentException;
+import java.util.UnknownFormatConversionException;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effes.compile.node.EfType;
+
+public final class SprintfFormatTest {
+  private static final EfType.SimpleType head = new EfType.SimpleType("Head", Collections.emptyList());
+  private static final EfType.SimpleType empty = new EfType.SimpleType("Empty", Collections.emptyList());
+
+  @DataProvider(name = "formats")
+  public Object[][] formats() {
+    return new Object[][] {
+      { "no specifiers" },
+      { "" },
+      { "%s" },
+      { "hello %s pooh bear: %s!" },
+      { "%s%s%s" },
+      { "100%% %s%n" },
+      { "[%8s] [%-8s] [%.2s] [%8.2s] [%-1s]" },
+      { "%S and %s" },
+      { "%2$s %1$s %s %s" },
+      { "%s %d" }, // not something we handle ourselves; String.format rejects it
+      { "%05s" },
+    };
+  }
+
+  @Test(dataProvider = "formats")
+  public void sameAsStringFormat(String format) {
+    String[] args = { "alpha", "beta", "gamma" };
+    String expected;
+    try {
+      expected = String.format(format, (Object[]) args);
+    } catch (RuntimeException e) {
+      assertException(e.getClass(), () -> format(format, args));
+      return;
+    }
+    assertEquals(format(format, args), expected);
+  }
+
+  @Test
+  public void missingArg() {
+    assertException(MissingFormatArgumentException.class, () -> format("%s and %s", "one"));
+  }
+
+  @Test
+  public void unknownConversion() {
+    assertException(UnknownFormatConversionException.class, () -> format("50%", "one"));
+  }
+
+  @Test
+  public void appendsToBuilder() {
+    StringBuilder sb = new StringBuilder("> ");
+    SprintfFormat.parse("%s-%s").appendTo(sb, list("a", "b"));
+    assertEquals(sb.toString(), "> a-b");
+  }
+
+  private static String format(String format, String... args) {
+    StringBuilder sb = new StringBuilder();
+    SprintfFormat.parse(format).appendTo(sb, list(args));
+    return sb.toString();
+  }
+
+  private static EfValue list(String... elements) {
+    EfValue list = EfValue.of(empty);
+    for (int i = elements.length - 1; i >= 0; --i) {
+      list = EfValue.of(head, EfValue.of(elements[i]), list);
+    }
+    return list;
+  }
+}
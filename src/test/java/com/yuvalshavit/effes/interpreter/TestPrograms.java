@@ -0,0 +1,117 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+import org.testng.annotations.DataProvider;
+
+import com.google.common.base.Joiner;
+import com.yuvalshavit.effes.compile.IrCompiler;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.Source;
+import com.yuvalshavit.effes.compile.Sources;
+import com.yuvalshavit.effes.compile.node.Block;
+import com.yuvalshavit.effes.compile.node.CompileErrors;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.Expression;
+import com.yuvalshavit.effes.compile.node.MethodId;
+import com.yuvalshavit.effes.compile.node.Statement;
+import com.yuvalshavit.effes.parser.ParserUtils;
+
+/**
+ * Helpers for tests that compile a small program and look at its IR or run it.
+ */
+public final class TestPrograms {
+  /**
+   * A method that prints its argument and returns it, so that a test can see when (and how many times) an argument is
+   * evaluated. Tests append it to their programs.
+   */
+  static final String NOISY = Joiner.on('\n').join(
+    "noisy (n: Int) -> Int:",
+    "  debugPrint n",
+    "  return n",
+    "");
+
+  private TestPrograms() {}
+
+  /**
+   * A program, along with the default built-ins.
+   */
+  static Sources sources(String program) {
+    return new Sources(new Source(ParserUtils.createParser(program).compilationUnit()));
+  }
+
+  @DataProvider
+  public static Object[][] allBackends() {
+    return backends(Interpreter.Backend.values());
+  }
+
+  @DataProvider
+  public static Object[][] treeWalkerAndBytecode() {
+    return backends(Interpreter.Backend.TREE_WALKER, Interpreter.Backend.BYTECODE);
+  }
+
+  @DataProvider
+  public static Object[][] treeWalkerAndFlat() {
+    return backends(Interpreter.Backend.TREE_WALKER, Interpreter.Backend.FLAT);
+  }
+
+  private static Object[][] backends(Interpreter.Backend... backends) {
+    return Arrays.stream(backends)
+      .map(backend -> new Object[] { backend })
+      .toArray(Object[][]::new);
+  }
+
+  /**
+   * Compiles a program to IR, as it is before any of CompiledProgram's passes. The program must compile cleanly.
+   */
+  static MethodsRegistry<Block> compile(String program) {
+    return compiler(program).getCompiledMethods();
+  }
+
+  /**
+   * Like {@link #compile}, but returns the compiler itself, so that its built-ins can be used to run the IR.
+   */
+  static IrCompiler<ExecutableMethod> compiler(String program) {
+    CompileErrors errs = new CompileErrors();
+    IrCompiler<ExecutableMethod> compiler = new IrCompiler<>(sources(program), (types, e) -> {
+      MethodsRegistry<ExecutableMethod> builtInMethods = new MethodsRegistry<>();
+      new ExecutableBuiltInMethods(types).addTo(types, builtInMethods, e);
+      return builtInMethods;
+    }, errs);
+    assertEquals(errs.getErrors().toString(), "[]");
+    return compiler;
+  }
+
+  static Function<MethodId, ExecutableMethod> builtIns(IrCompiler<ExecutableMethod> compiler) {
+    return id -> {
+      EfMethod<? extends ExecutableMethod> method = compiler.getBuiltInMethods().getMethod(id);
+      assertNotNull(method, id.toString());
+      return method.getBody();
+    };
+  }
+
+  static CompiledProgram program(String program, Interpreter.Backend backend) {
+    CompiledProgram compiled = new CompiledProgram(sources(program), backend);
+    assertEquals(compiled.getErrors().getErrors().toString(), "[]");
+    return compiled;
+  }
+
+  static Block body(MethodsRegistry<Block> methods, String methodName) {
+    EfMethod<? extends Block> method = methods.getMethod(MethodId.topLevel(methodName));
+    assertNotNull(method, methodName);
+    return method.getBody();
+  }
+
+  /**
+   * The expression that a top-level method's last statement returns.
+   */
+  static Expression returned(MethodsRegistry<Block> methods, String methodName) {
+    Block body = body(methods, methodName);
+    Statement last = body.statements().get(body.statements().size() - 1);
+    return ((Statement.ReturnStatement) last).getExpression();
+  }
+}
@@ -0,0 +1,178 @@
+package com.yuvalshavit.effes.interpreter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.yuvalshavit.effes.compile.IrCompiler;
+import com.yuvalshavit.effes.compile.MethodsRegistry;
+import com.yuvalshavit.effes.compile.node.EfMethod;
+import com.yuvalshavit.effes.compile.node.MethodId;
+
+public final class TieredCompilerTest {
+  private static final String PROGRAM = Joiner.on('\n').join(
+    "sumTo (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 0",
+    "    IntValue: (sumTo (n . - 1)) . + n",
+    "",
+    "countUp (n: Int), (acc: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: acc",
+    "    IntValue: countUp (n . - 1, acc . + 1)",
+    "",
+    "wrapper (n: Int) -> Int:",
+    "  return countUp (n, 0)",
+    "",
+    "ping (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 0",
+    "    IntValue: (pong (n . - 1)) . + 1",
+    "",
+    "pong (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 0",
+    "    IntValue: (ping (n . - 1)) . + 1",
+    "",
+    "isEven (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 1",
+    "    IntValue: isOdd (n . - 1)",
+    "",
+    "isOdd (n: Int) -> Int:",
+    "  return case n of",
+    "    IntZero: 0",
+    "    IntValue: isEven (n . - 1)",
+    "",
+    "runSum -> Int:",
+    "  return sumTo 3",
+    "",
+    "runWrapper -> Int:",
+    "  return wrapper 10",
+    "",
+    "runPing -> Int:",
+    "  return ping 6",
+    "",
+    "runDeepPing -> Int:",
+    "  return ping 300",
+    "",
+    "runEven -> Int:",
+    "  return isEven 10000",
+    "",
+    "main:",
+    "  debugPrint runSum",
+    "");
+
+  private static final int THRESHOLD = 10;
+
+  @Test
+  public void onlyTailCallCyclesStayOnTheTreeWalker() {
+    assertEquals(
+      TieredCompiler.tailCallCycles(TestPrograms.compile(PROGRAM)),
+      ImmutableSet.of(MethodId.topLevel("isEven"), MethodId.topLevel("isOdd")));
+  }
+
+  @Test
+  public void tiersUpOnceHot() {
+    MethodsRegistry<ExecutableMethod> methods = compile();
+    // sumTo is called 4 times a run, so it gets to the threshold during the third run
+    for (int i = 0; i < 2; ++i) {
+      assertEquals(run(methods, "runSum", new CallStack()), EfValue.of(6));
+    }
+    assertFalse(isGenerated(methods, "sumTo"));
+    assertEquals(run(methods, "runSum", new CallStack()), EfValue.of(6));
+    assertTrue(isGenerated(methods, "sumTo"));
+    assertEquals(run(methods, "runSum", new CallStack()), EfValue.of(6));
+    assertFalse(isGenerated(methods, "runSum"));
+  }
+
+  @Test
+  public void tailCallsToOtherMethodsTierUp() {
+    MethodsRegistry<ExecutableMethod> methods = compile();
+    for (int i = 0; i < THRESHOLD; ++i) {
+      assertEquals(run(methods, "runWrapper", new CallStack()), EfValue.of(10));
+    }
+    assertTrue(isGenerated(methods, "wrapper"));
+    assertTrue(isGenerated(methods, "countUp"));
+  }
+
+  @Test
+  public void tailCallCyclesNeverTierUp() {
+    MethodsRegistry<ExecutableMethod> methods = compile();
+    for (int i = 0; i < THRESHOLD; ++i) {
+      // far deeper than the stack allows, so this only works if the tail calls don't take frames
+      assertEquals(run(methods, "runEven", new CallStack(50)), EfValue.of(1));
+    }
+    assertFalse(isGenerated(methods, "isEven"));
+    assertFalse(isGenerated(methods, "isOdd"));
+  }
+
+  @Test
+  public void callSitesAreRelinkedWhenTheirTargetTiersUp() throws InterruptedException {
+    MethodsRegistry<ExecutableMethod> methods = compile();
+    // ping gets hot first, and is generated while pong is still on the tree-walker; then pong gets hot, too
+    for (int i = 0; i < THRESHOLD; ++i) {
+      assertEquals(run(methods, "runPing", new CallStack()), EfValue.of(6));
+    }
+    assertTrue(isGenerated(methods, "ping"));
+    assertTrue(isGenerated(methods, "pong"));
+    // generated code calls generated code directly; a tree-walked call takes far more JVM stack than this thread has
+    AtomicReference<Object> result = new AtomicReference<>();
+    Thread thread = new Thread(
+      null,
+      () -> {
+        try {
+          result.set(run(methods, "runDeepPing", new CallStack()));
+        } catch (Throwable t) {
+          result.set(t);
+        }
+      },
+      "tiered-deep-ping",
+      256 * 1024);
+    thread.start();
+    thread.join();
+    assertEquals(result.get(), EfValue.of(300));
+  }
+
+  @Test
+  public void generatedCallsCountTowardTheMaxDepth() {
+    MethodsRegistry<ExecutableMethod> methods = compile();
+    for (int i = 0; i < THRESHOLD; ++i) {
+      assertEquals(run(methods, "runPing", new CallStack()), EfValue.of(6));
+    }
+    assertTrue(isGenerated(methods, "ping"));
+    try {
+      run(methods, "runDeepPing", new CallStack(50));
+      throw new AssertionError("expected a stack overflow");
+    } catch (EfStackOverflowException e) {
+      assertEquals(e.getMessage(), "stack overflow: exceeded maximum call depth of 50");
+    }
+  }
+
+  private static MethodsRegistry<ExecutableMethod> compile() {
+    IrCompiler<ExecutableMethod> compiler = TestPrograms.compiler(PROGRAM);
+    return new TieredCompiler(TestPrograms.builtIns(compiler), THRESHOLD).compile(compiler.getCompiledMethods());
+  }
+
+  private static EfValue run(MethodsRegistry<ExecutableMethod> methods, String methodName, CallStack stack) {
+    MethodId id = MethodId.topLevel(methodName);
+    EfMethod<? extends ExecutableMethod> method = methods.getMethod(id);
+    assertNotNull(method, methodName);
+    ExecutableExpression.MethodInvokeExpression.invoke(method.getBody(), ImmutableList.of(), stack, true, id);
+    return stack.pop();
+  }
+
+  private static boolean isGenerated(MethodsRegistry<ExecutableMethod> methods, String methodName) {
+    EfMethod<? extends ExecutableMethod> method = methods.getMethod(MethodId.topLevel(methodName));
+    assertNotNull(method, methodName);
+    return BytecodeCompiler.isGenerated(method.getBody());
+  }
+}
@@ -52,12 +52,31 @@ public final class EndToEndTest {
       .filter(s -> !"_prefix.ef".equals(s) && s.matches(suffixRegex))
       .map(s -> s.replaceFirst(suffixRegex, "$1"))
       .distinct()
+      .filter(EndToEndTest::hasExpectations)
       .filter(EndToEndTest::dataProviderFilter)
       .map(s -> new Object[]{s})
       .collect(Collectors.toList())
       .toArray(new Object[0][]);
   }
 
+  /**
+   * Every file, on every backend. They all have to produce the same output that the .out file expects.
+   */
+  @DataProvider(name = "filesOnBackends")
+  public static Object[][] getBaseNamesOnBackends() throws IOException {
+    return Stream.of(getBaseNames())
+      .flatMap(file -> Stream.of(Interpreter.Backend.values()).map(backend -> new Object[]{ file[0], backend }))
+      .collect(Collectors.toList())
+      .toArray(new Object[0][]);
+  }
+
+  /**
+   * Whether there's anything to check the file against. A .ef on its own is a test that hasn't been written yet.
+   */
+  private static boolean hasExpectations(String fileBaseName) {
+    return Stream.of(".ir", ".err", ".out").anyMatch(suffix -> urls.tryGet(fileBaseName + suffix) != null);
+  }
+
   private static boolean dataProviderFilter(String testName) {
     String testparam = System.getProperty("test.params");
     if (testparam == null) {
@@ -69,12 +88,14 @@ public final class EndToEndTest {
 
   private static Stream<String> readFileOrDir(String file) {
     // This is hacky as hell, but Guava's ClassPath...getResource() is failing for me, and I don't feel like writing
-    // my own version of it. So, just take the incoming file "foo" and see if we can read "foo/.". This will only work
-    // for directories, and it'll throw NPE (not IOException) for files. So, yes, yucky... but gets the job done.
-    try {
-      return Resources.readLines(urls.get(file + "/."), Charsets.UTF_8).stream().map(f -> file + "/" + f);
-    } catch (NullPointerException e) {
+    // my own version of it. So, just take the incoming file "foo" and see if we can read "foo/.". That will only be
+    // there for directories; for files, there's no such resource. So, yes, yucky... but gets the job done.
+    URL dir = urls.tryGet(file + "/.");
+    if (dir == null) {
       return ImmutableList.of(file).stream();
+    }
+    try {
+      return Resources.readLines(dir, Charsets.UTF_8).stream().map(f -> file + "/" + f);
     } catch (IOException e) {
       throw new AssertionError(e);
     }
@@ -85,7 +106,7 @@ public final class EndToEndTest {
     IrCompiler<?> compiler = new IrCompiler<>(
       getParser(fileBaseName),
       (t, e) -> {
-        BuiltInMethodsFactory<?> factory = new ExecutableBuiltInMethods(t, null);
+        BuiltInMethodsFactory<?> factory = new ExecutableBuiltInMethods(t);
         MethodsRegistry<Object> reg = new MethodsRegistry<>();
         factory.addTo(t, reg, e);
         return reg;
@@ -109,11 +130,11 @@ public final class EndToEndTest {
     return new Sources(Arrays.asList(prefix, parser));
   }
 
-  @Test(dataProvider = "files")
-  public void run(String fileBaseName) throws IOException {
+  @Test(dataProvider = "filesOnBackends")
+  public void run(String fileBaseName, Interpreter.Backend backend) throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     PrintStream out = new PrintStream(baos);
-    Interpreter interpreter = new Interpreter(getParser(fileBaseName), out);
+    Interpreter interpreter = new Interpreter(getParser(fileBaseName), out, backend);
 
     String outFileName = fileBaseName + ".out";
     String errFileName = fileBaseName + ".err";